@@ -16,7 +16,6 @@
 
 package com.android.bluetooth.gatt;
 
-import android.bluetooth.BluetoothUuid;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
@@ -24,18 +23,17 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -54,11 +52,19 @@ class AdvertiseManager {
     // Message for advertising operations.
     private static final int MSG_START_ADVERTISING = 0;
     private static final int MSG_STOP_ADVERTISING = 1;
+    private static final int MSG_ROTATE_ADVERTISING = 2;
+    private static final int MSG_UPDATE_ADVERTISING = 3;
 
     private final GattService mService;
     private final AdapterService mAdapterService;
     private final Set<AdvertiseClient> mAdvertiseClients;
     private final AdvertiseNative mAdvertiseNative;
+    private final AdvertiseScheduler mScheduler = new AdvertiseScheduler();
+
+    // Clients whose instance is being disabled to give another client its turn.
+    // An entry is consumed by the disable event of the stack, even if that
+    // arrives after the rotation gave up waiting for it.
+    private final Set<Integer> mRotatingOut = Collections.synchronizedSet(new HashSet<Integer>());
 
     // Handles advertise operations.
     private ClientHandler mHandler;
@@ -89,6 +95,17 @@ class AdvertiseManager {
     void cleanup() {
         logd("advertise clients cleared");
         mAdvertiseClients.clear();
+        mScheduler.clear();
+        mRotatingOut.clear();
+        mAdvertiseNative.forgetAllPayloads();
+        if (mHandler != null) {
+            mHandler.removeMessages(MSG_ROTATE_ADVERTISING);
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        mScheduler.dump(sb, SystemClock.elapsedRealtime());
+        mAdvertiseNative.dump(sb);
     }
 
     /**
@@ -106,6 +123,20 @@ class AdvertiseManager {
         mHandler.sendMessage(message);
     }
 
+    /**
+     * Replace the advertising data and scan response of a started client.
+     * Only the payloads that changed are sent to the controller.
+     */
+    void updateAdvertising(AdvertiseClient client) {
+        if (client == null) {
+            return;
+        }
+        Message message = new Message();
+        message.what = MSG_UPDATE_ADVERTISING;
+        message.obj = client;
+        mHandler.sendMessage(message);
+    }
+
     /**
      * Stop BLE advertising.
      */
@@ -135,6 +166,23 @@ class AdvertiseManager {
         }
     }
 
+    /**
+     * Signals an advertising instance was disabled.
+     *
+     * @return true if it was disabled to rotate the client out, in which
+     *         case the app is not told.
+     */
+    boolean onInstanceDisabled(int clientIf) {
+        mAdvertiseNative.forgetPayloads(clientIf);
+        if (!mRotatingOut.remove(clientIf)) {
+            return false;
+        }
+        if (mLatch != null) {
+            mLatch.countDown();
+        }
+        return true;
+    }
+
     // Post callback status to app process.
     private void postCallback(int clientIf, int status) {
         try {
@@ -174,6 +222,12 @@ class AdvertiseManager {
                 case MSG_STOP_ADVERTISING:
                     handleStopAdvertising(client);
                     break;
+                case MSG_ROTATE_ADVERTISING:
+                    handleRotateAdvertising();
+                    break;
+                case MSG_UPDATE_ADVERTISING:
+                    handleUpdateAdvertising(client);
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "recieve an unknown message : " + msg.what);
@@ -184,22 +238,29 @@ class AdvertiseManager {
         private void handleStartAdvertising(AdvertiseClient client) {
             Utils.enforceAdminPermission(mService);
             int clientIf = client.clientIf;
-            if (mAdvertiseClients.contains(clientIf)) {
+            if (mAdvertiseClients.contains(client)) {
                 postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_ALREADY_STARTED);
                 return;
             }
 
-            if (mAdvertiseClients.size() >= maxAdvertiseInstances()) {
+            int capacity = maxAdvertiseInstances();
+            int admission = (capacity == 0) ? AdvertiseScheduler.REJECTED
+                    : mScheduler.add(client, capacity, SystemClock.elapsedRealtime());
+            if (admission == AdvertiseScheduler.REJECTED) {
                 postCallback(clientIf,
                         AdvertiseCallback.ADVERTISE_FAILED_TOO_MANY_ADVERTISERS);
                 return;
             }
-            if (!mAdvertiseNative.startAdverising(client)) {
+            // A queued client advertises once its turn comes.
+            if (admission == AdvertiseScheduler.ADMITTED
+                    && !mAdvertiseNative.startAdverising(client)) {
+                mScheduler.remove(client);
                 postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
                 return;
             }
             mAdvertiseClients.add(client);
             postCallback(clientIf, AdvertiseCallback.ADVERTISE_SUCCESS);
+            scheduleRotation();
         }
 
         // Handles stop advertising.
@@ -209,7 +270,20 @@ class AdvertiseManager {
                 return;
             }
             logd("stop advertise for client " + client.clientIf);
-            mAdvertiseNative.stopAdvertising(client);
+            if (mScheduler.isWaiting(client)) {
+                // Not on the controller, confirm the stop right away.
+                try {
+                    mService.onAdvertiseInstanceDisabled(
+                            AdvertiseCallback.ADVERTISE_SUCCESS, client.clientIf);
+                } catch (RemoteException e) {
+                    Log.d(TAG, "failed onAdvertiseInstanceDisabled", e);
+                }
+            } else {
+                // A rotate-out whose event never came must not swallow the stop.
+                mRotatingOut.remove(client.clientIf);
+                mAdvertiseNative.stopAdvertising(client);
+            }
+            mScheduler.remove(client);
             if (client.appDied) {
                 logd("app died - unregistering client : " + client.clientIf);
                 mService.unregisterClient(client.clientIf);
@@ -217,6 +291,73 @@ class AdvertiseManager {
             if (mAdvertiseClients.contains(client)) {
                 mAdvertiseClients.remove(client);
             }
+            // Hand the instance to a waiting client.
+            handleRotateAdvertising();
+        }
+
+        private void handleUpdateAdvertising(AdvertiseClient update) {
+            Utils.enforceAdminPermission(mService);
+            int clientIf = update.clientIf;
+            AdvertiseClient client = getAdvertiseClient(clientIf);
+            if (client == null) {
+                postCallback(clientIf, AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+                return;
+            }
+            boolean wasScannable = client.scanResponse != null;
+            client.advertiseData = update.advertiseData;
+            client.scanResponse = update.scanResponse;
+            if (!mScheduler.isResident(client)) {
+                // Sent when its turn comes.
+                postCallback(clientIf, AdvertiseCallback.ADVERTISE_SUCCESS);
+                return;
+            }
+            boolean updated;
+            if (wasScannable != (client.scanResponse != null)) {
+                // The advertising event type changes, which takes a restart.
+                mAdvertiseNative.rotateOut(client);
+                updated = mAdvertiseNative.startAdverising(client);
+            } else {
+                updated = mAdvertiseNative.updateAdvertisingData(client);
+            }
+            postCallback(clientIf, updated ? AdvertiseCallback.ADVERTISE_SUCCESS
+                    : AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+        }
+
+        // Stops clients whose advertising timeout is used up and swaps resident
+        // clients whose turn is over with waiting clients.
+        private void handleRotateAdvertising() {
+            AdvertiseScheduler.Rotation rotation = mScheduler.rotate(maxAdvertiseInstances(),
+                    SystemClock.elapsedRealtime());
+            for (AdvertiseClient client : rotation.expired) {
+                logd("advertising timed out for client " + client.clientIf);
+                // The app is told through the disable event, as for a stop.
+                mRotatingOut.remove(client.clientIf);
+                mAdvertiseNative.stopAdvertising(client);
+                mAdvertiseClients.remove(client);
+            }
+            for (AdvertiseClient client : rotation.stop) {
+                logd("rotating out client " + client.clientIf);
+                mAdvertiseNative.rotateOut(client);
+            }
+            for (AdvertiseClient client : rotation.start) {
+                logd("rotating in client " + client.clientIf);
+                if (!mAdvertiseNative.startAdverising(client)) {
+                    mScheduler.remove(client);
+                    postCallback(client.clientIf,
+                            AdvertiseCallback.ADVERTISE_FAILED_INTERNAL_ERROR);
+                    mAdvertiseClients.remove(client);
+                }
+            }
+            scheduleRotation();
+        }
+
+        private void scheduleRotation() {
+            removeMessages(MSG_ROTATE_ADVERTISING);
+            long next = mScheduler.getNextRotationMillis();
+            if (next >= 0) {
+                sendEmptyMessageDelayed(MSG_ROTATE_ADVERTISING,
+                        Math.max(0, next - SystemClock.elapsedRealtime()));
+            }
         }
 
         // Returns maximum advertise instances supported by controller.
@@ -264,6 +405,15 @@ class AdvertiseManager {
         private static final int ADVERTISING_EVENT_TYPE_SCANNABLE = 2;
         private static final int ADVERTISING_EVENT_TYPE_NON_CONNECTABLE = 3;
 
+        // The legacy controller data is shared by all clients.
+        private static final int LEGACY_PAYLOAD_KEY = -2;
+
+        // Payloads held by the controller, keyed by getPayloadKey().
+        private final SparseArray<AdvertisePayload> mControllerPayloads =
+                new SparseArray<AdvertisePayload>();
+        private long mPayloadsSent;
+        private long mPayloadsUnchanged;
+
         // TODO: Extract advertising logic into interface as we have multiple implementations now.
         boolean startAdverising(AdvertiseClient client) {
             if (!mAdapterService.isMultiAdvertisementSupported() &&
@@ -283,15 +433,29 @@ class AdvertiseManager {
             if (!waitForCallback()) {
                 return false;
             }
-            resetCountDownLatch();
+            return setMultiAdvertisingData(client);
+        }
+
+        // Sends the payloads of a started client that the controller does not hold.
+        boolean updateAdvertisingData(AdvertiseClient client) {
+            if (mAdapterService.isMultiAdvertisementSupported()) {
+                return setMultiAdvertisingData(client);
+            }
             setAdvertisingData(client, client.advertiseData, false);
-            if (!waitForCallback()) {
+            return true;
+        }
+
+        private boolean setMultiAdvertisingData(AdvertiseClient client) {
+            resetCountDownLatch();
+            if (setAdvertisingData(client, client.advertiseData, false) && !waitForCallback()) {
+                forgetPayloads(client.clientIf);
                 return false;
             }
             if (client.scanResponse != null) {
                 resetCountDownLatch();
-                setAdvertisingData(client, client.scanResponse, true);
-                if (!waitForCallback()) {
+                if (setAdvertisingData(client, client.scanResponse, true)
+                        && !waitForCallback()) {
+                    forgetPayloads(client.clientIf);
                     return false;
                 }
             }
@@ -311,6 +475,7 @@ class AdvertiseManager {
 
         void stopAdvertising(AdvertiseClient client) {
             if (mAdapterService.isMultiAdvertisementSupported()) {
+                forgetPayloads(client.clientIf);
                 gattClientDisableAdvNative(client.clientIf);
             } else {
                 gattAdvertiseNative(client.clientIf, false);
@@ -323,6 +488,21 @@ class AdvertiseManager {
             }
         }
 
+        // Disables the instance of a client whose turn is over, without
+        // telling the app.
+        void rotateOut(AdvertiseClient client) {
+            mRotatingOut.add(client.clientIf);
+            if (mAdapterService.isMultiAdvertisementSupported()) {
+                // Wait for the instance to be freed before it is handed out.
+                forgetPayloads(client.clientIf);
+                resetCountDownLatch();
+                gattClientDisableAdvNative(client.clientIf);
+                waitForCallback();
+            } else {
+                stopAdvertising(client);
+            }
+        }
+
         private void resetCountDownLatch() {
             mLatch = new CountDownLatch(1);
         }
@@ -342,8 +522,12 @@ class AdvertiseManager {
             int maxAdvertiseUnit = minAdvertiseUnit + ADVERTISING_INTERVAL_DELTA_UNIT;
             int advertiseEventType = getAdvertisingEventType(client);
             int txPowerLevel = getTxPowerLevel(client.settings);
-            int advertiseTimeoutSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(
-                    client.settings.getTimeout());
+            // The timeout left from earlier turns. The scheduler expires the
+            // client; the controller timeout only backs it up, a second later.
+            long remainingMillis = mScheduler.getRemainingMillis(client,
+                    SystemClock.elapsedRealtime());
+            int advertiseTimeoutSeconds = (remainingMillis == 0) ? 0
+                    : (int) TimeUnit.MILLISECONDS.toSeconds(remainingMillis + 999) + 1;
             if (mAdapterService.isMultiAdvertisementSupported()) {
                 gattClientEnableAdvNative(
                         clientIf,
@@ -357,82 +541,66 @@ class AdvertiseManager {
             }
         }
 
-        private void setAdvertisingData(AdvertiseClient client, AdvertiseData data,
+        // Returns true if the payload was sent, false if there is no payload or the
+        // controller already holds it.
+        private boolean setAdvertisingData(AdvertiseClient client, AdvertiseData data,
                 boolean isScanResponse) {
             if (data == null) {
-                return;
+                return false;
             }
-            boolean includeName = data.getIncludeDeviceName();
-            boolean includeTxPower = data.getIncludeTxPowerLevel();
-            int appearance = 0;
-            byte[] manufacturerData = getManufacturerData(data);
-
-            byte[] serviceData = getServiceData(data);
-            byte[] serviceUuids;
-            if (data.getServiceUuids() == null) {
-                serviceUuids = new byte[0];
-            } else {
-                ByteBuffer advertisingUuidBytes = ByteBuffer.allocate(
-                        data.getServiceUuids().size() * 16)
-                        .order(ByteOrder.LITTLE_ENDIAN);
-                for (ParcelUuid parcelUuid : data.getServiceUuids()) {
-                    UUID uuid = parcelUuid.getUuid();
-                    // Least significant bits first as the advertising UUID should be in
-                    // little-endian.
-                    advertisingUuidBytes.putLong(uuid.getLeastSignificantBits())
-                            .putLong(uuid.getMostSignificantBits());
+            AdvertisePayload payload = AdvertisePayload.from(data);
+            int key = getPayloadKey(client.clientIf, isScanResponse);
+            synchronized (mControllerPayloads) {
+                if (payload.equals(mControllerPayloads.get(key))) {
+                    mPayloadsUnchanged++;
+                    return false;
                 }
-                serviceUuids = advertisingUuidBytes.array();
+                mControllerPayloads.put(key, payload);
+                mPayloadsSent++;
             }
+            int appearance = 0;
             if (mAdapterService.isMultiAdvertisementSupported()) {
-                gattClientSetAdvDataNative(client.clientIf, isScanResponse, includeName,
-                        includeTxPower, appearance,
-                        manufacturerData, serviceData, serviceUuids);
+                gattClientSetAdvDataNative(client.clientIf, isScanResponse, payload.includeName,
+                        payload.includeTxPower, appearance,
+                        payload.manufacturerData, payload.serviceData, payload.serviceUuids);
             } else {
-                gattSetAdvDataNative(client.clientIf, isScanResponse, includeName,
-                        includeTxPower, 0, 0, appearance,
-                        manufacturerData, serviceData, serviceUuids);
-            }
-        }
-
-        // Combine manufacturer id and manufacturer data.
-        private byte[] getManufacturerData(AdvertiseData advertiseData) {
-            if (advertiseData.getManufacturerSpecificData().size() == 0) {
-                return new byte[0];
-            }
-            int manufacturerId = advertiseData.getManufacturerSpecificData().keyAt(0);
-            byte[] manufacturerData = advertiseData.getManufacturerSpecificData().get(
-                    manufacturerId);
-            int dataLen = 2 + (manufacturerData == null ? 0 : manufacturerData.length);
-            byte[] concated = new byte[dataLen];
-            // / First two bytes are manufacturer id in little-endian.
-            concated[0] = (byte) (manufacturerId & 0xFF);
-            concated[1] = (byte) ((manufacturerId >> 8) & 0xFF);
-            if (manufacturerData != null) {
-                System.arraycopy(manufacturerData, 0, concated, 2, manufacturerData.length);
-            }
-            return concated;
-        }
-
-        // Combine service UUID and service data.
-        private byte[] getServiceData(AdvertiseData advertiseData) {
-            if (advertiseData.getServiceData().isEmpty()) {
-                return new byte[0];
-            }
-            ParcelUuid uuid = advertiseData.getServiceData().keySet().iterator().next();
-            byte[] serviceData = advertiseData.getServiceData().get(uuid);
-            int dataLen = 2 + (serviceData == null ? 0 : serviceData.length);
-            byte[] concated = new byte[dataLen];
-            // Extract 16 bit UUID value.
-            int uuidValue = BluetoothUuid.getServiceIdentifierFromParcelUuid(
-                    uuid);
-            // First two bytes are service data UUID in little-endian.
-            concated[0] = (byte) (uuidValue & 0xFF);
-            concated[1] = (byte) ((uuidValue >> 8) & 0xFF);
-            if (serviceData != null) {
-                System.arraycopy(serviceData, 0, concated, 2, serviceData.length);
-            }
-            return concated;
+                gattSetAdvDataNative(client.clientIf, isScanResponse, payload.includeName,
+                        payload.includeTxPower, 0, 0, appearance,
+                        payload.manufacturerData, payload.serviceData, payload.serviceUuids);
+            }
+            return true;
+        }
+
+        // Forgets the payloads of a multi advertising instance, which the controller
+        // drops when the instance is disabled or could not be configured.
+        void forgetPayloads(int clientIf) {
+            if (!mAdapterService.isMultiAdvertisementSupported()) {
+                return;
+            }
+            synchronized (mControllerPayloads) {
+                mControllerPayloads.delete(getPayloadKey(clientIf, false));
+                mControllerPayloads.delete(getPayloadKey(clientIf, true));
+            }
+        }
+
+        void forgetAllPayloads() {
+            synchronized (mControllerPayloads) {
+                mControllerPayloads.clear();
+            }
+        }
+
+        void dump(StringBuilder sb) {
+            synchronized (mControllerPayloads) {
+                sb.append("  Advertising payloads: held " + mControllerPayloads.size()
+                        + ", sent " + mPayloadsSent + ", unchanged " + mPayloadsUnchanged
+                        + "\n");
+            }
+        }
+
+        private int getPayloadKey(int clientIf, boolean isScanResponse) {
+            int instance = mAdapterService.isMultiAdvertisementSupported() ? clientIf
+                    : LEGACY_PAYLOAD_KEY;
+            return 2 * instance + (isScanResponse ? 1 : 0);
         }
 
         // Convert settings tx power level to stack tx power level.
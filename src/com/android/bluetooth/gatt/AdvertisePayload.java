@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.AdvertiseData;
+import android.os.ParcelUuid;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Advertising data serialized once into the arguments of the native set
+ * data calls, and into the AD structures they produce.
+ *
+ * Two payloads are equal if they produce the same AD structures, so a
+ * payload the controller already holds need not be sent again. The device
+ * name and tx power are filled in by the stack and are represented by
+ * empty fields.
+ *
+ * @hide
+ */
+/* package */class AdvertisePayload {
+    private static final int TYPE_TX_POWER = 0x0A;
+
+    final boolean includeName;
+    final boolean includeTxPower;
+    // Manufacturer id followed by the manufacturer data.
+    final byte[] manufacturerData;
+    // 16-bit service data UUID followed by the service data.
+    final byte[] serviceData;
+    // 128-bit service UUIDs, little-endian.
+    final byte[] serviceUuids;
+
+    private final byte[] mEncoded;
+    private final int mHashCode;
+
+    private AdvertisePayload(boolean includeName, boolean includeTxPower,
+            byte[] manufacturerData, byte[] serviceData, byte[] serviceUuids) {
+        this.includeName = includeName;
+        this.includeTxPower = includeTxPower;
+        this.manufacturerData = manufacturerData;
+        this.serviceData = serviceData;
+        this.serviceUuids = serviceUuids;
+        mEncoded = encode();
+        mHashCode = Arrays.hashCode(mEncoded);
+    }
+
+    /**
+     * Serialize advertising data. Like the stack, only the first
+     * manufacturer and service data entries are advertised.
+     */
+    static AdvertisePayload from(AdvertiseData data) {
+        return new AdvertisePayload(data.getIncludeDeviceName(),
+                data.getIncludeTxPowerLevel(), getManufacturerData(data),
+                getServiceData(data), getServiceUuids(data));
+    }
+
+    /**
+     * Returns the AD structures of the payload.
+     */
+    byte[] getEncoded() {
+        return mEncoded;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        return Arrays.equals(mEncoded, ((AdvertisePayload) obj).mEncoded);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    private byte[] encode() {
+        int length = (includeName ? 2 : 0) + (includeTxPower ? 2 : 0)
+                + fieldLength(serviceUuids) + fieldLength(serviceData)
+                + fieldLength(manufacturerData);
+        byte[] encoded = new byte[length];
+        int offset = 0;
+        if (includeName) {
+            offset = putField(encoded, offset, AdvertisementParser.TYPE_NAME_COMPLETE, null);
+        }
+        if (includeTxPower) {
+            offset = putField(encoded, offset, TYPE_TX_POWER, null);
+        }
+        offset = putField(encoded, offset, AdvertisementParser.TYPE_UUID128, serviceUuids);
+        offset = putField(encoded, offset, AdvertisementParser.TYPE_SERVICE_DATA_UUID16,
+                serviceData);
+        putField(encoded, offset, AdvertisementParser.TYPE_MANUFACTURER_SPECIFIC_DATA,
+                manufacturerData);
+        return encoded;
+    }
+
+    private static int fieldLength(byte[] value) {
+        return value.length == 0 ? 0 : value.length + 2;
+    }
+
+    private static int putField(byte[] encoded, int offset, int type, byte[] value) {
+        if (value == null) {
+            encoded[offset++] = 1;
+            encoded[offset++] = (byte) type;
+            return offset;
+        }
+        if (value.length == 0) return offset;
+        encoded[offset++] = (byte) (value.length + 1);
+        encoded[offset++] = (byte) type;
+        System.arraycopy(value, 0, encoded, offset, value.length);
+        return offset + value.length;
+    }
+
+    // Combine manufacturer id and manufacturer data.
+    private static byte[] getManufacturerData(AdvertiseData advertiseData) {
+        if (advertiseData.getManufacturerSpecificData().size() == 0) {
+            return new byte[0];
+        }
+        int manufacturerId = advertiseData.getManufacturerSpecificData().keyAt(0);
+        byte[] manufacturerData = advertiseData.getManufacturerSpecificData().get(
+                manufacturerId);
+        int dataLen = 2 + (manufacturerData == null ? 0 : manufacturerData.length);
+        byte[] concated = new byte[dataLen];
+        // / First two bytes are manufacturer id in little-endian.
+        AdvertisementParser.writeLittleEndian(manufacturerId, concated, 0, 2);
+        if (manufacturerData != null) {
+            System.arraycopy(manufacturerData, 0, concated, 2, manufacturerData.length);
+        }
+        return concated;
+    }
+
+    // Combine service UUID and service data.
+    private static byte[] getServiceData(AdvertiseData advertiseData) {
+        if (advertiseData.getServiceData().isEmpty()) {
+            return new byte[0];
+        }
+        ParcelUuid uuid = advertiseData.getServiceData().keySet().iterator().next();
+        byte[] serviceData = advertiseData.getServiceData().get(uuid);
+        int dataLen = 2 + (serviceData == null ? 0 : serviceData.length);
+        byte[] concated = new byte[dataLen];
+        // First two bytes are the 16 bit service data UUID in little-endian.
+        AdvertisementParser.writeLittleEndian(uuid.getUuid().getMostSignificantBits() >>> 32,
+                concated, 0, 2);
+        if (serviceData != null) {
+            System.arraycopy(serviceData, 0, concated, 2, serviceData.length);
+        }
+        return concated;
+    }
+
+    private static byte[] getServiceUuids(AdvertiseData advertiseData) {
+        List<ParcelUuid> uuids = advertiseData.getServiceUuids();
+        if (uuids == null) {
+            return new byte[0];
+        }
+        byte[] serviceUuids = new byte[uuids.size() * 16];
+        int offset = 0;
+        for (ParcelUuid parcelUuid : uuids) {
+            // The advertising UUID should be in little-endian.
+            AdvertisementParser.writeUuid(parcelUuid.getUuid(), serviceUuids, offset);
+            offset += 16;
+        }
+        return serviceUuids;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.AdvertiseSettings;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares the controller advertising instances among advertise clients.
+ *
+ * While there are free instances every client is resident and advertises
+ * continuously. Clients beyond the number of instances wait in a round robin
+ * queue. When clients are waiting, each resident client keeps its instance
+ * for one turn before it is swapped with the first waiting client. A turn
+ * covers the same number of advertising events for every advertise mode, so
+ * each client gets airtime at the rate of its own interval class; clients
+ * keep their own interval and tx power while resident.
+ *
+ * The advertising timeout of a client only runs down while it is resident.
+ * The time left is tracked across turns, and a resident client whose time
+ * is used up is expired instead of being queued for another turn.
+ *
+ * @hide
+ */
+/* package */class AdvertiseScheduler {
+    static final int ADMITTED = 0;
+    static final int QUEUED = 1;
+    static final int REJECTED = 2;
+
+    // Advertising events a client is given per turn.
+    static final int EVENTS_PER_TURN = 10;
+    static final int MAX_WAITING_CLIENTS = 16;
+
+    /**
+     * Clients to swap on the controller.
+     */
+    static class Rotation {
+        final List<AdvertiseClient> stop = new ArrayList<AdvertiseClient>();
+        final List<AdvertiseClient> start = new ArrayList<AdvertiseClient>();
+        // Clients whose advertising timeout is used up.
+        final List<AdvertiseClient> expired = new ArrayList<AdvertiseClient>();
+    }
+
+    private static class Entry {
+        final AdvertiseClient client;
+        final long turnMillis;
+        final boolean hasTimeout;
+        // Advertising time left as of sinceMillis, if the client has a timeout.
+        long remainingMillis;
+        // When the client became resident.
+        long sinceMillis;
+
+        Entry(AdvertiseClient client) {
+            this.client = client;
+            this.turnMillis = getTurnMillis(client.settings);
+            long timeout = (client.settings == null) ? 0 : client.settings.getTimeout();
+            this.hasTimeout = timeout > 0;
+            this.remainingMillis = timeout;
+        }
+
+        long getRemainingMillis(long nowMillis) {
+            return remainingMillis - (nowMillis - sinceMillis);
+        }
+    }
+
+    private final List<Entry> mResidents = new ArrayList<Entry>();
+    private final ArrayDeque<Entry> mWaiting = new ArrayDeque<Entry>();
+
+    // Metrics.
+    private long mRotations;
+    private long mExpired;
+    private int mMaxWaiting;
+
+    /**
+     * Add a client.
+     *
+     * @param capacity number of advertising instances of the controller
+     * @return ADMITTED if the client should be started now, QUEUED if it
+     *         waits for its turn, or REJECTED if the waiting queue is full
+     */
+    synchronized int add(AdvertiseClient client, int capacity, long nowMillis) {
+        Entry entry = new Entry(client);
+        if (mResidents.size() < capacity) {
+            entry.sinceMillis = nowMillis;
+            mResidents.add(entry);
+            return ADMITTED;
+        }
+        if (mWaiting.size() >= MAX_WAITING_CLIENTS) return REJECTED;
+        mWaiting.add(entry);
+        if (mWaiting.size() > mMaxWaiting) mMaxWaiting = mWaiting.size();
+        return QUEUED;
+    }
+
+    /**
+     * Remove a client. A freed instance is handed out by the next rotate().
+     */
+    synchronized void remove(AdvertiseClient client) {
+        int i = indexOfResident(client.clientIf);
+        if (i >= 0) {
+            mResidents.remove(i);
+        } else {
+            Entry entry = getWaiting(client.clientIf);
+            if (entry != null) mWaiting.remove(entry);
+        }
+    }
+
+    synchronized boolean isResident(AdvertiseClient client) {
+        return indexOfResident(client.clientIf) >= 0;
+    }
+
+    synchronized boolean isWaiting(AdvertiseClient client) {
+        return getWaiting(client.clientIf) != null;
+    }
+
+    /**
+     * Returns the advertising time left of a resident client, or 0 if it has
+     * no timeout or is not resident.
+     */
+    synchronized long getRemainingMillis(AdvertiseClient client, long nowMillis) {
+        int i = indexOfResident(client.clientIf);
+        if (i < 0) return 0;
+        Entry entry = mResidents.get(i);
+        return entry.hasTimeout ? Math.max(1, entry.getRemainingMillis(nowMillis)) : 0;
+    }
+
+    /**
+     * Expire resident clients whose advertising time is used up, hand free
+     * instances to waiting clients, then swap resident clients whose turn is
+     * over with waiting clients.
+     */
+    synchronized Rotation rotate(int capacity, long nowMillis) {
+        Rotation rotation = new Rotation();
+        for (int i = 0; i < mResidents.size(); ) {
+            Entry resident = mResidents.get(i);
+            if (!resident.hasTimeout || resident.getRemainingMillis(nowMillis) > 0) {
+                ++i;
+                continue;
+            }
+            mResidents.remove(i);
+            rotation.expired.add(resident.client);
+            mExpired++;
+        }
+        while (mResidents.size() < capacity && !mWaiting.isEmpty()) {
+            rotation.start.add(admit(mWaiting.poll(), nowMillis));
+        }
+        // Residents are in admission order, so the longest resident goes first.
+        for (int i = 0; i < mResidents.size() && !mWaiting.isEmpty(); ) {
+            Entry resident = mResidents.get(i);
+            if (nowMillis - resident.sinceMillis < resident.turnMillis) {
+                ++i;
+                continue;
+            }
+            mResidents.remove(i);
+            resident.remainingMillis = resident.getRemainingMillis(nowMillis);
+            mWaiting.add(resident);
+            rotation.stop.add(resident.client);
+
+            rotation.start.add(admit(mWaiting.poll(), nowMillis));
+            mRotations++;
+        }
+        return rotation;
+    }
+
+    /**
+     * Returns when the next turn ends or the next resident client times
+     * out, or -1 if neither is due.
+     */
+    synchronized long getNextRotationMillis() {
+        long next = Long.MAX_VALUE;
+        for (Entry resident : mResidents) {
+            if (!mWaiting.isEmpty()) {
+                next = Math.min(next, resident.sinceMillis + resident.turnMillis);
+            }
+            if (resident.hasTimeout) {
+                next = Math.min(next, resident.sinceMillis + resident.remainingMillis);
+            }
+        }
+        return next == Long.MAX_VALUE ? -1 : next;
+    }
+
+    synchronized void clear() {
+        mResidents.clear();
+        mWaiting.clear();
+    }
+
+    synchronized void dump(StringBuilder sb, long nowMillis) {
+        sb.append("  Advertising instances: " + mResidents.size() + " resident, "
+                + mWaiting.size() + " waiting (max " + mMaxWaiting + "), rotations "
+                + mRotations + ", expired " + mExpired + "\n");
+        for (Entry resident : mResidents) {
+            sb.append("    clientIf " + resident.client.clientIf + ": resident "
+                    + (nowMillis - resident.sinceMillis) + "ms, turn "
+                    + resident.turnMillis + "ms"
+                    + (resident.hasTimeout ? ", " + resident.getRemainingMillis(nowMillis)
+                            + "ms left" : "") + "\n");
+        }
+        for (Entry entry : mWaiting) {
+            sb.append("    clientIf " + entry.client.clientIf + ": waiting"
+                    + (entry.hasTimeout ? ", " + entry.remainingMillis + "ms left" : "")
+                    + "\n");
+        }
+    }
+
+    private AdvertiseClient admit(Entry entry, long nowMillis) {
+        entry.sinceMillis = nowMillis;
+        mResidents.add(entry);
+        return entry.client;
+    }
+
+    private int indexOfResident(int clientIf) {
+        for (int i = 0; i < mResidents.size(); ++i) {
+            if (mResidents.get(i).client.clientIf == clientIf) return i;
+        }
+        return -1;
+    }
+
+    private Entry getWaiting(int clientIf) {
+        for (Entry entry : mWaiting) {
+            if (entry.client.clientIf == clientIf) return entry;
+        }
+        return null;
+    }
+
+    // The advertising interval of each mode times the events per turn.
+    private static long getTurnMillis(AdvertiseSettings settings) {
+        int mode = (settings == null) ? AdvertiseSettings.ADVERTISE_MODE_LOW_POWER
+                : settings.getMode();
+        switch (mode) {
+            case AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY:
+                return 100 * EVENTS_PER_TURN;
+            case AdvertiseSettings.ADVERTISE_MODE_BALANCED:
+                return 250 * EVENTS_PER_TURN;
+            default:
+                return 1000 * EVENTS_PER_TURN;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.UUID;
+
+/**
+ * Reusable view of the fields of raw advertising data.
+ *
+ * Service UUIDs of all widths are expanded against the Bluetooth base UUID
+ * and packed as two longs each, most significant bits first. Service data,
+ * manufacturer data and the local name are exposed as offsets into the
+ * parsed buffer; nothing is copied. The view only grows its arrays, so
+ * parsing advertisements of a known size does not allocate.
+ *
+ * A parser is not thread safe, and the view is only valid until the next
+ * call to parse().
+ *
+ * @hide
+ */
+/* package */class AdvertisementParser {
+    static final long BASE_UUID_MSB = 0x0000000000001000L;
+    static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    static final int TYPE_UUID16 = 0x03;
+    static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    static final int TYPE_UUID32 = 0x05;
+    static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    static final int TYPE_UUID128 = 0x07;
+    static final int TYPE_NAME_SHORT = 0x08;
+    static final int TYPE_NAME_COMPLETE = 0x09;
+    static final int TYPE_SERVICE_DATA_UUID16 = 0x16;
+    static final int TYPE_SERVICE_DATA_UUID32 = 0x20;
+    static final int TYPE_SERVICE_DATA_UUID128 = 0x21;
+    static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    private byte[] mData;
+    private int mNameOffset;
+    private int mNameLength;
+    private long[] mUuids = new long[0];
+    private int mUuidCount;
+    private long[] mDataUuids = new long[0];
+    private int[] mDataOffsets = new int[0];
+    private int[] mDataLengths = new int[0];
+    private int mDataCount;
+    private int[] mManufacturerIds = new int[0];
+    private int[] mManufacturerOffsets = new int[0];
+    private int[] mManufacturerLengths = new int[0];
+    private int mManufacturerCount;
+
+    /**
+     * Parse the advertising data stored in a region of a buffer.
+     */
+    void parse(byte[] data, int offset, int length) {
+        parse(data, offset, length, offset, 0);
+    }
+
+    /**
+     * Parse an advertising packet and its scan response, stored in separate
+     * regions of the same buffer.
+     */
+    void parse(byte[] data, int advOffset, int advLength, int scanResponseOffset,
+            int scanResponseLength) {
+        mData = data;
+        mNameOffset = -1;
+        mNameLength = 0;
+        mUuidCount = 0;
+        mDataCount = 0;
+        mManufacturerCount = 0;
+        ensureCapacity(advLength + scanResponseLength);
+        parseFields(data, advOffset, advLength);
+        parseFields(data, scanResponseOffset, scanResponseLength);
+    }
+
+    /**
+     * Drop the reference to the parsed buffer.
+     */
+    void reset() {
+        mData = null;
+        mUuidCount = 0;
+        mDataCount = 0;
+        mManufacturerCount = 0;
+        mNameOffset = -1;
+        mNameLength = 0;
+    }
+
+    byte[] getData() {
+        return mData;
+    }
+
+    int getUuidCount() {
+        return mUuidCount;
+    }
+
+    long getUuidMsb(int i) {
+        return mUuids[2 * i];
+    }
+
+    long getUuidLsb(int i) {
+        return mUuids[2 * i + 1];
+    }
+
+    boolean containsUuid(long msb, long lsb) {
+        for (int i = 0; i < mUuidCount; ++i) {
+            if (mUuids[2 * i] == msb && mUuids[2 * i + 1] == lsb) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the offset of the local name, or -1 if none was advertised.
+     */
+    int getNameOffset() {
+        return mNameOffset;
+    }
+
+    int getNameLength() {
+        return mNameLength;
+    }
+
+    int getServiceDataCount() {
+        return mDataCount;
+    }
+
+    long getServiceDataUuidMsb(int i) {
+        return mDataUuids[2 * i];
+    }
+
+    long getServiceDataUuidLsb(int i) {
+        return mDataUuids[2 * i + 1];
+    }
+
+    /**
+     * Returns the offset of the i-th service data, after its UUID.
+     */
+    int getServiceDataOffset(int i) {
+        return mDataOffsets[i];
+    }
+
+    int getServiceDataLength(int i) {
+        return mDataLengths[i];
+    }
+
+    int getManufacturerCount() {
+        return mManufacturerCount;
+    }
+
+    int getManufacturerId(int i) {
+        return mManufacturerIds[i];
+    }
+
+    /**
+     * Returns the offset of the i-th manufacturer data, after the company id.
+     */
+    int getManufacturerOffset(int i) {
+        return mManufacturerOffsets[i];
+    }
+
+    int getManufacturerLength(int i) {
+        return mManufacturerLengths[i];
+    }
+
+    private void parseFields(byte[] data, int start, int length) {
+        int limit = start + length;
+        int offset = start;
+        while (offset + 1 < limit) {
+            int len = data[offset++] & 0xFF;
+            if (len == 0 || offset + len > limit) break;
+
+            int type = data[offset++] & 0xFF;
+            int end = offset + len - 1;
+            switch (type) {
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16:
+                    for (; offset + 2 <= end; offset += 2) {
+                        addUuid(BASE_UUID_MSB | (readLittleEndian(data, offset, 2) << 32),
+                                BASE_UUID_LSB);
+                    }
+                    break;
+
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32:
+                    for (; offset + 4 <= end; offset += 4) {
+                        addUuid(BASE_UUID_MSB | (readLittleEndian(data, offset, 4) << 32),
+                                BASE_UUID_LSB);
+                    }
+                    break;
+
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128:
+                    for (; offset + 16 <= end; offset += 16) {
+                        addUuid(readLittleEndian(data, offset + 8, 8),
+                                readLittleEndian(data, offset, 8));
+                    }
+                    break;
+
+                case TYPE_NAME_SHORT:
+                case TYPE_NAME_COMPLETE:
+                    mNameOffset = offset;
+                    mNameLength = end - offset;
+                    break;
+
+                case TYPE_SERVICE_DATA_UUID16:
+                    addServiceData(data, offset, end, 2);
+                    break;
+
+                case TYPE_SERVICE_DATA_UUID32:
+                    addServiceData(data, offset, end, 4);
+                    break;
+
+                case TYPE_SERVICE_DATA_UUID128:
+                    addServiceData(data, offset, end, 16);
+                    break;
+
+                case TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (end - offset >= 2) {
+                        int i = mManufacturerCount++;
+                        mManufacturerIds[i] = (int) readLittleEndian(data, offset, 2);
+                        mManufacturerOffsets[i] = offset + 2;
+                        mManufacturerLengths[i] = end - offset - 2;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+            offset = end;
+        }
+    }
+
+    private void addUuid(long msb, long lsb) {
+        mUuids[2 * mUuidCount] = msb;
+        mUuids[2 * mUuidCount + 1] = lsb;
+        mUuidCount++;
+    }
+
+    private void addServiceData(byte[] data, int offset, int end, int uuidLength) {
+        if (end - offset < uuidLength) return;
+        int i = mDataCount++;
+        if (uuidLength == 16) {
+            mDataUuids[2 * i] = readLittleEndian(data, offset + 8, 8);
+            mDataUuids[2 * i + 1] = readLittleEndian(data, offset, 8);
+        } else {
+            mDataUuids[2 * i] = BASE_UUID_MSB | (readLittleEndian(data, offset, uuidLength) << 32);
+            mDataUuids[2 * i + 1] = BASE_UUID_LSB;
+        }
+        mDataOffsets[i] = offset + uuidLength;
+        mDataLengths[i] = end - offset - uuidLength;
+    }
+
+    // Every field takes at least two bytes, so half the payload length bounds
+    // the number of fields and of 16-bit UUIDs.
+    private void ensureCapacity(int length) {
+        int fields = length / 2 + 1;
+        if (mManufacturerIds.length >= fields) return;
+        mUuids = new long[2 * fields];
+        mDataUuids = new long[2 * fields];
+        mDataOffsets = new int[fields];
+        mDataLengths = new int[fields];
+        mManufacturerIds = new int[fields];
+        mManufacturerOffsets = new int[fields];
+        mManufacturerLengths = new int[fields];
+    }
+
+    static long readLittleEndian(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; --i) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    static void writeLittleEndian(long value, byte[] data, int offset, int length) {
+        for (int i = 0; i < length; ++i) {
+            data[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    /**
+     * Write a UUID in its 128-bit over the air form, least significant byte
+     * first.
+     */
+    static void writeUuid(UUID uuid, byte[] data, int offset) {
+        writeLittleEndian(uuid.getLeastSignificantBits(), data, offset, 8);
+        writeLittleEndian(uuid.getMostSignificantBits(), data, offset + 8, 8);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+/**
+ * Cursor over a batch scan report buffer as delivered by the stack. Fields of
+ * the current record are read in place; nothing is copied until a caller asks
+ * for the scan record bytes.
+ *
+ * Truncated records are a fixed {@link #TRUNCATED_RECORD_SIZE} bytes:
+ * address(6) address type(1) tx power(1) rssi(1) timestamp(2).
+ * Full records use the same header followed by a length-prefixed advertising
+ * packet and a length-prefixed scan response packet.
+ *
+ * @hide
+ */
+/* package */class BatchScanReportReader {
+    static final int TRUNCATED_RECORD_SIZE = 11;
+
+    private static final int ADDRESS_LENGTH = 6;
+    private static final int HEADER_LENGTH = 11;
+    private static final int OFFSET_ADDRESS_TYPE = 6;
+    private static final int OFFSET_TX_POWER = 7;
+    private static final int OFFSET_RSSI = 8;
+    private static final int OFFSET_TIMESTAMP = 9;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final byte[] mData;
+    private final boolean mTruncated;
+    private final int mNumRecords;
+
+    private int mRecordsRead;
+    private int mNextPosition;
+
+    // Current record.
+    private int mRecordStart = -1;
+    private int mAdvertiseOffset;
+    private int mAdvertiseLength;
+    private int mScanResponseOffset;
+    private int mScanResponseLength;
+
+    private final char[] mAddressChars = new char[ADDRESS_LENGTH * 3 - 1];
+
+    /**
+     * @param truncated whether the buffer holds truncated records
+     * @param data the batch report buffer
+     * @param numRecords number of records reported by the stack; full reports
+     *        are read until the end of the buffer
+     */
+    BatchScanReportReader(boolean truncated, byte[] data, int numRecords) {
+        mData = data;
+        mTruncated = truncated;
+        mNumRecords = numRecords;
+    }
+
+    /**
+     * Advance to the next record.
+     *
+     * @return false when no complete record is left
+     */
+    boolean next() {
+        int start = mNextPosition;
+        if (mTruncated) {
+            if (mRecordsRead >= mNumRecords || start + TRUNCATED_RECORD_SIZE > mData.length) {
+                return false;
+            }
+            mAdvertiseOffset = mScanResponseOffset = start + TRUNCATED_RECORD_SIZE;
+            mAdvertiseLength = mScanResponseLength = 0;
+            mNextPosition = start + TRUNCATED_RECORD_SIZE;
+        } else {
+            int position = start + HEADER_LENGTH;
+            if (position >= mData.length) return false;
+            mAdvertiseLength = mData[position++] & 0xFF;
+            mAdvertiseOffset = position;
+            position += mAdvertiseLength;
+            if (position >= mData.length) return false;
+            mScanResponseLength = mData[position++] & 0xFF;
+            mScanResponseOffset = position;
+            position += mScanResponseLength;
+            if (position > mData.length) return false;
+            mNextPosition = position;
+        }
+        mRecordStart = start;
+        mRecordsRead++;
+        return true;
+    }
+
+    /**
+     * Returns the device address of the current record, formatted as
+     * XX:XX:XX:XX:XX:XX. The stack reports addresses in reverse byte order.
+     */
+    String getAddress() {
+        int pos = 0;
+        for (int i = ADDRESS_LENGTH - 1; i >= 0; --i) {
+            int b = mData[mRecordStart + i] & 0xFF;
+            if (pos > 0) mAddressChars[pos++] = ':';
+            mAddressChars[pos++] = HEX_DIGITS[b >> 4];
+            mAddressChars[pos++] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(mAddressChars);
+    }
+
+    int getAddressType() {
+        return mData[mRecordStart + OFFSET_ADDRESS_TYPE];
+    }
+
+    int getTxPower() {
+        return mData[mRecordStart + OFFSET_TX_POWER];
+    }
+
+    int getRssi() {
+        return mData[mRecordStart + OFFSET_RSSI];
+    }
+
+    /**
+     * Returns the raw timestamp of the current record, in 50ms units.
+     */
+    int getTimestampUnits() {
+        int offset = mRecordStart + OFFSET_TIMESTAMP;
+        return (mData[offset] & 0xFF) | ((mData[offset + 1] & 0xFF) << 8);
+    }
+
+    byte[] getData() {
+        return mData;
+    }
+
+    int getAdvertiseOffset() {
+        return mAdvertiseOffset;
+    }
+
+    int getAdvertiseLength() {
+        return mAdvertiseLength;
+    }
+
+    int getScanResponseOffset() {
+        return mScanResponseOffset;
+    }
+
+    int getScanResponseLength() {
+        return mScanResponseLength;
+    }
+
+    /**
+     * Copy the advertising packet followed by the scan response of the
+     * current record into a new array.
+     */
+    byte[] copyScanRecord() {
+        byte[] scanRecord = new byte[mAdvertiseLength + mScanResponseLength];
+        System.arraycopy(mData, mAdvertiseOffset, scanRecord, 0, mAdvertiseLength);
+        System.arraycopy(mData, mScanResponseOffset, scanRecord, mAdvertiseLength,
+                mScanResponseLength);
+        return scanRecord;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.SystemClock;
+
+/**
+ * Ring buffer of app callbacks held while the transport is congested.
+ *
+ * Queued callbacks are write and notification completions that the app
+ * waits for before issuing its next operation, so none is ever dropped or
+ * merged: the buffer doubles when it is full. Its depth is bounded by the
+ * operations the app has outstanding.
+ *
+ * Blocking the writer is deliberately not offered: callbacks are queued
+ * and drained on the same stack callback thread.
+ *
+ * @hide
+ */
+/* package */class CongestionQueue {
+    static final int DEFAULT_CAPACITY = 16;
+
+    private CallbackInfo[] mCallbacks;
+    private long[] mQueuedMillis;
+    private int mHead;
+    private int mSize;
+
+    // Metrics.
+    private int mMaxDepth;
+    private long mDrained;
+    private long mTotalDrainLatencyMillis;
+    private long mMaxDrainLatencyMillis;
+    private long mCongestedSinceMillis = -1;
+    private long mTotalCongestedMillis;
+
+    CongestionQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    CongestionQueue(int capacity) {
+        mCallbacks = new CallbackInfo[Math.max(capacity, 1)];
+        mQueuedMillis = new long[mCallbacks.length];
+    }
+
+    /**
+     * Queue a callback until congestion clears.
+     */
+    synchronized void add(CallbackInfo callbackInfo) {
+        if (mSize == mCallbacks.length) grow();
+        int tail = (mHead + mSize) % mCallbacks.length;
+        mCallbacks[tail] = callbackInfo;
+        mQueuedMillis[tail] = SystemClock.elapsedRealtime();
+        mSize++;
+        if (mSize > mMaxDepth) mMaxDepth = mSize;
+    }
+
+    /**
+     * Remove and return the oldest queued callback, or null if the queue is
+     * empty.
+     */
+    synchronized CallbackInfo poll() {
+        if (mSize == 0) return null;
+        CallbackInfo callbackInfo = mCallbacks[mHead];
+        long latency = SystemClock.elapsedRealtime() - mQueuedMillis[mHead];
+        mCallbacks[mHead] = null;
+        mHead = (mHead + 1) % mCallbacks.length;
+        mSize--;
+
+        mDrained++;
+        mTotalDrainLatencyMillis += latency;
+        if (latency > mMaxDrainLatencyMillis) mMaxDrainLatencyMillis = latency;
+        return callbackInfo;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Track transitions of the transport congestion state.
+     */
+    synchronized void setCongested(boolean congested) {
+        long now = SystemClock.elapsedRealtime();
+        if (congested && mCongestedSinceMillis < 0) {
+            mCongestedSinceMillis = now;
+        } else if (!congested && mCongestedSinceMillis >= 0) {
+            mTotalCongestedMillis += now - mCongestedSinceMillis;
+            mCongestedSinceMillis = -1;
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        long congestedMillis = mTotalCongestedMillis;
+        if (mCongestedSinceMillis >= 0) {
+            congestedMillis += SystemClock.elapsedRealtime() - mCongestedSinceMillis;
+        }
+        sb.append("  Congestion queue: depth " + mSize + ", max depth " + mMaxDepth
+                + ", capacity " + mCallbacks.length + "\n");
+        sb.append("  Congested: " + congestedMillis + "ms, drained " + mDrained
+                + ", drain latency avg "
+                + (mDrained == 0 ? 0 : mTotalDrainLatencyMillis / mDrained)
+                + "ms max " + mMaxDrainLatencyMillis + "ms\n");
+    }
+
+    // Double the capacity, moving the queued callbacks to the front.
+    private void grow() {
+        int capacity = mCallbacks.length * 2;
+        CallbackInfo[] callbacks = new CallbackInfo[capacity];
+        long[] queuedMillis = new long[capacity];
+        for (int i = 0; i < mSize; ++i) {
+            int pos = (mHead + i) % mCallbacks.length;
+            callbacks[i] = mCallbacks[pos];
+            queuedMillis[i] = mQueuedMillis[pos];
+        }
+        mCallbacks = callbacks;
+        mQueuedMillis = queuedMillis;
+        mHead = 0;
+    }
+}
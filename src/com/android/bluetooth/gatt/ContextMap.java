@@ -20,6 +20,7 @@ import android.os.IBinder.DeathRecipient;
 import android.os.IInterface;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -71,7 +72,7 @@ import java.util.UUID;
         Boolean isCongested = false;
 
         /** Internal callback info queue, waiting to be send on congestion clear */
-        private List<CallbackInfo> congestionQueue = new ArrayList<CallbackInfo>();
+        private final CongestionQueue congestionQueue = new CongestionQueue();
 
         /**
          * Creates a new app context.
@@ -108,13 +109,17 @@ import java.util.UUID;
             }
         }
 
+        void setCongested(boolean congested) {
+            isCongested = congested;
+            congestionQueue.setCongested(congested);
+        }
+
         void queueCallback(CallbackInfo callbackInfo) {
             congestionQueue.add(callbackInfo);
         }
 
         CallbackInfo popQueuedCallback() {
-            if (congestionQueue.size() == 0) return null;
-            return congestionQueue.remove(0);
+            return congestionQueue.poll();
         }
     }
 
@@ -124,6 +129,17 @@ import java.util.UUID;
     /** Internal list of connected devices **/
     Set<Connection> mConnections = new HashSet<Connection>();
 
+    /**
+     * Registered applications indexed by application ID. Kept in sync with
+     * mApps so that callbacks can resolve their app without a list scan.
+     */
+    private SparseArray<App> mAppsById = new SparseArray<App>();
+
+    /**
+     * Connections indexed by connection ID. Kept in sync with mConnections.
+     */
+    private SparseArray<Connection> mConnectionsById = new SparseArray<Connection>();
+
     /**
      * Add an entry to the application context list.
      */
@@ -144,6 +160,7 @@ import java.util.UUID;
                 if (entry.uuid.equals(uuid)) {
                     entry.unlinkToDeath();
                     i.remove();
+                    if (mAppsById.get(entry.id) == entry) mAppsById.remove(entry.id);
                     break;
                 }
             }
@@ -161,12 +178,24 @@ import java.util.UUID;
                 if (entry.id == id) {
                     entry.unlinkToDeath();
                     i.remove();
+                    if (mAppsById.get(id) == entry) mAppsById.remove(id);
                     break;
                 }
             }
         }
     }
 
+    /**
+     * Assign the application ID handed out by the stack on registration.
+     */
+    void setAppId(App app, int id) {
+        synchronized (mApps) {
+            if (mAppsById.get(app.id) == app) mAppsById.remove(app.id);
+            app.id = id;
+            mAppsById.put(id, app);
+        }
+    }
+
     /**
      * Add a new connection for a given application ID.
      */
@@ -174,7 +203,11 @@ import java.util.UUID;
         synchronized (mConnections) {
             App entry = getById(id);
             if (entry != null){
-                mConnections.add(new Connection(connId, address, id));
+                Connection connection = new Connection(connId, address, id);
+                Connection previous = mConnectionsById.get(connId);
+                if (previous != null) mConnections.remove(previous);
+                mConnections.add(connection);
+                mConnectionsById.put(connId, connection);
             }
         }
     }
@@ -184,13 +217,10 @@ import java.util.UUID;
      */
     void removeConnection(int id, int connId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while(i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
-                }
+            Connection connection = mConnectionsById.get(connId);
+            if (connection != null) {
+                mConnectionsById.remove(connId);
+                mConnections.remove(connection);
             }
         }
     }
@@ -199,13 +229,9 @@ import java.util.UUID;
      * Get an application context by ID.
      */
     App getById(int id) {
-        Iterator<App> i = mApps.iterator();
-        while(i.hasNext()) {
-            App entry = i.next();
-            if (entry.id == id) return entry;
-        }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        App entry = mAppsById.get(id);
+        if (entry == null) Log.e(TAG, "Context not found for ID " + id);
+        return entry;
     }
 
     /**
@@ -238,14 +264,9 @@ import java.util.UUID;
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        Iterator<Connection> ii = mConnections.iterator();
-        while(ii.hasNext()) {
-            Connection connection = ii.next();
-            if (connection.connId == connId){
-                return getById(connection.appId);
-            }
-        }
-        return null;
+        Connection connection = mConnectionsById.get(connId);
+        if (connection == null) return null;
+        return getById(connection.appId);
     }
 
     /**
@@ -268,12 +289,9 @@ import java.util.UUID;
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        Iterator<Connection> i = mConnections.iterator();
-        while(i.hasNext()) {
-            Connection connection = i.next();
-            if (connection.connId == connId) return connection.address;
-        }
-        return null;
+        Connection connection = mConnectionsById.get(connId);
+        if (connection == null) return null;
+        return connection.address;
     }
 
     List<Connection> getConnectionByApp(int appId) {
@@ -298,10 +316,12 @@ import java.util.UUID;
                 entry.unlinkToDeath();
                 i.remove();
             }
+            mAppsById.clear();
         }
 
         synchronized (mConnections) {
             mConnections.clear();
+            mConnectionsById.clear();
         }
     }
 
@@ -319,6 +339,7 @@ import java.util.UUID;
             sb.append("\n  Application Id: " + entry.id + "\n");
             sb.append("  UUID: " + entry.uuid + "\n");
             sb.append("  Connections: " + connections.size() + "\n");
+            entry.congestionQueue.dump(sb);
 
             Iterator<Connection> ii = connections.iterator();
             while(ii.hasNext()) {
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Queues batches of characteristic and descriptor reads and writes per
+ * client connection.
+ *
+ * The stack handles one operation per connection at a time, so the ops of
+ * a batch are issued one after another as each completes, and batches for
+ * the same connection run in the order they were submitted. The results of
+ * a batch are reported together once its last op completed.
+ *
+ * Single reads and writes of the app are tracked too, so
+ * that only one op is with the stack per connection and each completion
+ * is attributed to the right op. A single op is only issued directly when
+ * the connection is idle; otherwise it has to be queued as a batch of its
+ * own. Each connection with an op in flight has at most one timer armed,
+ * so that an op whose completion never comes can be expired.
+ *
+ * @hide
+ */
+/* package */class GattBatchQueue {
+    static final int OP_READ_CHARACTERISTIC = 0;
+    static final int OP_WRITE_CHARACTERISTIC = 1;
+    static final int OP_READ_DESCRIPTOR = 2;
+    static final int OP_WRITE_DESCRIPTOR = 3;
+
+    /**
+     * Receives the results of a batch, in the order of its ops.
+     */
+    interface Callback {
+        void onBatchComplete(String address, List<Result> results);
+    }
+
+    /**
+     * A single characteristic or descriptor read or write.
+     */
+    static class Op {
+        final int type;
+        final int srvcType;
+        final int srvcInstId;
+        final UUID srvcUuid;
+        final int charInstId;
+        final UUID charUuid;
+        // Only set for descriptor ops.
+        final int descrInstId;
+        final UUID descrUuid;
+        final int writeType;
+        final int authReq;
+        final byte[] value;
+
+        private Op(int type, int srvcType, int srvcInstId, UUID srvcUuid, int charInstId,
+                UUID charUuid, int descrInstId, UUID descrUuid, int writeType, int authReq,
+                byte[] value) {
+            this.type = type;
+            this.srvcType = srvcType;
+            this.srvcInstId = srvcInstId;
+            this.srvcUuid = srvcUuid;
+            this.charInstId = charInstId;
+            this.charUuid = charUuid;
+            this.descrInstId = descrInstId;
+            this.descrUuid = descrUuid;
+            this.writeType = writeType;
+            this.authReq = authReq;
+            this.value = value;
+        }
+
+        static Op read(int srvcType, int srvcInstId, UUID srvcUuid, int charInstId,
+                UUID charUuid, int authReq) {
+            return new Op(OP_READ_CHARACTERISTIC, srvcType, srvcInstId, srvcUuid,
+                    charInstId, charUuid, 0, null, 0, authReq, null);
+        }
+
+        static Op write(int srvcType, int srvcInstId, UUID srvcUuid, int charInstId,
+                UUID charUuid, int writeType, int authReq, byte[] value) {
+            return new Op(OP_WRITE_CHARACTERISTIC, srvcType, srvcInstId, srvcUuid,
+                    charInstId, charUuid, 0, null, writeType, authReq, value);
+        }
+
+        static Op readDescriptor(int srvcType, int srvcInstId, UUID srvcUuid,
+                int charInstId, UUID charUuid, int descrInstId, UUID descrUuid,
+                int authReq) {
+            return new Op(OP_READ_DESCRIPTOR, srvcType, srvcInstId, srvcUuid,
+                    charInstId, charUuid, descrInstId, descrUuid, 0, authReq, null);
+        }
+
+        static Op writeDescriptor(int srvcType, int srvcInstId, UUID srvcUuid,
+                int charInstId, UUID charUuid, int descrInstId, UUID descrUuid,
+                int writeType, int authReq, byte[] value) {
+            return new Op(OP_WRITE_DESCRIPTOR, srvcType, srvcInstId, srvcUuid,
+                    charInstId, charUuid, descrInstId, descrUuid, writeType, authReq, value);
+        }
+
+        boolean matches(int opType, int srvcType, int srvcInstId, long srvcUuidLsb,
+                long srvcUuidMsb, int charInstId, long charUuidLsb, long charUuidMsb,
+                int descrInstId, long descrUuidLsb, long descrUuidMsb) {
+            return type == opType && this.srvcType == srvcType
+                    && this.srvcInstId == srvcInstId && this.charInstId == charInstId
+                    && srvcUuid.getLeastSignificantBits() == srvcUuidLsb
+                    && srvcUuid.getMostSignificantBits() == srvcUuidMsb
+                    && charUuid.getLeastSignificantBits() == charUuidLsb
+                    && charUuid.getMostSignificantBits() == charUuidMsb
+                    && (descrUuid == null || (this.descrInstId == descrInstId
+                            && descrUuid.getLeastSignificantBits() == descrUuidLsb
+                            && descrUuid.getMostSignificantBits() == descrUuidMsb));
+        }
+    }
+
+    /**
+     * The outcome of an op. The value is only set for successful reads.
+     */
+    static class Result {
+        final Op op;
+        final int status;
+        final byte[] value;
+
+        Result(Op op, int status, byte[] value) {
+            this.op = op;
+            this.status = status;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A batch of ops submitted by a client for one connection.
+     */
+    static class Batch {
+        final int clientIf;
+        final String address;
+        final List<Op> ops;
+        final Callback callback;
+        final List<Result> results;
+
+        Batch(int clientIf, String address, List<Op> ops, Callback callback) {
+            this.clientIf = clientIf;
+            this.address = address;
+            this.ops = ops;
+            this.callback = callback;
+            this.results = new ArrayList<Result>(ops.size());
+        }
+
+        boolean isDone() {
+            return results.size() == ops.size();
+        }
+
+        Op current() {
+            return isDone() ? null : ops.get(results.size());
+        }
+    }
+
+    private static final int ISSUED_NONE = 0;
+    private static final int ISSUED_BATCH = 1;
+    private static final int ISSUED_SINGLE = 2;
+
+    private static class Connection {
+        final ArrayDeque<Batch> batches = new ArrayDeque<Batch>();
+        // Whether the current op of the head batch, a single op of the app or
+        // nothing is with the stack.
+        int issued;
+        // Identifies the issued op.
+        int token;
+        boolean timerArmed;
+    }
+
+    // Connections are kept until they are removed, so single ops on an idle
+    // connection do not allocate.
+    private final SparseArray<Connection> mConnections = new SparseArray<Connection>();
+    private int mLastToken;
+
+    // Metrics.
+    private long mBatches;
+    private long mOps;
+    private long mFailedOps;
+    private long mTimedOutOps;
+
+    /**
+     * Queue a batch behind the batches already submitted for the connection.
+     */
+    synchronized void add(int connId, Batch batch) {
+        getConnection(connId).batches.add(batch);
+        mBatches++;
+    }
+
+    /**
+     * Mark a single op of the app as handed to the stack.
+     *
+     * @return false if an op is in flight or batches are queued on the
+     *         connection, in which case the op must be queued as a batch
+     *         instead
+     */
+    synchronized boolean beginSingle(int connId) {
+        Connection conn = getConnection(connId);
+        if (conn.issued != ISSUED_NONE || !conn.batches.isEmpty()) return false;
+        conn.issued = ISSUED_SINGLE;
+        conn.token = nextToken();
+        return true;
+    }
+
+    /**
+     * Returns the op to hand to the stack next, or null if an op is in
+     * flight or nothing is queued. The op is marked in flight.
+     */
+    synchronized Op next(int connId) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null || conn.issued != ISSUED_NONE) return null;
+        Batch batch = conn.batches.peek();
+        if (batch == null) return null;
+        Op op = batch.current();
+        if (op != null) {
+            conn.issued = ISSUED_BATCH;
+            conn.token = nextToken();
+        }
+        return op;
+    }
+
+    /**
+     * Arm the timer of the connection if an op is in flight and no timer is
+     * armed.
+     *
+     * @return the token to pass to {@link #onTimer} when the timer fires, or
+     *         0 if no timer needs to be started
+     */
+    synchronized int armTimer(int connId) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null || conn.issued == ISSUED_NONE || conn.timerArmed) return 0;
+        conn.timerArmed = true;
+        return conn.token;
+    }
+
+    /**
+     * Returns the batch whose op is in flight on the connection, or null.
+     */
+    synchronized Batch getIssued(int connId) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null || conn.issued != ISSUED_BATCH) return null;
+        return conn.batches.peek();
+    }
+
+    /**
+     * Returns true if batches are queued on the connection.
+     */
+    synchronized boolean hasBatches(int connId) {
+        Connection conn = mConnections.get(connId);
+        return conn != null && !conn.batches.isEmpty();
+    }
+
+    /**
+     * Record the completion of a characteristic operation. Returns false if
+     * it does not complete the batch op in flight, in which case it belongs
+     * to a single operation of the app.
+     */
+    synchronized boolean onComplete(int connId, int opType, int status, int srvcType,
+            int srvcInstId, long srvcUuidLsb, long srvcUuidMsb, int charInstId,
+            long charUuidLsb, long charUuidMsb, byte[] value) {
+        return onComplete(connId, opType, status, srvcType, srvcInstId, srvcUuidLsb,
+                srvcUuidMsb, charInstId, charUuidLsb, charUuidMsb, 0, 0, 0, value);
+    }
+
+    /**
+     * Record the completion of a characteristic or descriptor operation.
+     * Returns false if it does not complete the batch op in flight, in which
+     * case it belongs to a single operation of the app.
+     */
+    synchronized boolean onComplete(int connId, int opType, int status, int srvcType,
+            int srvcInstId, long srvcUuidLsb, long srvcUuidMsb, int charInstId,
+            long charUuidLsb, long charUuidMsb, int descrInstId, long descrUuidLsb,
+            long descrUuidMsb, byte[] value) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null) return false;
+        if (conn.issued == ISSUED_SINGLE) {
+            conn.issued = ISSUED_NONE;
+            return false;
+        }
+        Batch batch = getIssued(connId);
+        if (batch == null) return false;
+        Op op = batch.current();
+        if (!op.matches(opType, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                charInstId, charUuidLsb, charUuidMsb, descrInstId, descrUuidLsb,
+                descrUuidMsb)) {
+            return false;
+        }
+        complete(connId, batch, op, status, value);
+        return true;
+    }
+
+    /**
+     * Disarm the timer of the connection and expire the op in flight if it
+     * is still the op the timer was armed for. A batch op completes with the
+     * given status.
+     *
+     * @return true if the op was expired
+     */
+    synchronized boolean onTimer(int connId, int token, int status) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null) return false;
+        conn.timerArmed = false;
+        if (conn.issued == ISSUED_NONE || conn.token != token) return false;
+        mTimedOutOps++;
+        if (conn.issued == ISSUED_SINGLE) {
+            conn.issued = ISSUED_NONE;
+            return true;
+        }
+        Batch batch = conn.batches.peek();
+        complete(connId, batch, batch.current(), status, null);
+        return true;
+    }
+
+    /**
+     * Remove and return the batch at the head of the connection if all its
+     * ops completed.
+     */
+    synchronized Batch pollDone(int connId) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null) return null;
+        Batch batch = conn.batches.peek();
+        if (batch == null || !batch.isDone()) return null;
+        conn.batches.poll();
+        return batch;
+    }
+
+    /**
+     * Remove all batches of a connection, completing their remaining ops
+     * with the given status.
+     */
+    synchronized List<Batch> remove(int connId, int status) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null) return Collections.emptyList();
+        mConnections.remove(connId);
+        List<Batch> removed = new ArrayList<Batch>(conn.batches);
+        for (Batch batch : removed) {
+            while (!batch.isDone()) {
+                batch.results.add(new Result(batch.current(), status, null));
+                mFailedOps++;
+            }
+        }
+        return removed;
+    }
+
+    synchronized void clear() {
+        mConnections.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        int queued = 0;
+        int busy = 0;
+        for (int i = 0; i < mConnections.size(); ++i) {
+            int size = mConnections.valueAt(i).batches.size();
+            queued += size;
+            if (size > 0) busy++;
+        }
+        sb.append("  Batches: queued " + queued + " on " + busy
+                + " connections, submitted " + mBatches + ", ops completed " + mOps
+                + ", failed " + mFailedOps + ", timed out " + mTimedOutOps + "\n");
+    }
+
+    private Connection getConnection(int connId) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null) {
+            conn = new Connection();
+            mConnections.put(connId, conn);
+        }
+        return conn;
+    }
+
+    // Tokens are positive, 0 stands for no op.
+    private int nextToken() {
+        mLastToken = (mLastToken == Integer.MAX_VALUE) ? 1 : mLastToken + 1;
+        return mLastToken;
+    }
+
+    private void complete(int connId, Batch batch, Op op, int status, byte[] value) {
+        batch.results.add(new Result(op, status, status == 0 ? value : null));
+        mConnections.get(connId).issued = ISSUED_NONE;
+        mOps++;
+        if (status != 0) mFailedOps++;
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of the GATT database discovered on bonded remote devices. A
+ * discovery is recorded as the sequence of results reported to the app so
+ * it can be replayed on reconnection instead of walking the remote database
+ * again. The service search still runs on every discovery; the cached
+ * results are only used when the services it reports match the cached
+ * ones, and the cache of the device is dropped otherwise.
+ *
+ * The stack does not report Service Changed, and a change of the
+ * characteristics or descriptors within the same services is not seen by
+ * the search. A cached database is therefore only used for a bounded number
+ * of discoveries and for a bounded time after it was stored; the database is
+ * walked again once either limit is reached.
+ *
+ * Each device is stored in its own file under the cache directory. Files
+ * are read and written on a background thread, so a device whose file is
+ * still loading is treated as not cached.
+ *
+ * @hide
+ */
+/* package */class GattDiscoveryCache {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "DiscoveryCache";
+
+    static final int TYPE_SERVICE = 1;
+    static final int TYPE_CHARACTERISTIC = 2;
+    static final int TYPE_INCLUDED_SERVICE = 3;
+    static final int TYPE_DESCRIPTOR = 4;
+
+    private static final int FILE_VERSION = 2;
+    // Upper bound on the number of results read back from a cache file.
+    private static final int MAX_ENTRIES = 4096;
+
+    // Discoveries answered from one cached database before it is walked again.
+    static final int MAX_USES = 16;
+    // Age, from System.currentTimeMillis(), after which a database is walked again.
+    static final long MAX_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * A single discovery result. Fields not used by the result type are 0.
+     */
+    static class Entry {
+        int type;
+        int srvcType;
+        int srvcInstId;
+        long srvcUuidLsb;
+        long srvcUuidMsb;
+        // Characteristic, or included service for TYPE_INCLUDED_SERVICE.
+        int instId;
+        long uuidLsb;
+        long uuidMsb;
+        // Characteristic properties, or included service type.
+        int property;
+        int descrInstId;
+        long descrUuidLsb;
+        long descrUuidMsb;
+    }
+
+    private static class Database {
+        final List<Entry> entries;
+        final long storedMillis;
+        // Discoveries answered since the database was loaded or stored.
+        int uses;
+
+        Database(List<Entry> entries, long storedMillis) {
+            this.entries = entries;
+            this.storedMillis = storedMillis;
+        }
+    }
+
+    private final File mDir;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Map<String, Database> mDatabases = new HashMap<String, Database>();
+    // Devices whose cache file is being read.
+    private final Set<String> mLoading = new HashSet<String>();
+    // Discoveries in progress, by connection ID.
+    private final SparseArray<List<Entry>> mRecording = new SparseArray<List<Entry>>();
+
+    private int mHits;
+    private int mMisses;
+    private int mExpired;
+
+    GattDiscoveryCache(File dir) {
+        mDir = dir;
+        mThread = new HandlerThread("BluetoothGattCache");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Start reading the cached database of a device, if it is not in memory
+     * already.
+     */
+    synchronized void prefetch(final String address) {
+        if (mDatabases.containsKey(address) || !mLoading.add(address)) return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Database database = load(address);
+                synchronized (GattDiscoveryCache.this) {
+                    // Dropped if the device was invalidated or stored meanwhile.
+                    if (mLoading.remove(address) && database != null) {
+                        mDatabases.put(address, database);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Compare the services reported by the search recorded on a connection
+     * with the cached database of the device.
+     *
+     * @param nowMillis current time, from System.currentTimeMillis()
+     * @return the cached results if the services match and the database is
+     *         within its use and age limits, in which case the recording is
+     *         dropped, or null if the database has to be walked. A cached
+     *         database that is not used is invalidated.
+     */
+    synchronized List<Entry> match(int connId, String address, long nowMillis) {
+        List<Entry> recorded = mRecording.get(connId);
+        Database cached = address == null ? null : mDatabases.get(address);
+        if (recorded == null || cached == null) {
+            if (recorded != null) mMisses++;
+            return null;
+        }
+        if (!sameServices(recorded, cached.entries)) {
+            if (DBG) Log.d(TAG, "match() - services changed, address=" + address);
+            mMisses++;
+            invalidate(address);
+            return null;
+        }
+        if (cached.uses >= MAX_USES || nowMillis - cached.storedMillis >= MAX_AGE_MILLIS
+                || nowMillis < cached.storedMillis) {
+            if (DBG) Log.d(TAG, "match() - cache expired, address=" + address);
+            mMisses++;
+            mExpired++;
+            invalidate(address);
+            return null;
+        }
+        cached.uses++;
+        mHits++;
+        mRecording.remove(connId);
+        return cached.entries;
+    }
+
+    /**
+     * Start recording the discovery results reported on a connection.
+     */
+    synchronized void startRecording(int connId) {
+        mRecording.put(connId, new ArrayList<Entry>());
+    }
+
+    /**
+     * Append a discovery result if a discovery is being recorded for the
+     * connection.
+     */
+    synchronized void record(int connId, Entry entry) {
+        List<Entry> entries = mRecording.get(connId);
+        if (entries != null) entries.add(entry);
+    }
+
+    /**
+     * Finish recording on a connection and, if the discovery succeeded,
+     * store the results for the device.
+     *
+     * @param nowMillis current time, from System.currentTimeMillis()
+     */
+    synchronized void finishRecording(int connId, final String address, int status,
+            long nowMillis) {
+        List<Entry> entries = mRecording.get(connId);
+        if (entries == null) return;
+        mRecording.remove(connId);
+        if (status != 0 || address == null || entries.isEmpty()) return;
+
+        mLoading.remove(address);
+        final Database database = new Database(entries, nowMillis);
+        mDatabases.put(address, database);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                store(address, database);
+            }
+        });
+    }
+
+    /**
+     * Drop a discovery in progress without storing it.
+     */
+    synchronized void abortRecording(int connId) {
+        mRecording.remove(connId);
+    }
+
+    /**
+     * Forget the cached database of a device.
+     */
+    synchronized void invalidate(String address) {
+        if (DBG) Log.d(TAG, "invalidate() - address=" + address);
+        mDatabases.remove(address);
+        mLoading.remove(address);
+        final File file = getFile(address);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+        });
+    }
+
+    /**
+     * Clear in-memory state and stop the background thread once pending
+     * writes are done. Cache files are kept.
+     */
+    synchronized void cleanup() {
+        mDatabases.clear();
+        mLoading.clear();
+        mRecording.clear();
+        mThread.quitSafely();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Cached devices: " + mDatabases.size() + "\n");
+        sb.append("  Hits: " + mHits + ", misses: " + mMisses + " (expired " + mExpired
+                + ")\n");
+        for (Map.Entry<String, Database> entry : mDatabases.entrySet()) {
+            Database database = entry.getValue();
+            sb.append("    " + entry.getKey() + ": " + database.entries.size()
+                    + " attributes, used " + database.uses + " times\n");
+        }
+    }
+
+    // Compares the services, in the order they were reported.
+    private static boolean sameServices(List<Entry> a, List<Entry> b) {
+        int i = 0;
+        int j = 0;
+        while (true) {
+            while (i < a.size() && a.get(i).type != TYPE_SERVICE) ++i;
+            while (j < b.size() && b.get(j).type != TYPE_SERVICE) ++j;
+            if (i == a.size() || j == b.size()) return i == a.size() && j == b.size();
+            Entry x = a.get(i++);
+            Entry y = b.get(j++);
+            if (x.srvcType != y.srvcType || x.srvcInstId != y.srvcInstId
+                    || x.srvcUuidLsb != y.srvcUuidLsb || x.srvcUuidMsb != y.srvcUuidMsb) {
+                return false;
+            }
+        }
+    }
+
+    private File getFile(String address) {
+        return new File(mDir, address.replace(":", ""));
+    }
+
+    private void store(String address, Database database) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDir);
+            return;
+        }
+        File file = getFile(address);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_VERSION);
+            out.writeLong(database.storedMillis);
+            out.writeInt(database.entries.size());
+            for (Entry entry : database.entries) {
+                write(out, entry);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Unable to rename " + tmp);
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store discovery cache for " + address, e);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private Database load(String address) {
+        File file = getFile(address);
+        if (!file.exists()) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) throw new IOException("Unknown version");
+            long storedMillis = in.readLong();
+            int count = in.readInt();
+            if (count <= 0 || count > MAX_ENTRIES) throw new IOException("Bad count " + count);
+            List<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; ++i) {
+                entries.add(read(in));
+            }
+            return new Database(entries, storedMillis);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding discovery cache for " + address, e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(entry.type);
+        out.writeByte(entry.srvcType);
+        out.writeShort(entry.srvcInstId);
+        out.writeLong(entry.srvcUuidMsb);
+        out.writeLong(entry.srvcUuidLsb);
+        if (entry.type == TYPE_SERVICE) return;
+
+        out.writeShort(entry.instId);
+        out.writeLong(entry.uuidMsb);
+        out.writeLong(entry.uuidLsb);
+        if (entry.type != TYPE_DESCRIPTOR) {
+            out.writeByte(entry.property);
+            return;
+        }
+        out.writeShort(entry.descrInstId);
+        out.writeLong(entry.descrUuidMsb);
+        out.writeLong(entry.descrUuidLsb);
+    }
+
+    private static Entry read(DataInputStream in) throws IOException {
+        Entry entry = new Entry();
+        entry.type = in.readUnsignedByte();
+        if (entry.type < TYPE_SERVICE || entry.type > TYPE_DESCRIPTOR) {
+            throw new IOException("Bad entry type " + entry.type);
+        }
+        entry.srvcType = in.readUnsignedByte();
+        entry.srvcInstId = in.readUnsignedShort();
+        entry.srvcUuidMsb = in.readLong();
+        entry.srvcUuidLsb = in.readLong();
+        if (entry.type == TYPE_SERVICE) return entry;
+
+        entry.instId = in.readUnsignedShort();
+        entry.uuidMsb = in.readLong();
+        entry.uuidLsb = in.readLong();
+        if (entry.type != TYPE_DESCRIPTOR) {
+            entry.property = in.readUnsignedByte();
+            return entry;
+        }
+        entry.descrInstId = in.readUnsignedShort();
+        entry.descrUuidMsb = in.readLong();
+        entry.descrUuidLsb = in.readLong();
+        return entry;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
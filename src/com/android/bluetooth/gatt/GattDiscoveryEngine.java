@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tracks the attribute discovery of each connection after service search.
+ *
+ * Characteristics and included services are enumerated one service at a
+ * time, as each step continues from the previous result. Descriptors are
+ * then enumerated for several characteristics at once: their chains are
+ * independent, so up to a fixed number of them are issued back-to-back.
+ *
+ * @hide
+ */
+/* package */class GattDiscoveryEngine {
+    static final int MAX_DESCRIPTOR_DISCOVERIES = 4;
+
+    private static final int MAX_HISTORY = 16;
+
+    /**
+     * A discovered service.
+     */
+    static class Service {
+        final int type;
+        final int instId;
+        final long uuidLsb;
+        final long uuidMsb;
+
+        Service(int type, int instId, long uuidLsb, long uuidMsb) {
+            this.type = type;
+            this.instId = instId;
+            this.uuidLsb = uuidLsb;
+            this.uuidMsb = uuidMsb;
+        }
+    }
+
+    /**
+     * A discovered characteristic, awaiting or undergoing descriptor discovery.
+     */
+    static class Characteristic {
+        final Service service;
+        final int instId;
+        final long uuidLsb;
+        final long uuidMsb;
+
+        Characteristic(Service service, int instId, long uuidLsb, long uuidMsb) {
+            this.service = service;
+            this.instId = instId;
+            this.uuidLsb = uuidLsb;
+            this.uuidMsb = uuidMsb;
+        }
+
+        boolean matches(int srvcType, int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
+                int charInstId, long charUuidLsb, long charUuidMsb) {
+            return service.type == srvcType && service.instId == srvcInstId
+                    && service.uuidLsb == srvcUuidLsb && service.uuidMsb == srvcUuidMsb
+                    && instId == charInstId && uuidLsb == charUuidLsb
+                    && uuidMsb == charUuidMsb;
+        }
+    }
+
+    private static class Discovery {
+        final String address;
+        final long startMillis;
+        // Services whose characteristics are still to be enumerated.
+        final ArrayDeque<Service> services = new ArrayDeque<Service>();
+        Service current;
+        // Characteristics whose descriptors are still to be enumerated.
+        final ArrayDeque<Characteristic> characteristics = new ArrayDeque<Characteristic>();
+        // Descriptor enumerations in progress, oldest first.
+        final List<Characteristic> inFlight = new ArrayList<Characteristic>();
+
+        int serviceCount;
+        int characteristicCount;
+        int descriptorCount;
+        int maxInFlight;
+
+        Discovery(String address, long startMillis) {
+            this.address = address;
+            this.startMillis = startMillis;
+        }
+    }
+
+    private final SparseArray<Discovery> mDiscoveries = new SparseArray<Discovery>();
+    private final ArrayDeque<String> mHistory = new ArrayDeque<String>();
+    private final int mMaxDescriptorDiscoveries;
+
+    GattDiscoveryEngine() {
+        this(MAX_DESCRIPTOR_DISCOVERIES);
+    }
+
+    GattDiscoveryEngine(int maxDescriptorDiscoveries) {
+        mMaxDescriptorDiscoveries = maxDescriptorDiscoveries;
+    }
+
+    /**
+     * Start tracking the discovery of a connection, dropping any earlier one.
+     */
+    synchronized void start(int connId, String address, long nowMillis) {
+        mDiscoveries.put(connId, new Discovery(address, nowMillis));
+    }
+
+    synchronized void addService(int connId, int srvcType, int srvcInstId, long srvcUuidLsb,
+            long srvcUuidMsb, long nowMillis) {
+        Discovery discovery = getOrCreate(connId, nowMillis);
+        discovery.services.add(new Service(srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb));
+        discovery.serviceCount++;
+    }
+
+    synchronized void addCharacteristic(int connId, int charInstId, long charUuidLsb,
+            long charUuidMsb) {
+        Discovery discovery = mDiscoveries.get(connId);
+        if (discovery == null || discovery.current == null) return;
+        discovery.characteristics.add(new Characteristic(discovery.current, charInstId,
+                charUuidLsb, charUuidMsb));
+        discovery.characteristicCount++;
+    }
+
+    synchronized void addDescriptor(int connId) {
+        Discovery discovery = mDiscoveries.get(connId);
+        if (discovery != null) discovery.descriptorCount++;
+    }
+
+    /**
+     * Returns the next service whose characteristics and included services
+     * are to be enumerated, or null once all services are done.
+     */
+    synchronized Service nextService(int connId) {
+        Discovery discovery = mDiscoveries.get(connId);
+        if (discovery == null) return null;
+        discovery.current = discovery.services.poll();
+        return discovery.current;
+    }
+
+    /**
+     * Returns the characteristics whose descriptor enumeration can be issued
+     * now. Returns an empty list while services are still being enumerated.
+     */
+    synchronized List<Characteristic> nextDescriptorDiscoveries(int connId) {
+        Discovery discovery = mDiscoveries.get(connId);
+        if (discovery == null || discovery.current != null || !discovery.services.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Characteristic> next = new ArrayList<Characteristic>();
+        while (discovery.inFlight.size() < mMaxDescriptorDiscoveries
+                && !discovery.characteristics.isEmpty()) {
+            Characteristic characteristic = discovery.characteristics.poll();
+            discovery.inFlight.add(characteristic);
+            next.add(characteristic);
+        }
+        if (discovery.inFlight.size() > discovery.maxInFlight) {
+            discovery.maxInFlight = discovery.inFlight.size();
+        }
+        return next;
+    }
+
+    /**
+     * The descriptor enumeration of a characteristic ended. If the ids do not
+     * identify an enumeration in progress, the oldest one is ended, as the
+     * stack answers in order.
+     */
+    synchronized void descriptorsDone(int connId, int srvcType, int srvcInstId,
+            long srvcUuidLsb, long srvcUuidMsb, int charInstId, long charUuidLsb,
+            long charUuidMsb) {
+        Discovery discovery = mDiscoveries.get(connId);
+        if (discovery == null || discovery.inFlight.isEmpty()) return;
+        for (Iterator<Characteristic> it = discovery.inFlight.iterator(); it.hasNext();) {
+            if (it.next().matches(srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                    charInstId, charUuidLsb, charUuidMsb)) {
+                it.remove();
+                return;
+            }
+        }
+        discovery.inFlight.remove(0);
+    }
+
+    synchronized boolean isTracking(int connId) {
+        return mDiscoveries.get(connId) != null;
+    }
+
+    /**
+     * Returns true if the discovery of the connection is tracked and nothing
+     * is left to enumerate.
+     */
+    synchronized boolean isComplete(int connId) {
+        Discovery discovery = mDiscoveries.get(connId);
+        return discovery != null && discovery.current == null && discovery.services.isEmpty()
+                && discovery.characteristics.isEmpty() && discovery.inFlight.isEmpty();
+    }
+
+    /**
+     * Stop tracking the discovery of a connection and record its duration.
+     */
+    synchronized void finish(int connId, String address, int status, long nowMillis) {
+        Discovery discovery = mDiscoveries.get(connId);
+        if (discovery == null) return;
+        mDiscoveries.remove(connId);
+        if (mHistory.size() == MAX_HISTORY) mHistory.poll();
+        mHistory.add((address != null ? address : discovery.address) + " (connId " + connId
+                + "): " + (nowMillis - discovery.startMillis) + "ms, status " + status + ", "
+                + discovery.serviceCount + " services, " + discovery.characteristicCount
+                + " characteristics, " + discovery.descriptorCount + " descriptors, "
+                + discovery.maxInFlight + " descriptor discoveries in flight");
+    }
+
+    synchronized void remove(int connId) {
+        mDiscoveries.remove(connId);
+    }
+
+    synchronized void clear() {
+        mDiscoveries.clear();
+    }
+
+    synchronized void dump(StringBuilder sb, long nowMillis) {
+        sb.append("  Discoveries in progress: " + mDiscoveries.size() + "\n");
+        for (int i = 0; i < mDiscoveries.size(); ++i) {
+            Discovery discovery = mDiscoveries.valueAt(i);
+            sb.append("    " + discovery.address + " (connId " + mDiscoveries.keyAt(i)
+                    + "): " + (nowMillis - discovery.startMillis) + "ms\n");
+        }
+        sb.append("  Completed discoveries:\n");
+        for (String entry : mHistory) {
+            sb.append("    " + entry + "\n");
+        }
+    }
+
+    private Discovery getOrCreate(int connId, long nowMillis) {
+        Discovery discovery = mDiscoveries.get(connId);
+        if (discovery == null) {
+            discovery = new Discovery(null, nowMillis);
+            mDiscoveries.put(connId, discovery);
+        }
+        return discovery;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Event counters and app callback latency histograms, per app and per
+ * connection.
+ *
+ * Recording is lock free and allocation free. Each table has a fixed number
+ * of slots claimed by id on first use; events for ids beyond the table are
+ * recorded in a shared overflow slot. Slots are not released, since client,
+ * server and connection ids are reused by the stack, but are zeroed when an
+ * id is registered or connected again.
+ *
+ * Latencies are the time spent in the app callback binder call, in
+ * power of two microsecond buckets. App callbacks are oneway binder calls,
+ * so this only times handing the transaction to the binder driver, not the
+ * app processing the callback. Failures count callbacks that threw a
+ * RemoteException, which is how a dead app shows up.
+ *
+ * @hide
+ */
+/* package */class GattMetrics {
+    static final int EVENT_SCAN_RESULT = 0;
+    static final int EVENT_NOTIFY = 1;
+    static final int EVENT_READ = 2;
+    static final int EVENT_WRITE = 3;
+    // The connection became congested.
+    static final int EVENT_CONGESTION = 4;
+    // A callback was held back while the connection was congested.
+    static final int EVENT_DEFERRED = 5;
+    // A callback threw a RemoteException.
+    static final int EVENT_CALLBACK_FAILURE = 6;
+    static final int EVENT_COUNT = 7;
+
+    // Bucket 0 holds latencies under 1us, bucket i latencies under 2^i us and
+    // the last bucket everything above.
+    static final int LATENCY_BUCKETS = 16;
+
+    static final int NO_CONNECTION = -1;
+
+    private static final int MAX_APPS = 32;
+    private static final int MAX_CONNECTIONS = 64;
+
+    private static final String[] EVENT_NAMES = {
+        "scan_results", "notifications", "reads", "writes", "congestions", "deferred",
+        "failures"
+    };
+
+    private static final int SERVER_FLAG = 1 << 16;
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    // Longs per slot: event counters, latency buckets and latency sum.
+    private static final int LATENCY_OFFSET = EVENT_COUNT;
+    private static final int SUM_OFFSET = EVENT_COUNT + LATENCY_BUCKETS;
+    private static final int STRIDE = SUM_OFFSET + 1;
+
+    private final Table mApps = new Table(MAX_APPS);
+    private final Table mConnections = new Table(MAX_CONNECTIONS);
+
+    static int clientKey(int clientIf) {
+        return clientIf;
+    }
+
+    static int serverKey(int serverIf) {
+        return serverIf | SERVER_FLAG;
+    }
+
+    /**
+     * Count events delivered to an app, and optionally to one of its
+     * connections.
+     */
+    void count(int appKey, int connId, int event, int delta) {
+        mApps.add(mApps.slot(appKey) + event, delta);
+        if (connId != NO_CONNECTION) {
+            mConnections.add(mConnections.slot(connId) + event, delta);
+        }
+    }
+
+    /**
+     * Count an event delivered by an app callback that started at
+     * startNanos, from System.nanoTime(), and record its latency.
+     */
+    void record(int appKey, int connId, int event, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), LATENCY_BUCKETS - 1);
+        int app = mApps.slot(appKey);
+        mApps.add(app + event, 1);
+        mApps.add(app + LATENCY_OFFSET + bucket, 1);
+        mApps.add(app + SUM_OFFSET, micros);
+        if (connId != NO_CONNECTION) {
+            int conn = mConnections.slot(connId);
+            mConnections.add(conn + event, 1);
+            mConnections.add(conn + LATENCY_OFFSET + bucket, 1);
+            mConnections.add(conn + SUM_OFFSET, micros);
+        }
+    }
+
+    void resetApp(int appKey) {
+        mApps.reset(appKey);
+    }
+
+    void resetConnection(int connId) {
+        mConnections.reset(connId);
+    }
+
+    void clear() {
+        mApps.clear();
+        mConnections.clear();
+    }
+
+    /**
+     * Returns the count of an event for an app.
+     */
+    long getAppCount(int appKey, int event) {
+        return mApps.get(appKey, event);
+    }
+
+    long getConnectionCount(int connId, int event) {
+        return mConnections.get(connId, event);
+    }
+
+    void dump(StringBuilder sb) {
+        dumpTable(sb, mApps, true);
+        dumpTable(sb, mConnections, false);
+    }
+
+    /**
+     * Append the metrics as a single line JSON object, for collection by
+     * telemetry.
+     */
+    void dumpJson(StringBuilder sb) {
+        sb.append("{\"apps\":[");
+        dumpJsonTable(sb, mApps, true);
+        sb.append("],\"connections\":[");
+        dumpJsonTable(sb, mConnections, false);
+        sb.append("]}");
+    }
+
+    private static void dumpTable(StringBuilder sb, Table table, boolean apps) {
+        sb.append(apps ? "  Apps:\n" : "  Connections:\n");
+        for (int i = 0; i <= table.size; ++i) {
+            int key = table.keyAt(i);
+            if (key == EMPTY || !table.isUsed(i)) continue;
+            sb.append("    " + describe(key, apps, i == table.size) + ":");
+            for (int event = 0; event < EVENT_COUNT; ++event) {
+                long count = table.valueAt(i, event);
+                if (count != 0) sb.append(" " + EVENT_NAMES[event] + " " + count);
+            }
+            long calls = 0;
+            for (int b = 0; b < LATENCY_BUCKETS; ++b) {
+                calls += table.valueAt(i, LATENCY_OFFSET + b);
+            }
+            if (calls != 0) {
+                sb.append(", callback avg " + table.valueAt(i, SUM_OFFSET) / calls
+                        + "us, p50 <" + percentile(table, i, calls, 50)
+                        + "us, p99 <" + percentile(table, i, calls, 99) + "us");
+            }
+            sb.append("\n");
+        }
+    }
+
+    private static void dumpJsonTable(StringBuilder sb, Table table, boolean apps) {
+        boolean first = true;
+        for (int i = 0; i <= table.size; ++i) {
+            int key = table.keyAt(i);
+            if (key == EMPTY || !table.isUsed(i)) continue;
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('{');
+            if (i == table.size) {
+                sb.append("\"overflow\":true");
+            } else if (apps) {
+                sb.append("\"server\":").append((key & SERVER_FLAG) != 0)
+                        .append(",\"id\":").append(key & ~SERVER_FLAG);
+            } else {
+                sb.append("\"conn_id\":").append(key);
+            }
+            for (int event = 0; event < EVENT_COUNT; ++event) {
+                sb.append(",\"").append(EVENT_NAMES[event]).append("\":")
+                        .append(table.valueAt(i, event));
+            }
+            sb.append(",\"latency_sum_us\":").append(table.valueAt(i, SUM_OFFSET));
+            sb.append(",\"latency_buckets\":[");
+            for (int b = 0; b < LATENCY_BUCKETS; ++b) {
+                if (b > 0) sb.append(',');
+                sb.append(table.valueAt(i, LATENCY_OFFSET + b));
+            }
+            sb.append("]}");
+        }
+    }
+
+    private static String describe(int key, boolean apps, boolean overflow) {
+        if (overflow) return "other";
+        if (!apps) return "connId " + key;
+        return ((key & SERVER_FLAG) != 0 ? "serverIf " : "clientIf ") + (key & ~SERVER_FLAG);
+    }
+
+    // Returns the upper bound of the bucket holding the given percentile.
+    private static long percentile(Table table, int i, long calls, int percent) {
+        long target = (calls * percent + 99) / 100;
+        long seen = 0;
+        for (int b = 0; b < LATENCY_BUCKETS; ++b) {
+            seen += table.valueAt(i, LATENCY_OFFSET + b);
+            if (seen >= target) return 1L << b;
+        }
+        return 1L << (LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * Open addressed slots with an extra overflow slot at index size.
+     */
+    private static class Table {
+        final int size;
+        private final AtomicIntegerArray mKeys;
+        private final AtomicLongArray mValues;
+
+        Table(int size) {
+            this.size = size;
+            mKeys = new AtomicIntegerArray(size + 1);
+            mValues = new AtomicLongArray((size + 1) * STRIDE);
+            for (int i = 0; i < size; ++i) {
+                mKeys.set(i, EMPTY);
+            }
+        }
+
+        // Returns the index of the first long of the slot of a key, claiming
+        // a slot if needed.
+        int slot(int key) {
+            int start = (key * 0x9E3779B9) >>> 16;
+            for (int n = 0; n < size; ++n) {
+                int i = (start + n) % size;
+                int current = mKeys.get(i);
+                if (current == EMPTY
+                        && (mKeys.compareAndSet(i, EMPTY, key) || mKeys.get(i) == key)) {
+                    return i * STRIDE;
+                }
+                if (current == key) return i * STRIDE;
+            }
+            return size * STRIDE;
+        }
+
+        void add(int index, long delta) {
+            mValues.addAndGet(index, delta);
+        }
+
+        long get(int key, int offset) {
+            int i = find(key);
+            return i < 0 ? 0 : mValues.get(i * STRIDE + offset);
+        }
+
+        // Concurrent events may survive the reset, which is fine for metrics.
+        void reset(int key) {
+            int i = find(key);
+            if (i < 0) return;
+            for (int j = i * STRIDE; j < (i + 1) * STRIDE; ++j) {
+                mValues.set(j, 0);
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < mValues.length(); ++i) {
+                mValues.set(i, 0);
+            }
+        }
+
+        int keyAt(int i) {
+            return mKeys.get(i);
+        }
+
+        long valueAt(int i, int offset) {
+            return mValues.get(i * STRIDE + offset);
+        }
+
+        boolean isUsed(int i) {
+            for (int j = i * STRIDE; j < (i + 1) * STRIDE; ++j) {
+                if (mValues.get(j) != 0) return true;
+            }
+            return false;
+        }
+
+        private int find(int key) {
+            int start = (key * 0x9E3779B9) >>> 16;
+            for (int n = 0; n < size; ++n) {
+                int i = (start + n) % size;
+                int current = mKeys.get(i);
+                if (current == key) return i;
+                if (current == EMPTY) return -1;
+            }
+            return -1;
+        }
+    }
+}
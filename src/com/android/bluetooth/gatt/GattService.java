@@ -32,12 +32,18 @@ import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseIntArray;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
@@ -45,6 +51,7 @@ import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -70,9 +77,6 @@ public class GattService extends ProfileService {
     static final int SCAN_FILTER_MODIFIED = 2;
 
     private static final int MAC_ADDRESS_LENGTH = 6;
-    // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
-    private static final int TIME_STAMP_LENGTH = 2;
 
     // onFoundLost related constants
     private static final int ADVT_STATE_ONFOUND = 0;
@@ -86,9 +90,51 @@ public class GattService extends ProfileService {
     };
 
     /**
-     * Search queue to serialize remote onbject inspection.
+     * Attribute discovery in progress, per connection.
      */
-    SearchQueue mSearchQueue = new SearchQueue();
+    private final GattDiscoveryEngine mDiscoveryEngine = new GattDiscoveryEngine();
+
+    /**
+     * Discovered databases of bonded devices, replayed on reconnection.
+     */
+    private GattDiscoveryCache mDiscoveryCache;
+
+    /**
+     * Interned ParcelUuids for attribute callbacks. Only used from the stack
+     * callback thread.
+     */
+    private final ParcelUuidCache mCallbackUuids = new ParcelUuidCache();
+
+    /**
+     * Remote reads answered from published attribute values (hits) and
+     * passed on to the server app (misses).
+     */
+    private long mAttributeCacheHits;
+    private long mAttributeCacheMisses;
+
+    /**
+     * Server connections on which the transport is congested.
+     */
+    private final Set<Integer> mCongestedServerConnections =
+            Collections.synchronizedSet(new HashSet<Integer>());
+
+    /**
+     * Duplicate scan result filtering requested by clients, by client
+     * interface. Clients not listed get every result.
+     */
+    private final Map<Integer, ScanDuplicateFilter.Settings> mScanDuplicateSettings =
+            Collections.synchronizedMap(new HashMap<Integer, ScanDuplicateFilter.Settings>());
+
+    /**
+     * Servers whose prepared writes are assembled by the service.
+     */
+    private final Set<Integer> mAggregatedWriteServers =
+            Collections.synchronizedSet(new HashSet<Integer>());
+
+    /**
+     * Prepared writes pending execution, per server connection.
+     */
+    private final PreparedWriteBuffer mPreparedWrites = new PreparedWriteBuffer();
 
     /**
      * List of our registered clients.
@@ -110,7 +156,6 @@ public class GattService extends ProfileService {
     private List<UUID> mAdvertisingServiceUuids = new ArrayList<UUID>();
 
     private int mMaxScanFilters;
-    private Map<ScanClient, ScanResult> mOnFoundResults = new HashMap<ScanClient, ScanResult>();
 
     /**
      * Pending service declaration queue
@@ -155,6 +200,26 @@ public class GattService extends ProfileService {
      */
     private Set<String> mReliableQueue = new HashSet<String>();
 
+    /**
+     * Batched client reads and writes, per connection
+     */
+    private final GattBatchQueue mBatchQueue = new GattBatchQueue();
+
+    private static final int MSG_OP_TIMEOUT = 1;
+    // Longer than the 30 s ATT transaction timeout, after which the stack
+    // should have reported the op.
+    private static final long OP_TIMEOUT_MILLIS = 35000;
+
+    /**
+     * Expires characteristic reads and writes that never completed.
+     */
+    private Handler mHandler;
+
+    /**
+     * App callback counters and latencies
+     */
+    private final GattMetrics mMetrics = new GattMetrics();
+
     static {
         classInitNative();
     }
@@ -176,17 +241,43 @@ public class GattService extends ProfileService {
         mScanManager = new ScanManager(this);
         mScanManager.start();
 
+        mDiscoveryCache = new GattDiscoveryCache(new File(getFilesDir(), "gatt_cache"));
+        mHandler = new Handler() {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_OP_TIMEOUT) onOpTimeout(msg.arg1, msg.arg2);
+            }
+        };
+        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        try {
+            registerReceiver(mBondStateReceiver, filter);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to register bond state receiver", e);
+        }
+
         return true;
     }
 
     protected boolean stop() {
         if (DBG) Log.d(TAG, "stop()");
+        try {
+            unregisterReceiver(mBondStateReceiver);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to unregister bond state receiver", e);
+        }
+        if (mDiscoveryCache != null) mDiscoveryCache.cleanup();
+        if (mHandler != null) mHandler.removeMessages(MSG_OP_TIMEOUT);
         mClientMap.clear();
         mServerMap.clear();
-        mSearchQueue.clear();
+        mDiscoveryEngine.clear();
         mHandleMap.clear();
         mServiceDeclarations.clear();
         mReliableQueue.clear();
+        mBatchQueue.clear();
+        mPreparedWrites.clear();
+        mMetrics.clear();
+        mAggregatedWriteServers.clear();
+        mScanDuplicateSettings.clear();
         if (mAdvertiseManager != null) mAdvertiseManager.cleanup();
         if (mScanManager != null) mScanManager.cleanup();
         return true;
@@ -200,6 +291,22 @@ public class GattService extends ProfileService {
         return true;
     }
 
+    /**
+     * Invalidates the discovery cache of devices that are no longer bonded.
+     */
+    private final BroadcastReceiver mBondStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                    BluetoothDevice.ERROR);
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (state == BluetoothDevice.BOND_NONE && device != null
+                    && mDiscoveryCache != null) {
+                mDiscoveryCache.invalidate(device.getAddress());
+            }
+        }
+    };
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (GattDebugUtils.handleDebugAction(this, intent)) {
@@ -316,6 +423,13 @@ public class GattService extends ProfileService {
             service.stopScan(new ScanClient(appIf, isServer));
         }
 
+        // Needs the matching method in IBluetoothGatt.aidl to be reachable by apps.
+        public void setScanDuplicateFilter(int appIf, int rssiDelta, int refreshMillis) {
+            GattService service = getService();
+            if (service == null) return;
+            service.setScanDuplicateFilter(appIf, rssiDelta, refreshMillis);
+        }
+
         @Override
         public void flushPendingBatchResults(int appIf, boolean isServer) {
             GattService service = getService();
@@ -556,61 +670,72 @@ public class GattService extends ProfileService {
     void onScanResult(String address, int rssi, byte[] adv_data) {
         if (VDBG) Log.d(TAG, "onScanResult() - address=" + address
                     + ", rssi=" + rssi);
-        List<UUID> remoteUuids = parseUuids(adv_data);
-        for (ScanClient client : mScanManager.getRegularScanQueue()) {
-            if (client.uuids.length > 0) {
-                int matches = 0;
-                for (UUID search : client.uuids) {
-                    for (UUID remote: remoteUuids) {
-                        if (remote.equals(search)) {
-                            ++matches;
-                            break; // Only count 1st match in case of duplicates
-                        }
-                    }
-                }
+        ScanFilterMatcher matcher = mScanManager.getRegularScanMatcher();
+        int matched = matcher.match(address, adv_data, 0, adv_data.length);
 
-                if (matches < client.uuids.length) continue;
-            }
+        // Built lazily, once per advertisement, and shared by all matching clients.
+        ScanResult result = null;
+        int dataHash = 0;
+
+        for (int i = 0; i < matched; ++i) {
+            ScanClient client = matcher.getMatched(i);
 
             if (!client.isServer) {
                 ClientMap.App app = mClientMap.getById(client.clientIf);
                 if (app != null) {
-                    BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(address);
-                    ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
-                            rssi, SystemClock.elapsedRealtimeNanos());
-                    if (matchesFilters(client, result)) {
-                        try {
-                            ScanSettings settings = client.settings;
-                            // framework detects the first match, hw signal is
-                            // used to detect the onlost
-                            // ToDo: make scanClient+result, 1 to many when hw
-                            // support is available
-                            if ((settings.getCallbackType() &
-                                    ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0) {
-                                synchronized (mOnFoundResults) {
-                                    mOnFoundResults.put(client, result);
+                    if (result == null) {
+                        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter()
+                                .getRemoteDevice(address);
+                        result = new ScanResult(device, ScanRecord.parseFromBytes(adv_data),
+                                rssi, SystemClock.elapsedRealtimeNanos());
+                        dataHash = Arrays.hashCode(adv_data);
+                    }
+                    try {
+                        ScanSettings settings = client.settings;
+                        // framework detects the first match, the onlost is
+                        // detected by hw signal or by the software tracker
+                        int callbackType = settings.getCallbackType();
+                        if ((callbackType & (ScanSettings.CALLBACK_TYPE_FIRST_MATCH
+                                | ScanSettings.CALLBACK_TYPE_MATCH_LOST)) != 0
+                                && mScanManager.onFoundLostSighting(client, address, result)
+                                && (callbackType & ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0) {
+                            app.callback.onFoundOrLost(true, result);
+                        }
+                        if ((settings.getCallbackType() &
+                                ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0) {
+                            if (client.batchBuffer != null) {
+                                client.batchBuffer.add(result);
+                            } else {
+                                if (client.shouldForward(address, rssi, dataHash,
+                                        result.getTimestampNanos())) {
+                                    long start = System.nanoTime();
+                                    app.callback.onScanResult(result);
+                                    mMetrics.record(GattMetrics.clientKey(client.clientIf),
+                                            GattMetrics.NO_CONNECTION,
+                                            GattMetrics.EVENT_SCAN_RESULT, start);
                                 }
-                                app.callback.onFoundOrLost(true, result);
-                            }
-                            if ((settings.getCallbackType() &
-                                    ScanSettings.CALLBACK_TYPE_ALL_MATCHES) != 0) {
-                                app.callback.onScanResult(result);
                             }
-                        } catch (RemoteException e) {
-                            Log.e(TAG, "Exception: " + e);
-                            mClientMap.remove(client.clientIf);
-                            mScanManager.stopScan(client);
                         }
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Exception: " + e);
+                        callbackFailed(GattMetrics.clientKey(client.clientIf),
+                                GattMetrics.NO_CONNECTION, e);
+                        mClientMap.remove(client.clientIf);
+                        mScanManager.stopScan(client);
                     }
                 }
             } else {
                 ServerMap.App app = mServerMap.getById(client.clientIf);
                 if (app != null) {
                     try {
+                        long start = System.nanoTime();
                         app.callback.onScanResult(address, rssi, adv_data);
+                        mMetrics.record(GattMetrics.serverKey(client.clientIf),
+                                GattMetrics.NO_CONNECTION, GattMetrics.EVENT_SCAN_RESULT, start);
                     } catch (RemoteException e) {
                         Log.e(TAG, "Exception: " + e);
+                        callbackFailed(GattMetrics.serverKey(client.clientIf),
+                                GattMetrics.NO_CONNECTION, e);
                         mServerMap.remove(client.clientIf);
                         mScanManager.stopScan(client);
                     }
@@ -619,17 +744,22 @@ public class GattService extends ProfileService {
         }
     }
 
-    // Check if a scan record matches a specific filters.
-    private boolean matchesFilters(ScanClient client, ScanResult scanResult) {
-        if (client.filters == null || client.filters.isEmpty()) {
-            return true;
-        }
-        for (ScanFilter filter : client.filters) {
-            if (filter.matches(scanResult)) {
-                return true;
-            }
+    // Deliver results batched in software for a regular scan client.
+    void onSoftwareBatchScanResults(ScanClient client, List<ScanResult> results) {
+        if (VDBG) Log.d(TAG, "onSoftwareBatchScanResults() - clientIf=" + client.clientIf
+                + ", results=" + results.size());
+        ClientMap.App app = mClientMap.getById(client.clientIf);
+        if (app == null) return;
+        try {
+            app.callback.onBatchScanResults(results);
+            mMetrics.count(GattMetrics.clientKey(client.clientIf), GattMetrics.NO_CONNECTION,
+                    GattMetrics.EVENT_SCAN_RESULT, results.size());
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
+            callbackFailed(GattMetrics.clientKey(client.clientIf), GattMetrics.NO_CONNECTION, e);
+            mClientMap.remove(client.clientIf);
+            mScanManager.stopScan(client);
         }
-        return false;
     }
 
     void onClientRegistered(int status, int clientIf, long uuidLsb, long uuidMsb)
@@ -639,7 +769,8 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByUuid(uuid);
         if (app != null) {
             if (status == 0) {
-                app.id = clientIf;
+                mClientMap.setAppId(app, clientIf);
+                mMetrics.resetApp(GattMetrics.clientKey(clientIf));
                 app.linkToDeath(new ClientDeathRecipient(clientIf));
             } else {
                 mClientMap.remove(uuid);
@@ -653,7 +784,10 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onConnected() - clientIf=" + clientIf
             + ", connId=" + connId + ", address=" + address);
 
-        if (status == 0) mClientMap.addConnection(clientIf, connId, address);
+        if (status == 0) {
+            mClientMap.addConnection(clientIf, connId, address);
+            mMetrics.resetConnection(connId);
+        }
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf,
@@ -667,7 +801,12 @@ public class GattService extends ProfileService {
             + ", connId=" + connId + ", address=" + address);
 
         mClientMap.removeConnection(clientIf, connId);
-        mSearchQueue.removeConnId(connId);
+        mDiscoveryEngine.remove(connId);
+        mDiscoveryCache.abortRecording(connId);
+        for (GattBatchQueue.Batch batch
+                : mBatchQueue.remove(connId, BluetoothGatt.GATT_FAILURE)) {
+            batch.callback.onBatchComplete(batch.address, batch.results);
+        }
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -677,7 +816,19 @@ public class GattService extends ProfileService {
     void onSearchCompleted(int connId, int status) throws RemoteException {
         if (DBG) Log.d(TAG, "onSearchCompleted() - connId=" + connId+ ", status=" + status);
         // We got all services, now let's explore characteristics...
-        continueSearch(connId, status);
+        if (status == 0 && mDiscoveryEngine.isTracking(connId)) {
+            String address = mClientMap.addressByConnId(connId);
+            List<GattDiscoveryCache.Entry> cached = mDiscoveryCache.match(connId, address,
+                    System.currentTimeMillis());
+            if (cached != null) {
+                replayDiscovery(connId, address, cached);
+                finishSearch(connId, status);
+            } else {
+                continueSearch(connId);
+            }
+        } else {
+            finishSearch(connId, status);
+        }
     }
 
     void onSearchResult(int connId, int srvcType,
@@ -688,7 +839,13 @@ public class GattService extends ProfileService {
 
         if (VDBG) Log.d(TAG, "onSearchResult() - address=" + address + ", uuid=" + uuid);
 
-        mSearchQueue.add(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+        mDiscoveryEngine.addService(connId, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                SystemClock.elapsedRealtime());
+
+        GattDiscoveryCache.Entry entry = new GattDiscoveryCache.Entry();
+        entry.type = GattDiscoveryCache.TYPE_SERVICE;
+        setCachedService(entry, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+        mDiscoveryCache.record(connId, entry);
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
@@ -710,9 +867,16 @@ public class GattService extends ProfileService {
             + ", status=" + status + ", charUuid=" + charUuid + ", prop=" + charProp);
 
         if (status == 0) {
-            mSearchQueue.add(connId, srvcType,
-                            srvcInstId, srvcUuidLsb, srvcUuidMsb,
-                            charInstId, charUuidLsb, charUuidMsb);
+            mDiscoveryEngine.addCharacteristic(connId, charInstId, charUuidLsb, charUuidMsb);
+
+            GattDiscoveryCache.Entry entry = new GattDiscoveryCache.Entry();
+            entry.type = GattDiscoveryCache.TYPE_CHARACTERISTIC;
+            setCachedService(entry, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+            entry.instId = charInstId;
+            entry.uuidLsb = charUuidLsb;
+            entry.uuidMsb = charUuidMsb;
+            entry.property = charProp;
+            mDiscoveryCache.record(connId, entry);
 
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
@@ -747,6 +911,18 @@ public class GattService extends ProfileService {
             + ", status=" + status + ", descUuid=" + descUuid);
 
         if (status == 0) {
+            GattDiscoveryCache.Entry entry = new GattDiscoveryCache.Entry();
+            entry.type = GattDiscoveryCache.TYPE_DESCRIPTOR;
+            setCachedService(entry, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+            entry.instId = charInstId;
+            entry.uuidLsb = charUuidLsb;
+            entry.uuidMsb = charUuidMsb;
+            entry.descrInstId = descrInstId;
+            entry.descrUuidLsb = descrUuidLsb;
+            entry.descrUuidMsb = descrUuidMsb;
+            mDiscoveryCache.record(connId, entry);
+            mDiscoveryEngine.addDescriptor(connId);
+
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
                 app.callback.onGetDescriptor(address, srvcType,
@@ -761,8 +937,10 @@ public class GattService extends ProfileService {
                                     charInstId, charUuidLsb, charUuidMsb,
                                     descrInstId, descrUuidLsb, descrUuidMsb);
         } else {
-            // Explore the next service
-            continueSearch(connId, 0);
+            // Done with this characteristic, start the next one
+            mDiscoveryEngine.descriptorsDone(connId, srvcType, srvcInstId, srvcUuidLsb,
+                    srvcUuidMsb, charInstId, charUuidLsb, charUuidMsb);
+            continueSearch(connId);
         }
     }
 
@@ -779,6 +957,15 @@ public class GattService extends ProfileService {
             + ", inclUuid=" + inclSrvcUuid);
 
         if (status == 0) {
+            GattDiscoveryCache.Entry entry = new GattDiscoveryCache.Entry();
+            entry.type = GattDiscoveryCache.TYPE_INCLUDED_SERVICE;
+            setCachedService(entry, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb);
+            entry.instId = inclSrvcInstId;
+            entry.uuidLsb = inclSrvcUuidLsb;
+            entry.uuidMsb = inclSrvcUuidMsb;
+            entry.property = inclSrvcType;
+            mDiscoveryCache.record(connId, entry);
+
             ClientMap.App app = mClientMap.getByConnId(connId);
             if (app != null) {
                 app.callback.onGetIncludedService(address,
@@ -791,8 +978,8 @@ public class GattService extends ProfileService {
                 srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
                 inclSrvcType, inclSrvcInstId, inclSrvcUuidLsb, inclSrvcUuidMsb);
         } else {
-            // Discover descriptors now
-            continueSearch(connId, 0);
+            // Explore the next service, or descriptors once all are done
+            continueSearch(connId);
         }
     }
 
@@ -812,24 +999,30 @@ public class GattService extends ProfileService {
             int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
             int charInstId, long charUuidLsb, long charUuidMsb,
             boolean isNotify, byte[] data) throws RemoteException {
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+        ParcelUuid srvcUuid = mCallbackUuids.get(srvcUuidMsb, srvcUuidLsb);
+        ParcelUuid charUuid = mCallbackUuids.get(charUuidMsb, charUuidLsb);
 
         if (VDBG) Log.d(TAG, "onNotify() - address=" + address
             + ", charUuid=" + charUuid + ", length=" + data.length);
 
-
-        if (isHidUuid(charUuid) &&
+        if (isHidUuid(charUuid.getUuid()) &&
                (0 != checkCallingOrSelfPermission(BLUETOOTH_PRIVILEGED))) {
             return;
         }
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
-            app.callback.onNotify(address, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid),
-                        data);
+            long start = System.nanoTime();
+            try {
+                app.callback.onNotify(address, srvcType,
+                            srvcInstId, srvcUuid,
+                            charInstId, charUuid,
+                            data);
+            } catch (RemoteException e) {
+                throw callbackFailed(GattMetrics.clientKey(app.id), connId, e);
+            }
+            mMetrics.record(GattMetrics.clientKey(app.id), connId, GattMetrics.EVENT_NOTIFY,
+                    start);
         }
     }
 
@@ -838,18 +1031,40 @@ public class GattService extends ProfileService {
             int charInstId, long charUuidLsb, long charUuidMsb,
             int charType, byte[] data) throws RemoteException {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
         String address = mClientMap.addressByConnId(connId);
 
         if (VDBG) Log.d(TAG, "onReadCharacteristic() - address=" + address
             + ", status=" + status + ", length=" + data.length);
 
+        if (mBatchQueue.onComplete(connId, GattBatchQueue.OP_READ_CHARACTERISTIC, status,
+                srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                charInstId, charUuidLsb, charUuidMsb, data)) {
+            continueBatch(connId);
+            return;
+        }
+
+        deliverCharacteristicRead(connId, address, status, srvcType, srvcInstId,
+                srvcUuidLsb, srvcUuidMsb, charInstId, charUuidLsb, charUuidMsb, data);
+        // Batches submitted meanwhile waited for this op
+        if (mBatchQueue.hasBatches(connId)) continueBatch(connId);
+    }
+
+    private void deliverCharacteristicRead(int connId, String address, int status,
+            int srvcType, int srvcInstId, long srvcUuidLsb, long srvcUuidMsb,
+            int charInstId, long charUuidLsb, long charUuidMsb, byte[] data)
+            throws RemoteException {
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
-            app.callback.onCharacteristicRead(address, status, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid), data);
+            long start = System.nanoTime();
+            try {
+                app.callback.onCharacteristicRead(address, status, srvcType,
+                            srvcInstId, mCallbackUuids.get(srvcUuidMsb, srvcUuidLsb),
+                            charInstId, mCallbackUuids.get(charUuidMsb, charUuidLsb), data);
+            } catch (RemoteException e) {
+                throw callbackFailed(GattMetrics.clientKey(app.id), connId, e);
+            }
+            mMetrics.record(GattMetrics.clientKey(app.id), connId, GattMetrics.EVENT_READ,
+                    start);
         }
     }
 
@@ -858,26 +1073,52 @@ public class GattService extends ProfileService {
             int charInstId, long charUuidLsb, long charUuidMsb)
             throws RemoteException {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
+        ParcelUuid srvcUuid = mCallbackUuids.get(srvcUuidMsb, srvcUuidLsb);
+        ParcelUuid charUuid = mCallbackUuids.get(charUuidMsb, charUuidLsb);
         String address = mClientMap.addressByConnId(connId);
 
         if (VDBG) Log.d(TAG, "onWriteCharacteristic() - address=" + address
             + ", status=" + status);
 
+        // The write was accepted, the congestion callback pauses the batch
+        int batchStatus = (status == BluetoothGatt.GATT_CONNECTION_CONGESTED)
+                ? BluetoothGatt.GATT_SUCCESS : status;
+        if (mBatchQueue.onComplete(connId, GattBatchQueue.OP_WRITE_CHARACTERISTIC,
+                batchStatus, srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb,
+                charInstId, charUuidLsb, charUuidMsb, null)) {
+            continueBatch(connId);
+            return;
+        }
+
+        deliverCharacteristicWrite(connId, address, status, srvcType, srvcInstId, srvcUuid,
+                charInstId, charUuid);
+        // Batches submitted meanwhile waited for this op
+        if (mBatchQueue.hasBatches(connId)) continueBatch(connId);
+    }
+
+    private void deliverCharacteristicWrite(int connId, String address, int status,
+            int srvcType, int srvcInstId, ParcelUuid srvcUuid, int charInstId,
+            ParcelUuid charUuid) throws RemoteException {
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) return;
 
         if (!app.isCongested) {
-            app.callback.onCharacteristicWrite(address, status, srvcType,
-                    srvcInstId, new ParcelUuid(srvcUuid),
-                    charInstId, new ParcelUuid(charUuid));
+            long start = System.nanoTime();
+            try {
+                app.callback.onCharacteristicWrite(address, status, srvcType,
+                        srvcInstId, srvcUuid, charInstId, charUuid);
+            } catch (RemoteException e) {
+                throw callbackFailed(GattMetrics.clientKey(app.id), connId, e);
+            }
+            mMetrics.record(GattMetrics.clientKey(app.id), connId, GattMetrics.EVENT_WRITE,
+                    start);
         } else {
+            mMetrics.count(GattMetrics.clientKey(app.id), connId, GattMetrics.EVENT_DEFERRED, 1);
             if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
                 status = BluetoothGatt.GATT_SUCCESS;
             }
             CallbackInfo callbackInfo = new CallbackInfo(address, status, srvcType,
-                    srvcInstId, srvcUuid, charInstId, charUuid);
+                    srvcInstId, srvcUuid.getUuid(), charInstId, charUuid.getUuid());
             app.queueCallback(callbackInfo);
         }
     }
@@ -899,20 +1140,42 @@ public class GattService extends ProfileService {
             int descrInstId, long descrUuidLsb, long descrUuidMsb,
             int charType, byte[] data) throws RemoteException {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
-        UUID descrUuid = new UUID(descrUuidMsb, descrUuidLsb);
         String address = mClientMap.addressByConnId(connId);
 
         if (VDBG) Log.d(TAG, "onReadDescriptor() - address=" + address
             + ", status=" + status + ", length=" + data.length);
 
+        if (mBatchQueue.onComplete(connId, GattBatchQueue.OP_READ_DESCRIPTOR, status,
+                srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb, charInstId, charUuidLsb,
+                charUuidMsb, descrInstId, descrUuidLsb, descrUuidMsb, data)) {
+            continueBatch(connId);
+            return;
+        }
+
+        deliverDescriptorRead(connId, address, status, srvcType, srvcInstId,
+                new UUID(srvcUuidMsb, srvcUuidLsb), charInstId,
+                new UUID(charUuidMsb, charUuidLsb), descrInstId,
+                new UUID(descrUuidMsb, descrUuidLsb), data);
+        // Batches submitted meanwhile waited for this op
+        if (mBatchQueue.hasBatches(connId)) continueBatch(connId);
+    }
+
+    private void deliverDescriptorRead(int connId, String address, int status,
+            int srvcType, int srvcInstId, UUID srvcUuid, int charInstId, UUID charUuid,
+            int descrInstId, UUID descrUuid, byte[] data) throws RemoteException {
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
-            app.callback.onDescriptorRead(address, status, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid),
-                        descrInstId, new ParcelUuid(descrUuid), data);
+            long start = System.nanoTime();
+            try {
+                app.callback.onDescriptorRead(address, status, srvcType,
+                            srvcInstId, new ParcelUuid(srvcUuid),
+                            charInstId, new ParcelUuid(charUuid),
+                            descrInstId, new ParcelUuid(descrUuid), data);
+            } catch (RemoteException e) {
+                throw callbackFailed(GattMetrics.clientKey(app.id), connId, e);
+            }
+            mMetrics.record(GattMetrics.clientKey(app.id), connId, GattMetrics.EVENT_READ,
+                    start);
         }
     }
 
@@ -921,20 +1184,42 @@ public class GattService extends ProfileService {
             int charInstId, long charUuidLsb, long charUuidMsb,
             int descrInstId, long descrUuidLsb, long descrUuidMsb) throws RemoteException {
 
-        UUID srvcUuid = new UUID(srvcUuidMsb, srvcUuidLsb);
-        UUID charUuid = new UUID(charUuidMsb, charUuidLsb);
-        UUID descrUuid = new UUID(descrUuidMsb, descrUuidLsb);
         String address = mClientMap.addressByConnId(connId);
 
         if (VDBG) Log.d(TAG, "onWriteDescriptor() - address=" + address
             + ", status=" + status);
 
+        if (mBatchQueue.onComplete(connId, GattBatchQueue.OP_WRITE_DESCRIPTOR, status,
+                srvcType, srvcInstId, srvcUuidLsb, srvcUuidMsb, charInstId, charUuidLsb,
+                charUuidMsb, descrInstId, descrUuidLsb, descrUuidMsb, null)) {
+            continueBatch(connId);
+            return;
+        }
+
+        deliverDescriptorWrite(connId, address, status, srvcType, srvcInstId,
+                new UUID(srvcUuidMsb, srvcUuidLsb), charInstId,
+                new UUID(charUuidMsb, charUuidLsb), descrInstId,
+                new UUID(descrUuidMsb, descrUuidLsb));
+        // Batches submitted meanwhile waited for this op
+        if (mBatchQueue.hasBatches(connId)) continueBatch(connId);
+    }
+
+    private void deliverDescriptorWrite(int connId, String address, int status,
+            int srvcType, int srvcInstId, UUID srvcUuid, int charInstId, UUID charUuid,
+            int descrInstId, UUID descrUuid) throws RemoteException {
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
-            app.callback.onDescriptorWrite(address, status, srvcType,
-                        srvcInstId, new ParcelUuid(srvcUuid),
-                        charInstId, new ParcelUuid(charUuid),
-                        descrInstId, new ParcelUuid(descrUuid));
+            long start = System.nanoTime();
+            try {
+                app.callback.onDescriptorWrite(address, status, srvcType,
+                            srvcInstId, new ParcelUuid(srvcUuid),
+                            charInstId, new ParcelUuid(charUuid),
+                            descrInstId, new ParcelUuid(descrUuid));
+            } catch (RemoteException e) {
+                throw callbackFailed(GattMetrics.clientKey(app.id), connId, e);
+            }
+            mMetrics.record(GattMetrics.clientKey(app.id), connId, GattMetrics.EVENT_WRITE,
+                    start);
         }
     }
 
@@ -954,7 +1239,8 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onScanFilterEnableDisabled() - clientIf=" + clientIf + ", status=" + status
                     + ", action=" + action);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(ScanCommandQueue.TYPE_FILTER_ENABLE,
+                clientIf, status);
     }
 
     void onScanFilterParamsConfigured(int action, int status, int clientIf, int availableSpace) {
@@ -963,7 +1249,9 @@ public class GattService extends ProfileService {
                     + ", status=" + status + ", action=" + action
                     + ", availableSpace=" + availableSpace);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(ScanCommandQueue.TYPE_FILTER_PARAM_ADD
+                | ScanCommandQueue.TYPE_FILTER_PARAM_DELETE,
+                clientIf, status);
     }
 
     void onScanFilterConfig(int action, int status, int clientIf, int filterType,
@@ -974,14 +1262,16 @@ public class GattService extends ProfileService {
                     + ", availableSpace=" + availableSpace);
         }
 
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(ScanCommandQueue.TYPE_FILTER_ADD,
+                clientIf, status);
     }
 
     void onBatchScanStorageConfigured(int status, int clientIf) {
         if (DBG) {
             Log.d(TAG, "onBatchScanStorageConfigured() - clientIf="+ clientIf + ", status=" + status);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(ScanCommandQueue.TYPE_BATCH_STORAGE_CONFIG,
+                clientIf, status);
     }
 
     // TODO: split into two different callbacks : onBatchScanStarted and onBatchScanStopped.
@@ -990,7 +1280,9 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onBatchScanStartStopped() - clientIf=" + clientIf
                     + ", status=" + status + ", startStopAction=" + startStopAction);
         }
-        mScanManager.callbackDone(clientIf, status);
+        mScanManager.callbackDone(ScanCommandQueue.TYPE_BATCH_START
+                | ScanCommandQueue.TYPE_BATCH_STOP,
+                clientIf, status);
     }
 
     void onBatchScanReports(int status, int clientIf, int reportType, int numRecords,
@@ -999,129 +1291,100 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onBatchScanReports() - clientIf=" + clientIf + ", status=" + status
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
-        mScanManager.callbackDone(clientIf, status);
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        mScanManager.callbackDone(ScanCommandQueue.TYPE_READ_REPORTS,
+                clientIf, status);
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
             ClientMap.App app = mClientMap.getById(clientIf);
             if (app == null) return;
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(results));
-        } else {
-            for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
-                // Deliver results for each client.
-                deliverBatchScan(client, results);
+            List<ScanResult> results = parseTruncatedResults(numRecords, recordData);
+            try {
+                app.callback.onBatchScanResults(results);
+            } catch (RemoteException e) {
+                throw callbackFailed(GattMetrics.clientKey(clientIf), GattMetrics.NO_CONNECTION,
+                        e);
             }
+            mMetrics.count(GattMetrics.clientKey(clientIf), GattMetrics.NO_CONNECTION,
+                    GattMetrics.EVENT_SCAN_RESULT, results.size());
+        } else {
+            deliverFullBatchScan(numRecords, recordData);
         }
     }
 
-    // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults) throws
-            RemoteException {
-        ClientMap.App app = mClientMap.getById(client.clientIf);
-        if (app == null) return;
-        if (client.filters == null || client.filters.isEmpty()) {
-            app.callback.onBatchScanResults(new ArrayList<ScanResult>(allResults));
-        }
-        // Reconstruct the scan results.
-        List<ScanResult> results = new ArrayList<ScanResult>();
-        for (ScanResult scanResult : allResults) {
-            if (matchesFilters(client, scanResult)) {
-                results.add(scanResult);
-            }
+    // Parse full batch scan results and deliver the matching ones to each full batch client.
+    // A ScanResult is only built for records that may match at least one client.
+    private void deliverFullBatchScan(int numRecords, byte[] batchRecord) {
+        if (VDBG) Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
+        Set<ScanClient> clients = mScanManager.getFullBatchScanQueue();
+        Map<ScanClient, List<ScanResult>> clientResults =
+                new HashMap<ScanClient, List<ScanResult>>();
+        for (ScanClient client : clients) {
+            clientResults.put(client, new ArrayList<ScanResult>());
         }
-        app.callback.onBatchScanResults(results);
-    }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
-            byte[] batchRecord) {
-        if (numRecords == 0) {
-            return Collections.emptySet();
+        ScanFilterMatcher matcher = ScanFilterMatcher.build(clients);
+        BatchScanReportReader reader = new BatchScanReportReader(false, batchRecord, numRecords);
+        long now = SystemClock.elapsedRealtimeNanos();
+        while (reader.next()) {
+            int matched = matcher.match(reader.getAddress(), batchRecord,
+                    reader.getAdvertiseOffset(), reader.getAdvertiseLength(),
+                    reader.getScanResponseOffset(), reader.getScanResponseLength());
+            ScanResult result = null;
+            for (int i = 0; i < matched; ++i) {
+                ScanClient client = matcher.getMatched(i);
+                if (result == null) {
+                    BluetoothDevice device = mAdapter.getRemoteDevice(reader.getAddress());
+                    long timestampNanos = now - timestampUnitsToNanos(reader.getTimestampUnits());
+                    result = new ScanResult(device,
+                            ScanRecord.parseFromBytes(reader.copyScanRecord()),
+                            reader.getRssi(), timestampNanos);
+                    if (VDBG) Log.d(TAG, "ScanResult : " + result);
+                }
+                clientResults.get(client).add(result);
+            }
         }
-        if (DBG) Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
-        if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
-        } else {
-            return parseFullResults(numRecords, batchRecord);
+
+        for (Map.Entry<ScanClient, List<ScanResult>> entry : clientResults.entrySet()) {
+            ScanClient client = entry.getKey();
+            ClientMap.App app = mClientMap.getById(client.clientIf);
+            if (app == null) continue;
+            // A failed app is dropped so the other clients still get their results.
+            try {
+                app.callback.onBatchScanResults(entry.getValue());
+                mMetrics.count(GattMetrics.clientKey(client.clientIf), GattMetrics.NO_CONNECTION,
+                        GattMetrics.EVENT_SCAN_RESULT, entry.getValue().size());
+            } catch (RemoteException e) {
+                Log.e(TAG, "Exception: " + e);
+                callbackFailed(GattMetrics.clientKey(client.clientIf),
+                        GattMetrics.NO_CONNECTION, e);
+                mClientMap.remove(client.clientIf);
+                mScanManager.stopScan(client);
+            }
         }
     }
 
-    private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
+    private List<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
+        if (VDBG) Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
+        List<ScanResult> results = new ArrayList<ScanResult>(numRecords);
+        BatchScanReportReader reader = new BatchScanReportReader(true, batchRecord, numRecords);
         long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record = extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE,
-                    TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
+        while (reader.next()) {
+            BluetoothDevice device = mAdapter.getRemoteDevice(reader.getAddress());
+            long timestampNanos = now - timestampUnitsToNanos(reader.getTimestampUnits());
             results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]),
-                    rssi, timestampNanos));
+                    reader.getRssi(), timestampNanos));
         }
         return results;
     }
 
     @VisibleForTesting
     long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
-        // Timestamp is in every 50 ms.
-        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
-    }
-
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord,
-                    advertisePacketLen, scanResponsePacketLen);
-            Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord),
-                    rssi, timestampNanos));
-        }
-        return results;
-    }
-
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
-        }
+        return timestampUnitsToNanos(NumberUtils.littleEndianByteArrayToInt(data));
     }
 
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
+    private static long timestampUnitsToNanos(long timestampUnit) {
+        // Timestamp is in every 50 ms.
+        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
     }
 
     void onBatchScanThresholdCrossed(int clientIf) {
@@ -1148,24 +1411,42 @@ public class GattService extends ProfileService {
             return;
         }
 
+        ScanResult result = mScanManager.onHardwareLost(clientIf, address);
+        if (result == null) return;
         for (ScanClient client : mScanManager.getRegularScanQueue()) {
             if (client.clientIf == clientIf) {
                 ScanSettings settings = client.settings;
                 if ((settings.getCallbackType() &
                             ScanSettings.CALLBACK_TYPE_MATCH_LOST) != 0) {
-
-                    while (!mOnFoundResults.isEmpty()) {
-                        ScanResult result = mOnFoundResults.get(client);
+                    try {
                         app.callback.onFoundOrLost(false, result);
-                        synchronized (mOnFoundResults) {
-                            mOnFoundResults.remove(client);
-                        }
+                    } catch (RemoteException e) {
+                        throw callbackFailed(GattMetrics.clientKey(clientIf),
+                                GattMetrics.NO_CONNECTION, e);
                     }
                 }
             }
         }
     }
 
+    // Report a device that went silent for a MATCH_LOST client, detected in software.
+    void onSoftwareMatchLost(ScanClient client, ScanResult result) {
+        if (VDBG) Log.d(TAG, "onSoftwareMatchLost() - clientIf=" + client.clientIf);
+        if ((client.settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST) == 0) {
+            return;
+        }
+        ClientMap.App app = mClientMap.getById(client.clientIf);
+        if (app == null) return;
+        try {
+            app.callback.onFoundOrLost(false, result);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
+            callbackFailed(GattMetrics.clientKey(client.clientIf), GattMetrics.NO_CONNECTION, e);
+            mClientMap.remove(client.clientIf);
+            mScanManager.stopScan(client);
+        }
+    }
+
     // callback from AdvertiseManager for advertise status dispatch.
     void onMultipleAdvertiseCallback(int clientIf, int status, boolean isStart,
             AdvertiseSettings settings) throws RemoteException {
@@ -1225,6 +1506,7 @@ public class GattService extends ProfileService {
     void onAdvertiseInstanceDisabled(int status, int clientIf) throws RemoteException {
         if (DBG) Log.d(TAG, "onAdvertiseInstanceDisabled() - clientIf=" + clientIf
             + ", status=" + status);
+        if (mAdvertiseManager.onInstanceDisabled(clientIf)) return;
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             Log.d(TAG, "Client app is not null!");
@@ -1245,18 +1527,37 @@ public class GattService extends ProfileService {
         ClientMap.App app = mClientMap.getByConnId(connId);
 
         if (app != null) {
-            app.isCongested = congested;
+            if (congested && !app.isCongested) {
+                mMetrics.count(GattMetrics.clientKey(app.id), connId,
+                        GattMetrics.EVENT_CONGESTION, 1);
+            }
+            app.setCongested(congested);
             while(!app.isCongested) {
                 CallbackInfo callbackInfo = app.popQueuedCallback();
-                if (callbackInfo == null)  return;
-                app.callback.onCharacteristicWrite(callbackInfo.address,
-                        callbackInfo.status, callbackInfo.srvcType,
-                        callbackInfo.srvcInstId, new ParcelUuid(callbackInfo.srvcUuid),
-                        callbackInfo.charInstId, new ParcelUuid(callbackInfo.charUuid));
+                if (callbackInfo == null)  break;
+                long start = System.nanoTime();
+                try {
+                    app.callback.onCharacteristicWrite(callbackInfo.address,
+                            callbackInfo.status, callbackInfo.srvcType,
+                            callbackInfo.srvcInstId, new ParcelUuid(callbackInfo.srvcUuid),
+                            callbackInfo.charInstId, new ParcelUuid(callbackInfo.charUuid));
+                } catch (RemoteException e) {
+                    throw callbackFailed(GattMetrics.clientKey(app.id), connId, e);
+                }
+                mMetrics.record(GattMetrics.clientKey(app.id), connId, GattMetrics.EVENT_WRITE,
+                        start);
             }
+            // Resume batched operations once queued callbacks are out
+            if (!app.isCongested) continueBatch(connId);
         }
     }
 
+    // Counts a failed app callback, the caller rethrows the exception.
+    private RemoteException callbackFailed(int appKey, int connId, RemoteException e) {
+        mMetrics.count(appKey, connId, GattMetrics.EVENT_CALLBACK_FAILURE, 1);
+        return e;
+    }
+
     /**************************************************************************
      * GATT Service functions - Shared CLIENT/SERVER
      *************************************************************************/
@@ -1313,7 +1614,32 @@ public class GattService extends ProfileService {
         if (needsPrivilegedPermissionForScan(settings)) {
             enforcePrivilegedPermission();
         }
-        mScanManager.startScan(new ScanClient(appIf, isServer, settings, filters, storages));
+        ScanClient client = new ScanClient(appIf, isServer, settings, filters, storages);
+        ScanDuplicateFilter.Settings duplicateSettings =
+                isServer ? null : mScanDuplicateSettings.get(appIf);
+        if (duplicateSettings != null) client.duplicateFilter = duplicateSettings.newFilter();
+        mScanManager.startScan(client);
+    }
+
+    /**
+     * Suppress repeated advertisements in the scan results of a client. A
+     * device's advertisement is forwarded again once its payload changes,
+     * its RSSI moves by at least rssiDelta or refreshMillis elapsed since
+     * it was last forwarded. Applies to scans started afterwards; a
+     * refreshMillis of 0 turns the filtering off.
+     */
+    void setScanDuplicateFilter(int clientIf, int rssiDelta, int refreshMillis) {
+        enforceAdminPermission();
+
+        if (DBG) Log.d(TAG, "setScanDuplicateFilter() - clientIf=" + clientIf
+                + ", rssiDelta=" + rssiDelta + ", refreshMillis=" + refreshMillis);
+
+        if (refreshMillis > 0) {
+            mScanDuplicateSettings.put(clientIf, new ScanDuplicateFilter.Settings(
+                    Math.max(rssiDelta, 1), TimeUnit.MILLISECONDS.toNanos(refreshMillis)));
+        } else {
+            mScanDuplicateSettings.remove(clientIf);
+        }
     }
 
     void flushPendingBatchResults(int clientIf, boolean isServer) {
@@ -1347,6 +1673,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "unregisterClient() - clientIf=" + clientIf);
+        mScanDuplicateSettings.remove(clientIf);
         mClientMap.remove(clientIf);
         gattClientUnregisterAppNative(clientIf);
     }
@@ -1374,6 +1701,17 @@ public class GattService extends ProfileService {
                 scanResponse));
     }
 
+    /**
+     * Replace the advertising data of a started advertise client without
+     * restarting it. Payloads the controller already holds are not sent again.
+     */
+    void updateMultiAdvertising(int clientIf, AdvertiseData advertiseData,
+            AdvertiseData scanResponse) {
+        enforceAdminPermission();
+        mAdvertiseManager.updateAdvertising(new AdvertiseClient(clientIf, null, advertiseData,
+                scanResponse));
+    }
+
     void stopMultiAdvertising(AdvertiseClient client) {
         enforceAdminPermission();
         mAdvertiseManager.stopAdvertising(client);
@@ -1403,6 +1741,7 @@ public class GattService extends ProfileService {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
 
         if (DBG) Log.d(TAG, "refreshDevice() - address=" + address);
+        mDiscoveryCache.invalidate(address);
         gattClientRefreshNative(clientIf, address);
     }
 
@@ -1412,10 +1751,68 @@ public class GattService extends ProfileService {
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
         if (DBG) Log.d(TAG, "discoverServices() - address=" + address + ", connId=" + connId);
 
-        if (connId != null)
-            gattClientSearchServiceNative(connId, true, 0, 0);
-        else
+        if (connId == null) {
             Log.e(TAG, "discoverServices() - No connection for " + address + "...");
+            return;
+        }
+
+        if (isBonded(address)) {
+            // Checked against the services found by the search
+            mDiscoveryCache.prefetch(address);
+            mDiscoveryCache.startRecording(connId);
+        }
+        mDiscoveryEngine.start(connId, address, SystemClock.elapsedRealtime());
+        gattClientSearchServiceNative(connId, true, 0, 0);
+    }
+
+    /**
+     * Report the characteristics, included services and descriptors of a
+     * cached database whose services were just found by the search, instead
+     * of walking them on the remote device.
+     */
+    private void replayDiscovery(int connId, String address,
+            List<GattDiscoveryCache.Entry> entries) throws RemoteException {
+        if (DBG) Log.d(TAG, "replayDiscovery() - address=" + address
+                + ", entries=" + entries.size());
+        ClientMap.App app = mClientMap.getByConnId(connId);
+        if (app == null) return;
+
+        for (GattDiscoveryCache.Entry entry : entries) {
+            // Services were reported by the search
+            if (entry.type == GattDiscoveryCache.TYPE_SERVICE) continue;
+            ParcelUuid srvcUuid = new ParcelUuid(
+                    new UUID(entry.srvcUuidMsb, entry.srvcUuidLsb));
+            ParcelUuid uuid = new ParcelUuid(new UUID(entry.uuidMsb, entry.uuidLsb));
+            switch (entry.type) {
+                case GattDiscoveryCache.TYPE_CHARACTERISTIC:
+                    app.callback.onGetCharacteristic(address, entry.srvcType,
+                            entry.srvcInstId, srvcUuid, entry.instId, uuid, entry.property);
+                    break;
+                case GattDiscoveryCache.TYPE_INCLUDED_SERVICE:
+                    app.callback.onGetIncludedService(address, entry.srvcType,
+                            entry.srvcInstId, srvcUuid, entry.property, entry.instId, uuid);
+                    break;
+                case GattDiscoveryCache.TYPE_DESCRIPTOR:
+                    app.callback.onGetDescriptor(address, entry.srvcType,
+                            entry.srvcInstId, srvcUuid, entry.instId, uuid,
+                            entry.descrInstId, new ParcelUuid(
+                                    new UUID(entry.descrUuidMsb, entry.descrUuidLsb)));
+                    break;
+            }
+        }
+    }
+
+    private static void setCachedService(GattDiscoveryCache.Entry entry, int srvcType,
+            int srvcInstId, long srvcUuidLsb, long srvcUuidMsb) {
+        entry.srvcType = srvcType;
+        entry.srvcInstId = srvcInstId;
+        entry.srvcUuidLsb = srvcUuidLsb;
+        entry.srvcUuidMsb = srvcUuidMsb;
+    }
+
+    private static boolean isBonded(String address) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return device.getBondState() == BluetoothDevice.BOND_BONDED;
     }
 
     void readCharacteristic(int clientIf, String address, int srvcType,
@@ -1427,14 +1824,22 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "readCharacteristic() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
-            gattClientReadCharacteristicNative(connId, srvcType,
-                srvcInstanceId, srvcUuid.getLeastSignificantBits(),
-                srvcUuid.getMostSignificantBits(), charInstanceId,
-                charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
-                authReq);
-        else
+        if (connId == null) {
             Log.e(TAG, "readCharacteristic() - No connection for " + address + "...");
+            return;
+        }
+
+        if (!mBatchQueue.beginSingle(connId)) {
+            queueSingle(clientIf, connId, address, GattBatchQueue.Op.read(srvcType,
+                    srvcInstanceId, srvcUuid, charInstanceId, charUuid, authReq));
+            return;
+        }
+        armOpTimer(connId);
+        gattClientReadCharacteristicNative(connId, srvcType,
+            srvcInstanceId, srvcUuid.getLeastSignificantBits(),
+            srvcUuid.getMostSignificantBits(), charInstanceId,
+            charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
+            authReq);
     }
 
     void writeCharacteristic(int clientIf, String address, int srvcType,
@@ -1449,14 +1854,187 @@ public class GattService extends ProfileService {
         if (mReliableQueue.contains(address)) writeType = 3; // Prepared write
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
-            gattClientWriteCharacteristicNative(connId, srvcType,
-                srvcInstanceId, srvcUuid.getLeastSignificantBits(),
-                srvcUuid.getMostSignificantBits(), charInstanceId,
-                charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
-                writeType, authReq, value);
-        else
+        if (connId == null) {
             Log.e(TAG, "writeCharacteristic() - No connection for " + address + "...");
+            return;
+        }
+
+        if (!mBatchQueue.beginSingle(connId)) {
+            // The prepared write type is applied when the op is issued
+            queueSingle(clientIf, connId, address, GattBatchQueue.Op.write(srvcType,
+                    srvcInstanceId, srvcUuid, charInstanceId, charUuid, writeType, authReq,
+                    value));
+            return;
+        }
+        armOpTimer(connId);
+        gattClientWriteCharacteristicNative(connId, srvcType,
+            srvcInstanceId, srvcUuid.getLeastSignificantBits(),
+            srvcUuid.getMostSignificantBits(), charInstanceId,
+            charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
+            writeType, authReq, value);
+    }
+
+    /**
+     * Queue characteristic reads and writes for one connection. The ops are
+     * executed back-to-back and their results are reported together through
+     * callback once the last one completed. Batches are paused while the
+     * connection is congested.
+     */
+    void executeBatch(int clientIf, String address, List<GattBatchQueue.Op> ops,
+                      GattBatchQueue.Callback callback) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+        for (GattBatchQueue.Op op : ops) {
+            if (isHidUuid(op.charUuid)) {
+                enforcePrivilegedPermission();
+                break;
+            }
+        }
+
+        if (VDBG) Log.d(TAG, "executeBatch() - address=" + address + ", ops=" + ops.size());
+
+        GattBatchQueue.Batch batch = new GattBatchQueue.Batch(clientIf, address,
+                new ArrayList<GattBatchQueue.Op>(ops), callback);
+        Integer connId = mClientMap.connIdByAddress(clientIf, address);
+        if (connId == null) {
+            Log.e(TAG, "executeBatch() - No connection for " + address + "...");
+            for (GattBatchQueue.Op op : batch.ops) {
+                batch.results.add(new GattBatchQueue.Result(op, BluetoothGatt.GATT_FAILURE,
+                        null));
+            }
+            callback.onBatchComplete(address, batch.results);
+            return;
+        }
+
+        mBatchQueue.add(connId, batch);
+        continueBatch(connId);
+    }
+
+    private void continueBatch(int connId) {
+        GattBatchQueue.Batch batch;
+        while ((batch = mBatchQueue.pollDone(connId)) != null) {
+            batch.callback.onBatchComplete(batch.address, batch.results);
+        }
+
+        ClientMap.App app = mClientMap.getByConnId(connId);
+        if (app != null && app.isCongested) return;
+
+        GattBatchQueue.Op op = mBatchQueue.next(connId);
+        if (op == null) return;
+        armOpTimer(connId);
+
+        long srvcUuidLsb = op.srvcUuid.getLeastSignificantBits();
+        long srvcUuidMsb = op.srvcUuid.getMostSignificantBits();
+        long charUuidLsb = op.charUuid.getLeastSignificantBits();
+        long charUuidMsb = op.charUuid.getMostSignificantBits();
+        switch (op.type) {
+            case GattBatchQueue.OP_READ_CHARACTERISTIC:
+                gattClientReadCharacteristicNative(connId, op.srvcType, op.srvcInstId,
+                        srvcUuidLsb, srvcUuidMsb, op.charInstId, charUuidLsb, charUuidMsb,
+                        op.authReq);
+                break;
+
+            case GattBatchQueue.OP_WRITE_CHARACTERISTIC:
+            {
+                int writeType = op.writeType;
+                String address = mClientMap.addressByConnId(connId);
+                if (mReliableQueue.contains(address)) writeType = 3; // Prepared write
+                gattClientWriteCharacteristicNative(connId, op.srvcType, op.srvcInstId,
+                        srvcUuidLsb, srvcUuidMsb, op.charInstId, charUuidLsb, charUuidMsb,
+                        writeType, op.authReq, op.value);
+                break;
+            }
+
+            case GattBatchQueue.OP_READ_DESCRIPTOR:
+                gattClientReadDescriptorNative(connId, op.srvcType, op.srvcInstId,
+                        srvcUuidLsb, srvcUuidMsb, op.charInstId, charUuidLsb, charUuidMsb,
+                        op.descrInstId, op.descrUuid.getLeastSignificantBits(),
+                        op.descrUuid.getMostSignificantBits(), op.authReq);
+                break;
+
+            default:
+                gattClientWriteDescriptorNative(connId, op.srvcType, op.srvcInstId,
+                        srvcUuidLsb, srvcUuidMsb, op.charInstId, charUuidLsb, charUuidMsb,
+                        op.descrInstId, op.descrUuid.getLeastSignificantBits(),
+                        op.descrUuid.getMostSignificantBits(), op.writeType, op.authReq,
+                        op.value);
+                break;
+        }
+    }
+
+    /**
+     * Queue a single characteristic or descriptor read or write of the app
+     * behind the batches of its connection. The result is reported through
+     * the regular callbacks.
+     */
+    private void queueSingle(final int clientIf, final int connId, String address,
+            GattBatchQueue.Op op) {
+        if (VDBG) Log.d(TAG, "queueSingle() - address=" + address + ", type=" + op.type);
+        List<GattBatchQueue.Op> ops = new ArrayList<GattBatchQueue.Op>(1);
+        ops.add(op);
+        mBatchQueue.add(connId, new GattBatchQueue.Batch(clientIf, address, ops,
+                new GattBatchQueue.Callback() {
+            @Override
+            public void onBatchComplete(String address, List<GattBatchQueue.Result> results) {
+                GattBatchQueue.Result result = results.get(0);
+                GattBatchQueue.Op op = result.op;
+                byte[] value = result.value == null ? new byte[0] : result.value;
+                try {
+                    switch (op.type) {
+                        case GattBatchQueue.OP_READ_CHARACTERISTIC:
+                            deliverCharacteristicRead(connId, address, result.status,
+                                    op.srvcType, op.srvcInstId,
+                                    op.srvcUuid.getLeastSignificantBits(),
+                                    op.srvcUuid.getMostSignificantBits(), op.charInstId,
+                                    op.charUuid.getLeastSignificantBits(),
+                                    op.charUuid.getMostSignificantBits(), value);
+                            break;
+
+                        case GattBatchQueue.OP_WRITE_CHARACTERISTIC:
+                            deliverCharacteristicWrite(connId, address, result.status,
+                                    op.srvcType, op.srvcInstId, new ParcelUuid(op.srvcUuid),
+                                    op.charInstId, new ParcelUuid(op.charUuid));
+                            break;
+
+                        case GattBatchQueue.OP_READ_DESCRIPTOR:
+                            deliverDescriptorRead(connId, address, result.status,
+                                    op.srvcType, op.srvcInstId, op.srvcUuid, op.charInstId,
+                                    op.charUuid, op.descrInstId, op.descrUuid, value);
+                            break;
+
+                        default:
+                            deliverDescriptorWrite(connId, address, result.status,
+                                    op.srvcType, op.srvcInstId, op.srvcUuid, op.charInstId,
+                                    op.charUuid, op.descrInstId, op.descrUuid);
+                            break;
+                    }
+                } catch (RemoteException e) {
+                    // Counted as a callback failure by the deliver method; the
+                    // exception cannot reach the stack from here, so drop the app.
+                    Log.e(TAG, "Exception: " + e);
+                    mClientMap.remove(clientIf);
+                }
+            }
+        }));
+        continueBatch(connId);
+    }
+
+    // An op still in flight when the timer fires is expired, so an op is
+    // given between one and two timeouts to complete.
+    private void armOpTimer(int connId) {
+        if (mHandler == null) return;
+        int token = mBatchQueue.armTimer(connId);
+        if (token == 0) return;
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_OP_TIMEOUT, connId, token),
+                OP_TIMEOUT_MILLIS);
+    }
+
+    private void onOpTimeout(int connId, int token) {
+        if (mBatchQueue.onTimer(connId, token, BluetoothGatt.GATT_FAILURE)) {
+            // The stack never reported the op, e.g. because the native call failed
+            Log.w(TAG, "onOpTimeout() - no completion on connId=" + connId);
+            continueBatch(connId);
+        }
+        armOpTimer(connId);
     }
 
     void readDescriptor(int clientIf, String address, int srvcType,
@@ -1470,18 +2048,27 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "readDescriptor() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
-            gattClientReadDescriptorNative(connId, srvcType,
-                srvcInstanceId,
-                srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
-                charInstanceId,
-                charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
-                descrInstanceId,
-                descrUuid.getLeastSignificantBits(), descrUuid.getMostSignificantBits(),
-                authReq);
-        else
+        if (connId == null) {
             Log.e(TAG, "readDescriptor() - No connection for " + address + "...");
-    };
+            return;
+        }
+
+        if (!mBatchQueue.beginSingle(connId)) {
+            queueSingle(clientIf, connId, address, GattBatchQueue.Op.readDescriptor(srvcType,
+                    srvcInstanceId, srvcUuid, charInstanceId, charUuid, descrInstanceId,
+                    descrUuid, authReq));
+            return;
+        }
+        armOpTimer(connId);
+        gattClientReadDescriptorNative(connId, srvcType,
+            srvcInstanceId,
+            srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
+            charInstanceId,
+            charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
+            descrInstanceId,
+            descrUuid.getLeastSignificantBits(), descrUuid.getMostSignificantBits(),
+            authReq);
+    }
 
     void writeDescriptor(int clientIf, String address, int srvcType,
                             int srvcInstanceId, UUID srvcUuid,
@@ -1494,17 +2081,26 @@ public class GattService extends ProfileService {
         if (VDBG) Log.d(TAG, "writeDescriptor() - address=" + address);
 
         Integer connId = mClientMap.connIdByAddress(clientIf, address);
-        if (connId != null)
-            gattClientWriteDescriptorNative(connId, srvcType,
-                srvcInstanceId,
-                srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
-                charInstanceId,
-                charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
-                descrInstanceId,
-                descrUuid.getLeastSignificantBits(), descrUuid.getMostSignificantBits(),
-                writeType, authReq, value);
-        else
+        if (connId == null) {
             Log.e(TAG, "writeDescriptor() - No connection for " + address + "...");
+            return;
+        }
+
+        if (!mBatchQueue.beginSingle(connId)) {
+            queueSingle(clientIf, connId, address, GattBatchQueue.Op.writeDescriptor(
+                    srvcType, srvcInstanceId, srvcUuid, charInstanceId, charUuid,
+                    descrInstanceId, descrUuid, writeType, authReq, value));
+            return;
+        }
+        armOpTimer(connId);
+        gattClientWriteDescriptorNative(connId, srvcType,
+            srvcInstanceId,
+            srvcUuid.getLeastSignificantBits(), srvcUuid.getMostSignificantBits(),
+            charInstanceId,
+            charUuid.getLeastSignificantBits(), charUuid.getMostSignificantBits(),
+            descrInstanceId,
+            descrUuid.getLeastSignificantBits(), descrUuid.getMostSignificantBits(),
+            writeType, authReq, value);
     }
 
     void beginReliableWrite(int clientIf, String address) {
@@ -1609,7 +2205,8 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "onServerRegistered() - UUID=" + uuid + ", serverIf=" + serverIf);
         ServerMap.App app = mServerMap.getByUuid(uuid);
         if (app != null) {
-            app.id = serverIf;
+            mServerMap.setAppId(app, serverIf);
+            mMetrics.resetApp(GattMetrics.serverKey(serverIf));
             app.linkToDeath(new ServerDeathRecipient(serverIf));
             app.callback.onServerRegistered(status, serverIf);
         }
@@ -1694,8 +2291,12 @@ public class GattService extends ProfileService {
 
         if (connected) {
             mServerMap.addConnection(serverIf, connId, address);
+            mMetrics.resetConnection(connId);
         } else {
             mServerMap.removeConnection(serverIf, connId);
+            mHandleMap.removeSubscriptions(connId);
+            mCongestedServerConnections.remove(connId);
+            mPreparedWrites.remove(connId);
         }
 
         app.callback.onServerConnectionState((byte)0, serverIf, connected, address);
@@ -1711,38 +2312,50 @@ public class GattService extends ProfileService {
         HandleMap.Entry entry = mHandleMap.getByHandle(attrHandle);
         if (entry == null) return;
 
-        mHandleMap.addRequest(transId, attrHandle);
+        byte[] value = mHandleMap.startRead(transId, entry);
+        if (value != null) {
+            mAttributeCacheHits++;
+            sendCachedValue(entry.serverIf, connId, transId, attrHandle, offset, value);
+            return;
+        }
+        mAttributeCacheMisses++;
 
         ServerMap.App app = mServerMap.getById(entry.serverIf);
         if (app == null) return;
 
-        switch(entry.type) {
-            case HandleMap.TYPE_CHARACTERISTIC:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                app.callback.onCharacteristicReadRequest(address, transId, offset, isLong,
-                    serviceEntry.serviceType, serviceEntry.instance,
-                    new ParcelUuid(serviceEntry.uuid), entry.instance,
-                    new ParcelUuid(entry.uuid));
-                break;
-            }
+        long start = System.nanoTime();
+        try {
+            switch(entry.type) {
+                case HandleMap.TYPE_CHARACTERISTIC:
+                {
+                    HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                    app.callback.onCharacteristicReadRequest(address, transId, offset, isLong,
+                        serviceEntry.serviceType, serviceEntry.instance,
+                        new ParcelUuid(serviceEntry.uuid), entry.instance,
+                        new ParcelUuid(entry.uuid));
+                    break;
+                }
 
-            case HandleMap.TYPE_DESCRIPTOR:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
-                app.callback.onDescriptorReadRequest(address, transId, offset, isLong,
-                    serviceEntry.serviceType, serviceEntry.instance,
-                    new ParcelUuid(serviceEntry.uuid), charEntry.instance,
-                    new ParcelUuid(charEntry.uuid),
-                    new ParcelUuid(entry.uuid));
-                break;
-            }
+                case HandleMap.TYPE_DESCRIPTOR:
+                {
+                    HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                    HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
+                    app.callback.onDescriptorReadRequest(address, transId, offset, isLong,
+                        serviceEntry.serviceType, serviceEntry.instance,
+                        new ParcelUuid(serviceEntry.uuid), charEntry.instance,
+                        new ParcelUuid(charEntry.uuid),
+                        new ParcelUuid(entry.uuid));
+                    break;
+                }
 
-            default:
-                Log.e(TAG, "onAttributeRead() - Requested unknown attribute type.");
-                break;
+                default:
+                    Log.e(TAG, "onAttributeRead() - Requested unknown attribute type.");
+                    return;
+            }
+        } catch (RemoteException e) {
+            throw callbackFailed(GattMetrics.serverKey(app.id), connId, e);
         }
+        mMetrics.record(GattMetrics.serverKey(app.id), connId, GattMetrics.EVENT_READ, start);
     }
 
     void onAttributeWrite(String address, int connId, int transId,
@@ -1758,40 +2371,21 @@ public class GattService extends ProfileService {
         HandleMap.Entry entry = mHandleMap.getByHandle(attrHandle);
         if (entry == null) return;
 
-        mHandleMap.addRequest(transId, attrHandle);
+        if (isPrep && mAggregatedWriteServers.contains(entry.serverIf)) {
+            // Buffer the fragment and echo it back, the app sees the value on execution.
+            int status = mPreparedWrites.prepare(connId, attrHandle, offset, data);
+            sendServerResponse(entry.serverIf, connId, transId, status, attrHandle, offset, data);
+            return;
+        }
+
+        // The app owns the value again until it republishes it.
+        mHandleMap.startWrite(transId, entry, connId, offset, isPrep, data);
 
         ServerMap.App app = mServerMap.getById(entry.serverIf);
         if (app == null) return;
 
-        switch(entry.type) {
-            case HandleMap.TYPE_CHARACTERISTIC:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                app.callback.onCharacteristicWriteRequest(address, transId,
-                            offset, length, isPrep, needRsp,
-                            serviceEntry.serviceType, serviceEntry.instance,
-                            new ParcelUuid(serviceEntry.uuid), entry.instance,
-                            new ParcelUuid(entry.uuid), data);
-                break;
-            }
-
-            case HandleMap.TYPE_DESCRIPTOR:
-            {
-                HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
-                HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
-                app.callback.onDescriptorWriteRequest(address, transId,
-                            offset, length, isPrep, needRsp,
-                            serviceEntry.serviceType, serviceEntry.instance,
-                            new ParcelUuid(serviceEntry.uuid), charEntry.instance,
-                            new ParcelUuid(charEntry.uuid),
-                            new ParcelUuid(entry.uuid), data);
-                break;
-            }
-
-            default:
-                Log.e(TAG, "onAttributeWrite() - Requested unknown attribute type.");
-                break;
-        }
+        deliverAttributeWrite(app, address, connId, transId, entry, offset, length,
+                              needRsp, isPrep, data);
     }
 
     void onExecuteWrite(String address, int connId, int transId, int execWrite)
@@ -1802,7 +2396,89 @@ public class GattService extends ProfileService {
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
-        app.callback.onExecuteWrite(address, transId, execWrite == 1);
+        List<PreparedWriteBuffer.Value> values = mPreparedWrites.execute(connId);
+        if (values == null) {
+            try {
+                app.callback.onExecuteWrite(address, transId, execWrite == 1);
+            } catch (RemoteException e) {
+                throw callbackFailed(GattMetrics.serverKey(app.id), connId, e);
+            }
+            return;
+        }
+
+        // Prepared writes were assembled here. Cancellations and errors found
+        // while assembling are answered here, otherwise the app is asked to
+        // write each value and the execution is answered from its responses.
+        int status = BluetoothGatt.GATT_SUCCESS;
+        int handle = 0;
+        List<PreparedWriteBuffer.Value> writes =
+                new ArrayList<PreparedWriteBuffer.Value>(values.size());
+        if (execWrite == 1) {
+            for (PreparedWriteBuffer.Value value : values) {
+                if (value.status != BluetoothGatt.GATT_SUCCESS) {
+                    status = value.status;
+                    handle = value.handle;
+                    break;
+                }
+                if (mHandleMap.getByHandle(value.handle) != null) writes.add(value);
+            }
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS || writes.isEmpty()) {
+            sendServerResponse(app.id, connId, transId, status, handle, 0, new byte[0]);
+            return;
+        }
+
+        // Registered first, the app may respond before all values are out.
+        mPreparedWrites.awaitResponses(connId, transId, writes);
+        for (PreparedWriteBuffer.Value value : writes) {
+            HandleMap.Entry entry = mHandleMap.getByHandle(value.handle);
+            entry.value = null;
+            byte[] data = value.getValue();
+            mHandleMap.updateSubscription(entry, connId, data);
+            deliverAttributeWrite(app, address, connId, transId, entry, 0, data.length,
+                                  true, false, data);
+        }
+    }
+
+    private void deliverAttributeWrite(ServerMap.App app, String address, int connId,
+                            int transId, HandleMap.Entry entry, int offset, int length,
+                            boolean needRsp, boolean isPrep, byte[] data)
+                            throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            switch(entry.type) {
+                case HandleMap.TYPE_CHARACTERISTIC:
+                {
+                    HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                    app.callback.onCharacteristicWriteRequest(address, transId,
+                                offset, length, isPrep, needRsp,
+                                serviceEntry.serviceType, serviceEntry.instance,
+                                new ParcelUuid(serviceEntry.uuid), entry.instance,
+                                new ParcelUuid(entry.uuid), data);
+                    break;
+                }
+
+                case HandleMap.TYPE_DESCRIPTOR:
+                {
+                    HandleMap.Entry serviceEntry = mHandleMap.getByHandle(entry.serviceHandle);
+                    HandleMap.Entry charEntry = mHandleMap.getByHandle(entry.charHandle);
+                    app.callback.onDescriptorWriteRequest(address, transId,
+                                offset, length, isPrep, needRsp,
+                                serviceEntry.serviceType, serviceEntry.instance,
+                                new ParcelUuid(serviceEntry.uuid), charEntry.instance,
+                                new ParcelUuid(charEntry.uuid),
+                                new ParcelUuid(entry.uuid), data);
+                    break;
+                }
+
+                default:
+                    Log.e(TAG, "onAttributeWrite() - Requested unknown attribute type.");
+                    return;
+            }
+        } catch (RemoteException e) {
+            throw callbackFailed(GattMetrics.serverKey(app.id), connId, e);
+        }
+        mMetrics.record(GattMetrics.serverKey(app.id), connId, GattMetrics.EVENT_WRITE, start);
     }
 
     void onResponseSendCompleted(int status, int attrHandle) {
@@ -1819,11 +2495,16 @@ public class GattService extends ProfileService {
         if (app == null) return;
 
         if (!app.isCongested) {
-            app.callback.onNotificationSent(address, status);
+            try {
+                app.callback.onNotificationSent(address, status);
+            } catch (RemoteException e) {
+                throw callbackFailed(GattMetrics.serverKey(app.id), connId, e);
+            }
         } else {
             if (status == BluetoothGatt.GATT_CONNECTION_CONGESTED) {
                 status = BluetoothGatt.GATT_SUCCESS;
             }
+            mMetrics.count(GattMetrics.serverKey(app.id), connId, GattMetrics.EVENT_DEFERRED, 1);
             app.queueCallback(new CallbackInfo(address, status));
         }
     }
@@ -1834,11 +2515,25 @@ public class GattService extends ProfileService {
         ServerMap.App app = mServerMap.getByConnId(connId);
         if (app == null) return;
 
-        app.isCongested = congested;
+        if (congested) {
+            if (!app.isCongested) {
+                mMetrics.count(GattMetrics.serverKey(app.id), connId,
+                        GattMetrics.EVENT_CONGESTION, 1);
+            }
+            mCongestedServerConnections.add(connId);
+        } else {
+            mCongestedServerConnections.remove(connId);
+        }
+
+        app.setCongested(congested);
         while(!app.isCongested) {
             CallbackInfo callbackInfo = app.popQueuedCallback();
             if (callbackInfo == null) return;
-            app.callback.onNotificationSent(callbackInfo.address, callbackInfo.status);
+            try {
+                app.callback.onNotificationSent(callbackInfo.address, callbackInfo.status);
+            } catch (RemoteException e) {
+                throw callbackFailed(GattMetrics.serverKey(app.id), connId, e);
+            }
         }
     }
 
@@ -1873,6 +2568,7 @@ public class GattService extends ProfileService {
         if (DBG) Log.d(TAG, "unregisterServer() - serverIf=" + serverIf);
 
         deleteServices(serverIf);
+        mAggregatedWriteServers.remove(serverIf);
 
         mServerMap.remove(serverIf);
         gattServerUnregisterAppNative(serverIf);
@@ -1947,7 +2643,7 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "removeService() - uuid=" + srvcUuid);
 
-        int srvcHandle = mHandleMap.getServiceHandle(srvcUuid, srvcType, srvcInstanceId);
+        int srvcHandle = mHandleMap.getServiceHandle(serverIf, srvcUuid, srvcType, srvcInstanceId);
         if (srvcHandle == 0) return;
         gattServerDeleteServiceNative(serverIf, srvcHandle);
     }
@@ -1965,14 +2661,151 @@ public class GattService extends ProfileService {
 
         if (VDBG) Log.d(TAG, "sendResponse() - address=" + address);
 
-        int handle = 0;
-        HandleMap.Entry entry = mHandleMap.getByRequestId(requestId);
-        if (entry != null) handle = entry.handle;
-
         int connId = mServerMap.connIdByAddress(serverIf, address);
-        gattServerSendResponseNative(serverIf, connId, requestId, (byte)status,
+        PreparedWriteBuffer.Execution execution =
+                mPreparedWrites.onResponse(connId, requestId, status);
+        if (execution != null) {
+            // A write of an assembled value, answered with the execute request
+            if (execution.isComplete()) {
+                sendServerResponse(serverIf, connId, requestId, execution.status,
+                        execution.handle, 0, new byte[0]);
+            }
+            return;
+        }
+
+        int handle = mHandleMap.finishRequest(requestId);
+        sendServerResponse(serverIf, connId, requestId, status, handle, offset, value);
+    }
+
+    @VisibleForTesting
+    void sendServerResponse(int serverIf, int connId, int transId, int status, int handle,
+                            int offset, byte[] value) {
+        gattServerSendResponseNative(serverIf, connId, transId, (byte)status,
                                      handle, offset, value, (byte)0);
-        mHandleMap.deleteRequest(requestId);
+    }
+
+    /**
+     * Send a notification or indication of a characteristic value to several
+     * connections at once. If addresses is null the value is sent to every
+     * connection that enabled notifications or indications for the
+     * characteristic. Congested connections are skipped.
+     *
+     * @return the status for each target address; GATT_SUCCESS means the value
+     *         was handed to the stack
+     */
+    Map<String, Integer> sendMulticastNotification(int serverIf, int srvcType,
+                                 int srvcInstanceId, UUID srvcUuid,
+                                 int charInstanceId, UUID charUuid,
+                                 boolean confirm, byte[] value, List<String> addresses) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+
+        Map<String, Integer> results = new HashMap<String, Integer>();
+
+        int srvcHandle = mHandleMap.getServiceHandle(serverIf, srvcUuid, srvcType, srvcInstanceId);
+        if (srvcHandle == 0) return results;
+
+        int charHandle = mHandleMap.getCharacteristicHandle(srvcHandle, charUuid, charInstanceId);
+        if (charHandle == 0) return results;
+
+        List<Integer> connIds = new ArrayList<Integer>();
+        if (addresses == null) {
+            HandleMap.Entry entry = mHandleMap.getByHandle(charHandle);
+            SparseIntArray subscribers = (entry != null) ? entry.subscribers : null;
+            for (int i = 0; subscribers != null && i < subscribers.size(); ++i) {
+                connIds.add(subscribers.keyAt(i));
+            }
+        } else {
+            for (String address : addresses) {
+                Integer connId = mServerMap.connIdByAddress(serverIf, address);
+                if (connId == null) {
+                    results.put(address, BluetoothGatt.GATT_FAILURE);
+                } else {
+                    connIds.add(connId);
+                }
+            }
+        }
+
+        if (VDBG) Log.d(TAG, "sendMulticastNotification() - charUuid=" + charUuid
+                + ", connections=" + connIds.size());
+
+        for (int connId : connIds) {
+            String address = mServerMap.addressByConnId(connId);
+            if (address == null) continue;
+
+            if (mCongestedServerConnections.contains(connId)) {
+                results.put(address, BluetoothGatt.GATT_CONNECTION_CONGESTED);
+                continue;
+            }
+            if (confirm) {
+                gattServerSendIndicationNative(serverIf, charHandle, connId, value);
+            } else {
+                gattServerSendNotificationNative(serverIf, charHandle, connId, value);
+            }
+            results.put(address, BluetoothGatt.GATT_SUCCESS);
+        }
+        return results;
+    }
+
+    /**
+     * Publish the value of a local characteristic, or of one of its descriptors
+     * if descrUuid is not null. Remote reads of the attribute are then answered
+     * with the published value without a read request callback to the app.
+     * A null value, or a remote write to the attribute, clears the value.
+     */
+    void setAttributeValue(int serverIf, int srvcType, int srvcInstanceId, UUID srvcUuid,
+                           int charInstanceId, UUID charUuid, UUID descrUuid,
+                           byte[] value) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+
+        if (VDBG) Log.d(TAG, "setAttributeValue() - charUuid=" + charUuid
+                + ", descrUuid=" + descrUuid);
+
+        int srvcHandle = mHandleMap.getServiceHandle(serverIf, srvcUuid, srvcType, srvcInstanceId);
+        if (srvcHandle == 0) return;
+
+        int handle = mHandleMap.getCharacteristicHandle(srvcHandle, charUuid, charInstanceId);
+        if (handle != 0 && descrUuid != null) {
+            handle = mHandleMap.getDescriptorHandle(handle, descrUuid);
+        }
+        if (handle == 0) return;
+
+        HandleMap.Entry entry = mHandleMap.getByHandle(handle);
+        if (entry != null) entry.value = (value == null) ? null : value.clone();
+    }
+
+    /**
+     * Let the service assemble the prepared writes to the attributes of a
+     * server. Fragments are then answered by the service, and the app gets
+     * one write request per attribute with the complete value when the
+     * writes are executed. Each request needs a response; the execute write
+     * is answered once the app responded to all of them, with the first
+     * error it responded with.
+     */
+    void setPreparedWriteAggregation(int serverIf, boolean enable) {
+        enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
+
+        if (DBG) Log.d(TAG, "setPreparedWriteAggregation() - serverIf=" + serverIf
+                + ", enable=" + enable);
+
+        if (enable) {
+            mAggregatedWriteServers.add(serverIf);
+        } else {
+            mAggregatedWriteServers.remove(serverIf);
+        }
+    }
+
+    private void sendCachedValue(int serverIf, int connId, int transId, int handle,
+                                 int offset, byte[] value) {
+        int status = BluetoothGatt.GATT_SUCCESS;
+        byte[] response;
+        if (offset > value.length) {
+            status = BluetoothGatt.GATT_INVALID_OFFSET;
+            response = new byte[0];
+        } else {
+            response = Arrays.copyOfRange(value, offset, value.length);
+        }
+        gattServerSendResponseNative(serverIf, connId, transId, (byte)status,
+                                     handle, offset, response, (byte)0);
     }
 
     void sendNotification(int serverIf, String address, int srvcType,
@@ -1983,7 +2816,7 @@ public class GattService extends ProfileService {
 
         if (VDBG) Log.d(TAG, "sendNotification() - address=" + address);
 
-        int srvcHandle = mHandleMap.getServiceHandle(srvcUuid, srvcType, srvcInstanceId);
+        int srvcHandle = mHandleMap.getServiceHandle(serverIf, srvcUuid, srvcType, srvcInstanceId);
         if (srvcHandle == 0) return;
 
         int charHandle = mHandleMap.getCharacteristicHandle(srvcHandle, charUuid, charInstanceId);
@@ -2046,25 +2879,34 @@ public class GattService extends ProfileService {
             "Need BLUETOOTH_PRIVILEGED permission");
     }
 
-    private void continueSearch(int connId, int status) throws RemoteException {
-        if (status == 0 && !mSearchQueue.isEmpty()) {
-            SearchQueue.Entry svc = mSearchQueue.pop();
+    private void continueSearch(int connId) throws RemoteException {
+        GattDiscoveryEngine.Service svc = mDiscoveryEngine.nextService(connId);
+        if (svc != null) {
+            // Characteristics of the next service are up next
+            gattClientGetCharacteristicNative(connId, svc.type,
+                svc.instId, svc.uuidLsb, svc.uuidMsb, 0, 0, 0);
+            return;
+        }
 
-            if (svc.charUuidLsb == 0) {
-                // Characteristic is up next
-                gattClientGetCharacteristicNative(svc.connId, svc.srvcType,
-                    svc.srvcInstId, svc.srvcUuidLsb, svc.srvcUuidMsb, 0, 0, 0);
-            } else {
-                // Descriptor is up next
-                gattClientGetDescriptorNative(svc.connId, svc.srvcType,
-                    svc.srvcInstId, svc.srvcUuidLsb, svc.srvcUuidMsb,
-                    svc.charInstId, svc.charUuidLsb, svc.charUuidMsb, 0, 0, 0);
-            }
-        } else {
-            ClientMap.App app = mClientMap.getByConnId(connId);
-            if (app != null) {
-                app.callback.onSearchComplete(mClientMap.addressByConnId(connId), status);
-            }
+        // Descriptors of independent characteristics are explored concurrently
+        for (GattDiscoveryEngine.Characteristic chr
+                : mDiscoveryEngine.nextDescriptorDiscoveries(connId)) {
+            gattClientGetDescriptorNative(connId, chr.service.type,
+                chr.service.instId, chr.service.uuidLsb, chr.service.uuidMsb,
+                chr.instId, chr.uuidLsb, chr.uuidMsb, 0, 0, 0);
+        }
+
+        if (mDiscoveryEngine.isComplete(connId)) finishSearch(connId, 0);
+    }
+
+    private void finishSearch(int connId, int status) throws RemoteException {
+        String address = mClientMap.addressByConnId(connId);
+        mDiscoveryEngine.finish(connId, address, status, SystemClock.elapsedRealtime());
+        mDiscoveryCache.finishRecording(connId, address, status,
+                System.currentTimeMillis());
+        ClientMap.App app = mClientMap.getByConnId(connId);
+        if (app != null) {
+            app.callback.onSearchComplete(address, status);
         }
     }
 
@@ -2109,7 +2951,7 @@ public class GattService extends ProfileService {
 
                 case ServiceDeclaration.TYPE_INCLUDED_SERVICE:
                 {
-                    int inclSrvc = mHandleMap.getServiceHandle(entry.uuid,
+                    int inclSrvc = mHandleMap.getServiceHandle(serverIf, entry.uuid,
                                             entry.serviceType, entry.instance);
                     if (inclSrvc != 0) {
                         gattServerAddIncludedServiceNative(serverIf, srvcHandle,
@@ -2187,36 +3029,6 @@ public class GattService extends ProfileService {
         }
     }
 
-    private List<UUID> parseUuids(byte[] adv_data) {
-        List<UUID> uuids = new ArrayList<UUID>();
-
-        int offset = 0;
-        while(offset < (adv_data.length-2)) {
-            int len = adv_data[offset++];
-            if (len == 0) break;
-
-            int type = adv_data[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = adv_data[offset++];
-                        uuid16 += (adv_data[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format(
-                            "%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-
-                default:
-                    offset += (len - 1);
-                    break;
-            }
-        }
-
-        return uuids;
-    }
-
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
@@ -2224,24 +3036,52 @@ public class GattService extends ProfileService {
         for (UUID uuid : mAdvertisingServiceUuids) {
             println(sb, "  " + uuid);
         }
-        println(sb, "mOnFoundResults:");
-        for (ScanResult result : mOnFoundResults.values()) {
-            println(sb, "  " + result);
-        }
-        println(sb, "mOnFoundResults:");
+        println(sb, "mServiceDeclarations:");
         for (ServiceDeclaration declaration : mServiceDeclarations) {
             println(sb, "  " + declaration);
         }
         println(sb, "mMaxScanFilters: " + mMaxScanFilters);
+        println(sb, "Duplicate scan result filters:");
+        for (ScanClient client : mScanManager.getRegularScanQueue()) {
+            ScanDuplicateFilter filter = client.duplicateFilter;
+            if (filter == null) continue;
+            println(sb, "  clientIf " + client.clientIf + ": suppressed " + filter.getHits()
+                    + ", forwarded " + filter.getMisses());
+        }
+
+        sb.append("\nScan Manager\n");
+        mScanManager.dump(sb);
+
+        sb.append("\nAdvertise Manager\n");
+        mAdvertiseManager.dump(sb);
 
         sb.append("\nGATT Client Map\n");
         mClientMap.dump(sb);
+        mBatchQueue.dump(sb);
 
         sb.append("\nGATT Server Map\n");
         mServerMap.dump(sb);
+        mPreparedWrites.dump(sb);
 
         sb.append("\nGATT Handle Map\n");
+        println(sb, "  Attribute value cache: hits " + mAttributeCacheHits
+                + ", misses " + mAttributeCacheMisses);
         mHandleMap.dump(sb);
+
+        println(sb, "Callback UUID cache: hits " + mCallbackUuids.getHits()
+                + ", misses " + mCallbackUuids.getMisses());
+
+        sb.append("\nGATT Discovery\n");
+        mDiscoveryEngine.dump(sb, SystemClock.elapsedRealtime());
+
+        sb.append("\nGATT Discovery Cache\n");
+        mDiscoveryCache.dump(sb);
+
+        sb.append("\nGATT Metrics (latency: enqueue of the oneway app callback only)\n");
+        mMetrics.dump(sb);
+        sb.append("  JSON: ");
+        mMetrics.dumpJson(sb);
+        sb.append("\n");
     }
 
     /**************************************************************************
@@ -16,11 +16,11 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 
 class HandleMap {
@@ -32,6 +32,11 @@ class HandleMap {
     public static final int TYPE_CHARACTERISTIC = 2;
     public static final int TYPE_DESCRIPTOR = 3;
 
+    private static final int ANY_SERVICE_TYPE = -1;
+
+    private static final UUID CLIENT_CONFIG_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
     class Entry {
         int serverIf = 0;
         int type = TYPE_UNDEFINED;
@@ -43,6 +48,10 @@ class HandleMap {
         int charHandle = 0;
         boolean started = false;
         boolean advertisePreferred = false;
+        /** Value published by the server app, used to answer remote reads */
+        volatile byte[] value = null;
+        /** Client configuration written by each connection, for characteristics */
+        SparseIntArray subscribers = null;
 
         Entry(int serverIf, int handle, UUID uuid, int serviceType, int instance) {
             this.serverIf = serverIf;
@@ -85,89 +94,139 @@ class HandleMap {
     }
 
     List<Entry> mEntries = null;
-    Map<Integer, Integer> mRequestMap = null;
+    SparseIntArray mRequestMap = null;
     int mLastCharacteristic = 0;
 
+    /** Attribute table indexed by handle */
+    private SparseArray<Entry> mHandleIndex = null;
+
+    /**
+     * Services of each server interface and characteristics of each service,
+     * in declaration order. Lookups return the first match, so duplicate
+     * UUIDs resolve to the first declared attribute.
+     */
+    private SparseArray<List<Entry>> mServicesByServer = null;
+    private SparseArray<List<Entry>> mCharacteristicsByService = null;
+
     HandleMap() {
         mEntries = new ArrayList<Entry>();
-        mRequestMap = new HashMap<Integer, Integer>();
+        mRequestMap = new SparseIntArray();
+        mHandleIndex = new SparseArray<Entry>();
+        mServicesByServer = new SparseArray<List<Entry>>();
+        mCharacteristicsByService = new SparseArray<List<Entry>>();
     }
 
     void clear() {
         mEntries.clear();
         mRequestMap.clear();
+        mHandleIndex.clear();
+        mServicesByServer.clear();
+        mCharacteristicsByService.clear();
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
         boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        Entry entry = new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred);
+        mEntries.add(entry);
+        mHandleIndex.put(handle, entry);
+        addToGroup(mServicesByServer, serverIf, entry);
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        Entry entry = new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle);
+        mEntries.add(entry);
+        mHandleIndex.put(handle, entry);
+        addToGroup(mCharacteristicsByService, serviceHandle, entry);
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle, mLastCharacteristic));
+        Entry entry = new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
+                mLastCharacteristic);
+        mEntries.add(entry);
+        mHandleIndex.put(handle, entry);
     }
 
     void setStarted(int serverIf, int handle, boolean started) {
-        for(Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE ||
-                entry.serverIf != serverIf ||
-                entry.handle != handle)
-                continue;
-
-            entry.started = started;
+        Entry entry = mHandleIndex.get(handle);
+        if (entry == null ||
+            entry.type != TYPE_SERVICE ||
+            entry.serverIf != serverIf)
             return;
-        }
+
+        entry.started = started;
     }
 
     Entry getByHandle(int handle) {
-        for(Entry entry : mEntries) {
-            if (entry.handle == handle)
-                return entry;
-        }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
+        Entry entry = mHandleIndex.get(handle);
+        if (entry == null) Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
+        return entry;
     }
 
-    int getServiceHandle(UUID uuid, int serviceType, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE &&
-                entry.serviceType == serviceType &&
-                entry.instance == instance &&
-                entry.uuid.equals(uuid)) {
-                return entry.handle;
-            }
+    int getServiceHandle(int serverIf, UUID uuid, int serviceType, int instance) {
+        Entry entry = findInGroup(mServicesByServer.get(serverIf), uuid, serviceType, instance);
+        if (entry == null) {
+            Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
+            return 0;
         }
-        Log.e(TAG, "getServiceHandle() - UUID " + uuid + " not found!");
-        return 0;
+        return entry.handle;
     }
 
     int getCharacteristicHandle(int serviceHandle, UUID uuid, int instance) {
-        for(Entry entry : mEntries) {
-            if (entry.type == TYPE_CHARACTERISTIC &&
-                entry.serviceHandle == serviceHandle &&
-                entry.instance == instance &&
+        Entry entry = findInGroup(mCharacteristicsByService.get(serviceHandle), uuid,
+                ANY_SERVICE_TYPE, instance);
+        if (entry == null) {
+            Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
+                        + ", UUID " + uuid + " not found!");
+            return 0;
+        }
+        return entry.handle;
+    }
+
+    int getDescriptorHandle(int charHandle, UUID uuid) {
+        for (Entry entry : mEntries) {
+            if (entry.type == TYPE_DESCRIPTOR && entry.charHandle == charHandle &&
                 entry.uuid.equals(uuid)) {
                 return entry.handle;
             }
         }
-        Log.e(TAG, "getCharacteristicHandle() - Service " + serviceHandle
+        Log.e(TAG, "getDescriptorHandle() - Characteristic " + charHandle
                     + ", UUID " + uuid + " not found!");
         return 0;
     }
 
+    /**
+     * Record the client characteristic configuration written by a connection.
+     * A value of 0 unsubscribes the connection.
+     */
+    void setSubscription(int charHandle, int connId, int value) {
+        Entry entry = mHandleIndex.get(charHandle);
+        if (entry == null || entry.type != TYPE_CHARACTERISTIC) return;
+
+        if (value == 0) {
+            if (entry.subscribers != null) entry.subscribers.delete(connId);
+            return;
+        }
+        if (entry.subscribers == null) entry.subscribers = new SparseIntArray();
+        entry.subscribers.put(connId, value);
+    }
+
+    void removeSubscriptions(int connId) {
+        for (Entry entry : mEntries) {
+            if (entry.subscribers != null) entry.subscribers.delete(connId);
+        }
+    }
+
     void deleteService(int serverIf, int serviceHandle) {
         for(Iterator <Entry> it = mEntries.iterator(); it.hasNext();) {
             Entry entry = it.next();
             if (entry.serverIf != serverIf) continue;
 
             if (entry.handle == serviceHandle ||
-                entry.serviceHandle == serviceHandle)
+                entry.serviceHandle == serviceHandle) {
                 it.remove();
+                removeFromIndex(entry);
+            }
         }
     }
 
@@ -180,18 +239,109 @@ class HandleMap {
     }
 
     void deleteRequest(int requestId) {
-        mRequestMap.remove(requestId);
+        mRequestMap.delete(requestId);
     }
 
     Entry getByRequestId(int requestId) {
-        Integer handle = mRequestMap.get(requestId);
-        if (handle == null) {
+        int handle = mRequestMap.get(requestId, 0);
+        if (handle == 0) {
             Log.e(TAG, "getByRequestId() - Request ID " + requestId + " not found!");
             return null;
         }
         return getByHandle(handle);
     }
 
+    /**
+     * Start a remote read of an attribute. Returns the value published by
+     * the server app, or null if the app has to answer, in which case the
+     * request is recorded for its response.
+     */
+    byte[] startRead(int requestId, Entry entry) {
+        byte[] value = entry.value;
+        if (value == null) addRequest(requestId, entry.handle);
+        return value;
+    }
+
+    /**
+     * Start a remote write of an attribute, which the app has to answer.
+     * The published value is dropped until the app publishes it again, and
+     * a complete client configuration write updates the subscription.
+     */
+    void startWrite(int requestId, Entry entry, int connId, int offset, boolean isPrep,
+            byte[] data) {
+        entry.value = null;
+        if (!isPrep && offset == 0) updateSubscription(entry, connId, data);
+        addRequest(requestId, entry.handle);
+    }
+
+    /**
+     * Record the client configuration written to a descriptor by a connection.
+     */
+    void updateSubscription(Entry entry, int connId, byte[] data) {
+        if (entry.type == TYPE_DESCRIPTOR && CLIENT_CONFIG_UUID.equals(entry.uuid)
+                && data != null && data.length >= 2) {
+            setSubscription(entry.charHandle, connId, (data[0] & 0xFF) | ((data[1] & 0xFF) << 8));
+        }
+    }
+
+    /**
+     * Forget a request answered by the app.
+     *
+     * @return the handle of the requested attribute, or 0 if the request is
+     *         unknown
+     */
+    int finishRequest(int requestId) {
+        Entry entry = getByRequestId(requestId);
+        deleteRequest(requestId);
+        return entry == null ? 0 : entry.handle;
+    }
+
+    private void removeFromIndex(Entry entry) {
+        if (mHandleIndex.get(entry.handle) == entry) mHandleIndex.remove(entry.handle);
+
+        switch(entry.type) {
+            case TYPE_SERVICE:
+                removeFromGroup(mServicesByServer, entry.serverIf, entry);
+                break;
+
+            case TYPE_CHARACTERISTIC:
+                removeFromGroup(mCharacteristicsByService, entry.serviceHandle, entry);
+                break;
+        }
+    }
+
+    private static void addToGroup(SparseArray<List<Entry>> groups, int owner, Entry entry) {
+        List<Entry> group = groups.get(owner);
+        if (group == null) {
+            group = new ArrayList<Entry>();
+            groups.put(owner, group);
+        }
+        group.add(entry);
+    }
+
+    private static void removeFromGroup(SparseArray<List<Entry>> groups, int owner,
+                                        Entry entry) {
+        List<Entry> group = groups.get(owner);
+        if (group == null) return;
+        group.remove(entry);
+        if (group.isEmpty()) groups.remove(owner);
+    }
+
+    // Returns the first entry of the group matching uuid and instance, and the
+    // service type unless it is ANY_SERVICE_TYPE. Indexed loop, no iterator.
+    private static Entry findInGroup(List<Entry> group, UUID uuid, int serviceType,
+                                     int instance) {
+        if (group == null) return null;
+        for (int i = 0; i < group.size(); i++) {
+            Entry entry = group.get(i);
+            if (entry.instance == instance && entry.uuid.equals(uuid) &&
+                (serviceType == ANY_SERVICE_TYPE || entry.serviceType == serviceType)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
 
     /**
      * Logs debug information.
@@ -217,6 +367,9 @@ class HandleMap {
                     break;
             }
 
+            byte[] value = entry.value;
+            if (value != null) sb.append(", cached " + value.length + " bytes");
+
             sb.append("\n");
         }
     }
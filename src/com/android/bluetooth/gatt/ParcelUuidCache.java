@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.ParcelUuid;
+
+import java.util.UUID;
+
+/**
+ * Direct mapped cache interning the ParcelUuid objects handed to app
+ * callbacks, so that attributes reported repeatedly (e.g. streaming
+ * notifications) do not allocate new UUID objects per callback.
+ *
+ * The cache is not thread safe and must only be used from the stack
+ * callback thread.
+ *
+ * @hide
+ */
+/* package */class ParcelUuidCache {
+    static final int DEFAULT_SIZE = 64;
+
+    private final long[] mMsb;
+    private final long[] mLsb;
+    private final ParcelUuid[] mUuids;
+    private final int mMask;
+
+    private long mHits;
+    private long mMisses;
+
+    ParcelUuidCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    ParcelUuidCache(int size) {
+        int capacity = 1;
+        while (capacity < size) capacity <<= 1;
+        mMask = capacity - 1;
+        mMsb = new long[capacity];
+        mLsb = new long[capacity];
+        mUuids = new ParcelUuid[capacity];
+    }
+
+    /**
+     * Returns the ParcelUuid for the given UUID halves.
+     */
+    ParcelUuid get(long msb, long lsb) {
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        int pos = (int) (h >>> 32) & mMask;
+        ParcelUuid uuid = mUuids[pos];
+        if (uuid != null && mMsb[pos] == msb && mLsb[pos] == lsb) {
+            mHits++;
+            return uuid;
+        }
+        mMisses++;
+        uuid = new ParcelUuid(new UUID(msb, lsb));
+        mMsb[pos] = msb;
+        mLsb[pos] = lsb;
+        mUuids[pos] = uuid;
+        return uuid;
+    }
+
+    long getHits() {
+        return mHits;
+    }
+
+    long getMisses() {
+        return mMisses;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assembles prepared writes to local attributes until they are executed.
+ *
+ * Fragments are copied into one buffer per connection and attribute at
+ * their offset. Offset and length errors are recorded and reported on
+ * execution, as required by ATT. The memory held per connection is capped;
+ * a fragment that does not fit is rejected with Prepare Queue Full.
+ *
+ * Once executed, the assembled values are written to the app as requests
+ * that need a response, and the execute request is only answered when the
+ * app responded to all of them.
+ *
+ * @hide
+ */
+/* package */class PreparedWriteBuffer {
+    static final int DEFAULT_CONNECTION_CAPACITY = 4096;
+    static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    /** ATT error returned when a fragment exceeds the connection capacity. */
+    static final int PREPARE_QUEUE_FULL = 0x09;
+
+    private static final int MIN_ALLOCATION = 64;
+
+    /**
+     * The assembled value of one attribute.
+     */
+    static class Value {
+        final int handle;
+        byte[] data = new byte[0];
+        int length;
+        // First error found in the fragments, reported on execution.
+        int status = BluetoothGatt.GATT_SUCCESS;
+
+        Value(int handle) {
+            this.handle = handle;
+        }
+
+        byte[] getValue() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+
+    private static class Connection {
+        // Values in the order of their first fragment.
+        final List<Value> values = new ArrayList<Value>();
+        int bytes;
+
+        Value get(int handle) {
+            for (Value value : values) {
+                if (value.handle == handle) return value;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * An execute request waiting for the app to respond to the writes of
+     * the assembled values. Responses carry the request id of the execute
+     * request and are matched to the values in the order they were written.
+     */
+    static class Execution {
+        final int transId;
+        private final int[] mHandles;
+        private int mResponses;
+        // First error the app responded with, and the handle of its value.
+        int status = BluetoothGatt.GATT_SUCCESS;
+        int handle;
+
+        Execution(int transId, List<Value> values) {
+            this.transId = transId;
+            mHandles = new int[values.size()];
+            for (int i = 0; i < mHandles.length; ++i) {
+                mHandles[i] = values.get(i).handle;
+            }
+        }
+
+        boolean isComplete() {
+            return mResponses == mHandles.length;
+        }
+    }
+
+    private final int mConnectionCapacity;
+    private final SparseArray<Connection> mConnections = new SparseArray<Connection>();
+    private final SparseArray<Execution> mExecutions = new SparseArray<Execution>();
+
+    // Metrics.
+    private long mFragments;
+    private long mExecuted;
+    private long mRejected;
+    private int mMaxBytes;
+
+    PreparedWriteBuffer() {
+        this(DEFAULT_CONNECTION_CAPACITY);
+    }
+
+    PreparedWriteBuffer(int connectionCapacity) {
+        mConnectionCapacity = connectionCapacity;
+    }
+
+    /**
+     * Buffer a fragment written at offset.
+     *
+     * @return GATT_SUCCESS, or PREPARE_QUEUE_FULL if the fragment does not
+     *         fit the connection capacity
+     */
+    synchronized int prepare(int connId, int handle, int offset, byte[] fragment) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null) {
+            conn = new Connection();
+            mConnections.put(connId, conn);
+        }
+        Value value = conn.get(handle);
+        boolean added = (value == null);
+        if (added) value = new Value(handle);
+        mFragments++;
+
+        int length = (fragment != null) ? fragment.length : 0;
+        if (value.status == BluetoothGatt.GATT_SUCCESS) {
+            if (offset > value.length) {
+                value.status = BluetoothGatt.GATT_INVALID_OFFSET;
+            } else if (offset + length > MAX_ATTRIBUTE_LENGTH) {
+                value.status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+            } else if (!ensureCapacity(conn, value, offset + length)) {
+                mRejected++;
+                if (added && conn.values.isEmpty()) mConnections.remove(connId);
+                return PREPARE_QUEUE_FULL;
+            } else {
+                if (length > 0) System.arraycopy(fragment, 0, value.data, offset, length);
+                value.length = Math.max(value.length, offset + length);
+            }
+        }
+        if (added) conn.values.add(value);
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Remove and return the values assembled for a connection, or null if
+     * nothing was prepared.
+     */
+    synchronized List<Value> execute(int connId) {
+        Connection conn = mConnections.get(connId);
+        if (conn == null) return null;
+        mConnections.remove(connId);
+        mExecuted++;
+        return conn.values;
+    }
+
+    /**
+     * Hold the answer to an execute request until the app responded to the
+     * writes of the given values.
+     */
+    synchronized void awaitResponses(int connId, int transId, List<Value> values) {
+        mExecutions.put(connId, new Execution(transId, values));
+    }
+
+    /**
+     * Record a response of the app.
+     *
+     * @return the execution the response belongs to, which is complete once
+     *         every value was responded to, or null if the response is for
+     *         another request
+     */
+    synchronized Execution onResponse(int connId, int transId, int status) {
+        Execution execution = mExecutions.get(connId);
+        if (execution == null || execution.transId != transId) return null;
+        if (status != BluetoothGatt.GATT_SUCCESS
+                && execution.status == BluetoothGatt.GATT_SUCCESS) {
+            execution.status = status;
+            execution.handle = execution.mHandles[execution.mResponses];
+        }
+        if (++execution.mResponses == execution.mHandles.length) mExecutions.remove(connId);
+        return execution;
+    }
+
+    synchronized void remove(int connId) {
+        mConnections.remove(connId);
+        mExecutions.remove(connId);
+    }
+
+    synchronized void clear() {
+        mConnections.clear();
+        mExecutions.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        int bytes = 0;
+        for (int i = 0; i < mConnections.size(); ++i) {
+            bytes += mConnections.valueAt(i).bytes;
+        }
+        sb.append("  Prepared writes: " + mConnections.size() + " connections, "
+                + mExecutions.size() + " executions awaiting the app, " + bytes
+                + " bytes (max " + mMaxBytes + ", cap " + mConnectionCapacity
+                + " per connection), fragments " + mFragments + ", executed " + mExecuted
+                + ", rejected " + mRejected + "\n");
+    }
+
+    private boolean ensureCapacity(Connection conn, Value value, int needed) {
+        int current = value.data.length;
+        if (needed <= current) return true;
+        int capacity = Math.min(MAX_ATTRIBUTE_LENGTH,
+                Math.max(needed, Math.max(MIN_ALLOCATION, current * 2)));
+        if (conn.bytes + capacity - current > mConnectionCapacity) {
+            // Retry without headroom before giving up.
+            capacity = needed;
+            if (conn.bytes + capacity - current > mConnectionCapacity) return false;
+        }
+        value.data = Arrays.copyOf(value.data, capacity);
+        conn.bytes += capacity - current;
+        if (conn.bytes > mMaxBytes) mMaxBytes = conn.bytes;
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded per-client buffer of scan results used to batch regular scan
+ * results in software when the controller does not support batch scan.
+ * Results are de-duplicated by device, keeping the most recent sighting;
+ * once full, the device that was least recently seen is dropped.
+ *
+ * @hide
+ */
+/* package */class ScanBatchBuffer {
+    // Maximum number of devices buffered per client between deliveries.
+    static final int DEFAULT_CAPACITY = 512;
+
+    private final int mCapacity;
+    private final long mReportDelayMillis;
+    private final LinkedHashMap<String, ScanResult> mResults;
+    private int mDropped;
+
+    ScanBatchBuffer(long reportDelayMillis) {
+        this(reportDelayMillis, DEFAULT_CAPACITY);
+    }
+
+    ScanBatchBuffer(long reportDelayMillis, int capacity) {
+        mReportDelayMillis = reportDelayMillis;
+        mCapacity = capacity;
+        mResults = new LinkedHashMap<String, ScanResult>(capacity * 4 / 3 + 1, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ScanResult> eldest) {
+                if (size() <= mCapacity) return false;
+                mDropped++;
+                return true;
+            }
+        };
+    }
+
+    long getReportDelayMillis() {
+        return mReportDelayMillis;
+    }
+
+    /**
+     * Buffer a result, replacing any pending result for the same device.
+     */
+    synchronized void add(ScanResult result) {
+        String address = result.getDevice().getAddress();
+        // Re-insert so the device moves to the most recently seen position.
+        mResults.remove(address);
+        mResults.put(address, result);
+    }
+
+    /**
+     * Remove and return all buffered results, oldest sighting first.
+     */
+    synchronized List<ScanResult> drain() {
+        List<ScanResult> results = new ArrayList<ScanResult>(mResults.values());
+        mResults.clear();
+        return results;
+    }
+
+    synchronized int size() {
+        return mResults.size();
+    }
+
+    /**
+     * Number of devices dropped because the buffer was full.
+     */
+    synchronized int getDropped() {
+        return mDropped;
+    }
+}
@@ -38,6 +38,12 @@ import java.util.UUID;
     List<List<ResultStorageDescriptor>> storages;
     // App associated with the scan client died.
     boolean appDied;
+    // Results batched in software for report delay clients, null otherwise.
+    ScanBatchBuffer batchBuffer;
+    // Suppresses repeated advertisements, null unless the client asked for it.
+    ScanDuplicateFilter duplicateFilter;
+    // Set while the controller reports lost devices, on a found/lost filter slot.
+    volatile boolean lostInHardware;
 
     private static final ScanSettings DEFAULT_SCAN_SETTINGS = new ScanSettings.Builder()
             .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
@@ -70,6 +76,15 @@ import java.util.UUID;
         this.storages = storages;
     }
 
+    /**
+     * Returns false if the duplicate filter of the client suppresses the
+     * advertisement.
+     */
+    boolean shouldForward(String address, int rssi, int dataHash, long nowNanos) {
+        return duplicateFilter == null
+                || duplicateFilter.shouldForward(address, rssi, dataHash, nowNanos);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Non-blocking queue of scan controller commands. Commands are issued in
+ * order, up to a fixed number in flight, and completed when the stack
+ * reports the matching callback for the same client. A barrier command is
+ * only issued once every earlier command has completed, and holds back
+ * later commands until it completes itself. Commands that are not completed
+ * within the timeout are dropped.
+ *
+ * The number of commands in flight is kept small as the stack only queues
+ * a few outstanding vendor specific scan commands.
+ *
+ * @hide
+ */
+/* package */class ScanCommandQueue {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "ScanCommandQueue";
+
+    // Commands the stack does not acknowledge. These are only ordered against
+    // other commands and complete as soon as they are issued.
+    static final int TYPE_UNACKNOWLEDGED = 0;
+    // Command types. Each type is a bit so callbacks can complete several types.
+    static final int TYPE_FILTER_ENABLE = 1 << 0;
+    static final int TYPE_FILTER_ADD = 1 << 1;
+    static final int TYPE_FILTER_PARAM_ADD = 1 << 2;
+    static final int TYPE_FILTER_PARAM_DELETE = 1 << 3;
+    static final int TYPE_BATCH_STORAGE_CONFIG = 1 << 4;
+    static final int TYPE_BATCH_START = 1 << 5;
+    static final int TYPE_BATCH_STOP = 1 << 6;
+    static final int TYPE_READ_REPORTS = 1 << 7;
+
+    private static final String[] TYPE_NAMES = {
+        "filter enable", "filter add", "filter param add", "filter param delete",
+        "batch storage config", "batch start", "batch stop", "read reports"
+    };
+
+    /**
+     * A controller command. issue() hands the command to the stack without
+     * waiting for its completion.
+     */
+    static abstract class Command {
+        final int type;
+        final int clientIf;
+        final boolean barrier;
+        long issuedMillis;
+
+        Command(int type, int clientIf, boolean barrier) {
+            this.type = type;
+            this.clientIf = clientIf;
+            this.barrier = barrier;
+        }
+
+        abstract void issue();
+    }
+
+    private final Handler mHandler;
+    private final int mMaxInFlight;
+    private final long mTimeoutMillis;
+
+    private final ArrayDeque<Command> mPending = new ArrayDeque<Command>();
+    private final ArrayDeque<Command> mInFlight = new ArrayDeque<Command>();
+    private boolean mTimeoutScheduled;
+
+    // Per type metrics, indexed by bit position.
+    private final long[] mCompleted = new long[TYPE_NAMES.length];
+    private final long[] mFailed = new long[TYPE_NAMES.length];
+    private final long[] mTimedOut = new long[TYPE_NAMES.length];
+    private final long[] mTotalMillis = new long[TYPE_NAMES.length];
+    private final long[] mMaxMillis = new long[TYPE_NAMES.length];
+
+    private final Runnable mTimeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkTimeouts();
+        }
+    };
+
+    ScanCommandQueue(Handler handler, int maxInFlight, long timeoutMillis) {
+        mHandler = handler;
+        mMaxInFlight = maxInFlight;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Queue a command, issuing it right away if the pipeline allows.
+     */
+    synchronized void enqueue(Command command) {
+        mPending.add(command);
+        issuePending();
+    }
+
+    /**
+     * Complete the oldest in-flight command of the given types for a client.
+     * Callbacks without a matching command are ignored.
+     */
+    synchronized void onCommandDone(int typeMask, int clientIf, int status) {
+        for (Iterator<Command> it = mInFlight.iterator(); it.hasNext();) {
+            Command command = it.next();
+            if (command.clientIf != clientIf || (command.type & typeMask) == 0) continue;
+
+            it.remove();
+            int index = Integer.numberOfTrailingZeros(command.type);
+            long elapsed = SystemClock.elapsedRealtime() - command.issuedMillis;
+            mCompleted[index]++;
+            mTotalMillis[index] += elapsed;
+            if (elapsed > mMaxMillis[index]) mMaxMillis[index] = elapsed;
+            if (status != 0) {
+                mFailed[index]++;
+                Log.w(TAG, TYPE_NAMES[index] + " failed for clientIf " + clientIf
+                        + ", status " + status);
+            }
+            issuePending();
+            return;
+        }
+        if (DBG) Log.d(TAG, "No pending command for clientIf " + clientIf);
+    }
+
+    synchronized void clear() {
+        mPending.clear();
+        mInFlight.clear();
+        mHandler.removeCallbacks(mTimeoutCheck);
+        mTimeoutScheduled = false;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Scan commands: pending " + mPending.size()
+                + ", in flight " + mInFlight.size() + "\n");
+        for (int i = 0; i < TYPE_NAMES.length; ++i) {
+            if (mCompleted[i] == 0 && mTimedOut[i] == 0) continue;
+            sb.append("    " + TYPE_NAMES[i] + ": completed " + mCompleted[i]
+                    + ", failed " + mFailed[i] + ", timed out " + mTimedOut[i]
+                    + ", avg " + (mCompleted[i] == 0 ? 0 : mTotalMillis[i] / mCompleted[i])
+                    + "ms, max " + mMaxMillis[i] + "ms\n");
+        }
+    }
+
+    private void issuePending() {
+        while (!mPending.isEmpty() && mInFlight.size() < mMaxInFlight) {
+            Command next = mPending.peek();
+            if (!mInFlight.isEmpty() && (next.barrier || mInFlight.peekLast().barrier)) {
+                break;
+            }
+            mPending.poll();
+            next.issuedMillis = SystemClock.elapsedRealtime();
+            if (next.type != TYPE_UNACKNOWLEDGED) mInFlight.add(next);
+            next.issue();
+        }
+        if (!mInFlight.isEmpty() && !mTimeoutScheduled) {
+            mTimeoutScheduled = mHandler.postDelayed(mTimeoutCheck, mTimeoutMillis);
+        }
+    }
+
+    private synchronized void checkTimeouts() {
+        mTimeoutScheduled = false;
+        long now = SystemClock.elapsedRealtime();
+        for (Iterator<Command> it = mInFlight.iterator(); it.hasNext();) {
+            Command command = it.next();
+            if (now - command.issuedMillis < mTimeoutMillis) continue;
+            it.remove();
+            int index = Integer.numberOfTrailingZeros(command.type);
+            mTimedOut[index]++;
+            Log.w(TAG, TYPE_NAMES[index] + " timed out for clientIf " + command.clientIf);
+        }
+        issuePending();
+    }
+}
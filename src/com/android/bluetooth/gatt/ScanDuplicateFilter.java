@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+/**
+ * Per-client duplicate advertisement filter. Remembers the last forwarded
+ * advertisement of each device and suppresses repeats unless the payload
+ * changed, the RSSI moved by at least the configured delta or the refresh
+ * interval elapsed.
+ *
+ * Devices are kept in a bounded open addressing table keyed by the 48-bit
+ * device address. Entries that have not been seen for the expiry interval
+ * are reused; when a probe window is full, the least recently seen device in
+ * it is evicted. The filter is only accessed from the stack callback thread
+ * and takes no locks; counters may be read from any thread.
+ *
+ * @hide
+ */
+/* package */class ScanDuplicateFilter {
+    static final int DEFAULT_CAPACITY = 256;
+    static final int DEFAULT_RSSI_DELTA = 5;
+    static final long DEFAULT_REFRESH_NANOS = 1000000000L;
+    static final long DEFAULT_EXPIRY_NANOS = 10000000000L;
+
+    // Number of consecutive slots searched for a device.
+    private static final int MAX_PROBE = 8;
+
+    private final int mRssiDelta;
+    private final long mRefreshNanos;
+    private final long mExpiryNanos;
+    private final int mMask;
+
+    // Device address + 1, 0 for an empty slot.
+    private final long[] mKeys;
+    private final int[] mDataHashes;
+    private final int[] mRssi;
+    private final long[] mForwardedNanos;
+    private final long[] mSeenNanos;
+
+    private volatile long mHits;
+    private volatile long mMisses;
+
+    /**
+     * Thresholds requested by a client, applied to each of its scans.
+     */
+    static class Settings {
+        final int rssiDelta;
+        final long refreshNanos;
+
+        Settings(int rssiDelta, long refreshNanos) {
+            this.rssiDelta = rssiDelta;
+            this.refreshNanos = refreshNanos;
+        }
+
+        ScanDuplicateFilter newFilter() {
+            return new ScanDuplicateFilter(DEFAULT_CAPACITY, rssiDelta, refreshNanos,
+                    Math.max(DEFAULT_EXPIRY_NANOS, refreshNanos));
+        }
+    }
+
+    ScanDuplicateFilter() {
+        this(DEFAULT_CAPACITY, DEFAULT_RSSI_DELTA, DEFAULT_REFRESH_NANOS, DEFAULT_EXPIRY_NANOS);
+    }
+
+    ScanDuplicateFilter(int capacity, int rssiDelta, long refreshNanos, long expiryNanos) {
+        int size = MAX_PROBE;
+        while (size < capacity) size <<= 1;
+        mMask = size - 1;
+        mRssiDelta = rssiDelta;
+        mRefreshNanos = refreshNanos;
+        mExpiryNanos = expiryNanos;
+        mKeys = new long[size];
+        mDataHashes = new int[size];
+        mRssi = new int[size];
+        mForwardedNanos = new long[size];
+        mSeenNanos = new long[size];
+    }
+
+    /**
+     * Record an advertisement and decide whether it should be forwarded.
+     *
+     * @param address device address, formatted as XX:XX:XX:XX:XX:XX
+     * @param rssi received signal strength of the advertisement
+     * @param dataHash hash of the advertisement payload
+     * @param nowNanos current elapsed realtime, in nanoseconds
+     * @return true if the advertisement is not a duplicate
+     */
+    boolean shouldForward(String address, int rssi, int dataHash, long nowNanos) {
+        long key = parseAddress(address);
+        if (key < 0) {
+            mMisses++;
+            return true;
+        }
+        key++;
+
+        int home = hash(key) & mMask;
+        int free = -1;
+        int oldest = home;
+        for (int i = 0; i < MAX_PROBE; ++i) {
+            int pos = (home + i) & mMask;
+            if (mKeys[pos] == key) {
+                mSeenNanos[pos] = nowNanos;
+                if (mDataHashes[pos] == dataHash
+                        && Math.abs(mRssi[pos] - rssi) < mRssiDelta
+                        && nowNanos - mForwardedNanos[pos] < mRefreshNanos) {
+                    mHits++;
+                    return false;
+                }
+                forwarded(pos, key, rssi, dataHash, nowNanos);
+                return true;
+            }
+            if (free < 0 && (mKeys[pos] == 0 || nowNanos - mSeenNanos[pos] >= mExpiryNanos)) {
+                free = pos;
+            }
+            if (mSeenNanos[pos] < mSeenNanos[oldest]) oldest = pos;
+        }
+
+        forwarded(free >= 0 ? free : oldest, key, rssi, dataHash, nowNanos);
+        return true;
+    }
+
+    private void forwarded(int pos, long key, int rssi, int dataHash, long nowNanos) {
+        mKeys[pos] = key;
+        mDataHashes[pos] = dataHash;
+        mRssi[pos] = rssi;
+        mForwardedNanos[pos] = nowNanos;
+        mSeenNanos[pos] = nowNanos;
+        mMisses++;
+    }
+
+    /**
+     * Number of advertisements suppressed as duplicates.
+     */
+    long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Number of advertisements forwarded.
+     */
+    long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the 48-bit value of a formatted device address, or -1 if the
+     * address is malformed.
+     */
+    static long parseAddress(String address) {
+        if (address == null || address.length() != 17) return -1;
+        long value = 0;
+        for (int i = 0; i < 17; ++i) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return -1;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return -1;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
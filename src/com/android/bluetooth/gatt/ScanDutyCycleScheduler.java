@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanSettings;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * Chooses the regular scan window and interval for the set of running scan
+ * clients.
+ *
+ * The interval is the shortest interval any client asks for, and the window
+ * is sized so that the duty cycle of the most demanding client is kept.
+ * Clients with a scan mode below SCAN_MODE_LOW_POWER only consume results
+ * and do not add to the duty cycle.
+ *
+ * Raising the duty cycle takes effect immediately. Lowering it is held back
+ * for a hold-off period, so clients coming and going do not restart the
+ * scan each time. A client can also be given a low latency burst that lasts
+ * until a deadline, after which the duty cycle drops right away.
+ *
+ * The scheduler only makes decisions; the caller applies them and calls
+ * update() again at getNextUpdateMillis().
+ *
+ * @hide
+ */
+/* package */class ScanDutyCycleScheduler {
+    /**
+     * Scan params corresponding to regular scan setting
+     */
+    private static final int SCAN_MODE_LOW_POWER_WINDOW_MS = 500;
+    private static final int SCAN_MODE_LOW_POWER_INTERVAL_MS = 5000;
+    private static final int SCAN_MODE_BALANCED_WINDOW_MS = 2000;
+    private static final int SCAN_MODE_BALANCED_INTERVAL_MS = 5000;
+    private static final int SCAN_MODE_LOW_LATENCY_WINDOW_MS = 5000;
+    private static final int SCAN_MODE_LOW_LATENCY_INTERVAL_MS = 5000;
+
+    static final long DEFAULT_HOLD_OFF_MILLIS = 10000;
+    static final long DEFAULT_BURST_MILLIS = 5000;
+
+    private static final int MAX_DECISIONS = 16;
+
+    private final long mHoldOffMillis;
+    private final long mBurstMillis;
+
+    // Parameters programmed in the controller, 0 if none yet.
+    private int mWindowMillis;
+    private int mIntervalMillis;
+    private boolean mAppliedForBurst;
+    // No clients since the parameters were programmed, so the scan is stopped.
+    private boolean mStopped;
+
+    // Time a pending lower duty cycle was first computed, -1 if none.
+    private long mLowerSinceMillis = -1;
+    private long mNextUpdateMillis = -1;
+
+    // Burst deadlines by clientIf.
+    private final SparseArray<Long> mBursts = new SparseArray<Long>();
+
+    // Metrics.
+    private int mRestarts;
+    private int mAvoidedRestarts;
+    private int mBurstCount;
+    private final ArrayDeque<String> mDecisions = new ArrayDeque<String>();
+
+    ScanDutyCycleScheduler() {
+        this(DEFAULT_HOLD_OFF_MILLIS, DEFAULT_BURST_MILLIS);
+    }
+
+    ScanDutyCycleScheduler(long holdOffMillis, long burstMillis) {
+        mHoldOffMillis = holdOffMillis;
+        mBurstMillis = burstMillis;
+    }
+
+    /**
+     * Run the client at low latency until the burst deadline.
+     */
+    synchronized void startBurst(int clientIf, long nowMillis) {
+        mBursts.put(clientIf, nowMillis + mBurstMillis);
+        mBurstCount++;
+    }
+
+    synchronized void cancelBurst(int clientIf) {
+        mBursts.remove(clientIf);
+    }
+
+    /**
+     * Recompute the scan parameters for the given clients.
+     *
+     * @return true if the scan must be restarted with getWindowMillis() and
+     *         getIntervalMillis()
+     */
+    synchronized boolean update(Collection<ScanClient> clients, long nowMillis) {
+        mNextUpdateMillis = -1;
+        boolean burst = expireBursts(clients, nowMillis);
+
+        // Shortest interval, and the highest duty cycle as a window/interval fraction.
+        int interval = Integer.MAX_VALUE;
+        int dutyWindow = 0;
+        int dutyInterval = 1;
+        for (ScanClient client : clients) {
+            int mode = client.settings.getScanMode();
+            if (burst && mBursts.get(client.clientIf) != null) {
+                mode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+            }
+            if (mode < ScanSettings.SCAN_MODE_LOW_POWER) continue;
+            int clientWindow = getWindowMillis(mode);
+            int clientInterval = getIntervalMillis(mode);
+            interval = Math.min(interval, clientInterval);
+            if (clientWindow * dutyInterval > dutyWindow * clientInterval) {
+                dutyWindow = clientWindow;
+                dutyInterval = clientInterval;
+            }
+        }
+        if (dutyWindow == 0) {
+            // Nothing to schedule. Keep the programmed parameters, the scan
+            // is stopped or only serves opportunistic clients.
+            mLowerSinceMillis = -1;
+            if (clients.isEmpty()) mStopped = true;
+            return false;
+        }
+        int window = (dutyWindow * interval + dutyInterval - 1) / dutyInterval;
+
+        if (window == mWindowMillis && interval == mIntervalMillis) {
+            if (mLowerSinceMillis >= 0) {
+                mAvoidedRestarts++;
+                record(nowMillis, "keep " + describe(window, interval));
+            }
+            mLowerSinceMillis = -1;
+            mAppliedForBurst = burst;
+            mStopped = false;
+            return false;
+        }
+
+        // A stopped scan is restarted anyway, so there is nothing to hold off.
+        boolean lower = mIntervalMillis != 0 && window * mIntervalMillis
+                < mWindowMillis * interval;
+        if (lower && !mAppliedForBurst && !mStopped) {
+            if (mLowerSinceMillis < 0) mLowerSinceMillis = nowMillis;
+            long due = mLowerSinceMillis + mHoldOffMillis;
+            if (nowMillis < due) {
+                scheduleUpdate(due);
+                record(nowMillis, "defer " + describe(window, interval));
+                return false;
+            }
+        }
+
+        mWindowMillis = window;
+        mIntervalMillis = interval;
+        mAppliedForBurst = burst;
+        mStopped = false;
+        mLowerSinceMillis = -1;
+        mRestarts++;
+        record(nowMillis, "apply " + describe(window, interval) + " for " + clients.size()
+                + " clients" + (burst ? ", burst" : ""));
+        return true;
+    }
+
+    synchronized int getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    synchronized int getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    /**
+     * Returns the time update() must be called again, or -1 if it is only
+     * needed when the clients change.
+     */
+    synchronized long getNextUpdateMillis() {
+        return mNextUpdateMillis;
+    }
+
+    synchronized void reset() {
+        mWindowMillis = 0;
+        mIntervalMillis = 0;
+        mAppliedForBurst = false;
+        mStopped = false;
+        mLowerSinceMillis = -1;
+        mNextUpdateMillis = -1;
+        mBursts.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Scan duty cycle: " + (mIntervalMillis == 0 ? "not configured"
+                : describe(mWindowMillis, mIntervalMillis)) + ", restarts " + mRestarts
+                + ", restarts avoided " + mAvoidedRestarts + ", bursts " + mBurstCount + "\n");
+        for (String decision : mDecisions) {
+            sb.append("    " + decision + "\n");
+        }
+    }
+
+    // Drop bursts that are over or whose client is gone. Returns true if a
+    // burst is still running.
+    private boolean expireBursts(Collection<ScanClient> clients, long nowMillis) {
+        for (int i = mBursts.size() - 1; i >= 0; --i) {
+            int clientIf = mBursts.keyAt(i);
+            long deadline = mBursts.valueAt(i);
+            if (deadline <= nowMillis || !containsClient(clients, clientIf)) {
+                mBursts.removeAt(i);
+                continue;
+            }
+            scheduleUpdate(deadline);
+        }
+        return mBursts.size() > 0;
+    }
+
+    private void scheduleUpdate(long atMillis) {
+        if (mNextUpdateMillis < 0 || atMillis < mNextUpdateMillis) {
+            mNextUpdateMillis = atMillis;
+        }
+    }
+
+    private void record(long nowMillis, String decision) {
+        if (mDecisions.size() == MAX_DECISIONS) mDecisions.poll();
+        mDecisions.add(nowMillis + "ms: " + decision);
+    }
+
+    private static boolean containsClient(Collection<ScanClient> clients, int clientIf) {
+        for (ScanClient client : clients) {
+            if (client.clientIf == clientIf) return true;
+        }
+        return false;
+    }
+
+    private static String describe(int window, int interval) {
+        return "window " + window + "ms interval " + interval + "ms ("
+                + (100 * window / interval) + "%)";
+    }
+
+    private static int getWindowMillis(int scanMode) {
+        switch (scanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return SCAN_MODE_LOW_LATENCY_WINDOW_MS;
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return SCAN_MODE_BALANCED_WINDOW_MS;
+            default:
+                return SCAN_MODE_LOW_POWER_WINDOW_MS;
+        }
+    }
+
+    private static int getIntervalMillis(int scanMode) {
+        switch (scanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return SCAN_MODE_LOW_LATENCY_INTERVAL_MS;
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return SCAN_MODE_BALANCED_INTERVAL_MS;
+            default:
+                return SCAN_MODE_LOW_POWER_INTERVAL_MS;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Allocates controller scan filter indices. Filters are canonicalized into
+ * their filter queue entries and filter parameters, so clients with
+ * identical filters share one reference counted hardware slot.
+ *
+ * Slots can be allocated exclusively to a client. The controller reports
+ * on found and on lost events with the client interface the slot was
+ * programmed for, so such slots must not be shared.
+ *
+ * A client is only given slots if all of its filters fit; otherwise the
+ * caller falls back to the ALL_PASS filter and software matching.
+ *
+ * @hide
+ */
+/* package */class ScanFilterAllocator {
+
+    /**
+     * A hardware filter slot.
+     */
+    static class Slot {
+        final int index;
+        final Key key;
+        int refCount;
+
+        Slot(int index, Key key) {
+            this.index = index;
+            this.key = key;
+        }
+
+        Set<ScanFilterQueue.Entry> getEntries() {
+            return key.entries;
+        }
+
+        int getFeatureSelection() {
+            return key.featureSelection;
+        }
+    }
+
+    /**
+     * Canonical form of a filter as programmed in the controller.
+     */
+    static class Key {
+        final Set<ScanFilterQueue.Entry> entries;
+        final int featureSelection;
+        final int deliveryMode;
+        final int timeout;
+        // Client holding the slot exclusively, NO_OWNER for a shared slot.
+        final int owner;
+
+        Key(ScanFilter filter, int deliveryMode, int timeout, int owner) {
+            ScanFilterQueue queue = new ScanFilterQueue();
+            queue.addScanFilter(filter);
+            this.entries = queue.getEntries();
+            this.featureSelection = queue.getFeatureSelection();
+            this.deliveryMode = deliveryMode;
+            this.timeout = timeout;
+            this.owner = owner;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entries, deliveryMode, timeout, owner);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return deliveryMode == other.deliveryMode && timeout == other.timeout &&
+                    owner == other.owner && entries.equals(other.entries);
+        }
+    }
+
+    private static final int NO_OWNER = -1;
+
+    private final Deque<Integer> mFreeIndices = new ArrayDeque<Integer>();
+    private final Map<Key, Slot> mSlots = new HashMap<Key, Slot>();
+    private final SparseArray<List<Slot>> mClientSlots = new SparseArray<List<Slot>>();
+
+    private int mShared;
+
+    /**
+     * Make the given filter indices available for allocation.
+     */
+    void addIndices(Collection<Integer> indices) {
+        mFreeIndices.addAll(indices);
+    }
+
+    /**
+     * Returns true if no index has been handed to the allocator, or all of
+     * them have been released.
+     */
+    boolean isEmpty() {
+        return mFreeIndices.isEmpty() && mSlots.isEmpty();
+    }
+
+    int getFreeCount() {
+        return mFreeIndices.size();
+    }
+
+    /**
+     * Allocate slots for all filters of a client.
+     *
+     * @param exclusive whether the slots must not be shared with other clients
+     * @return the slots that were newly created and need to be programmed in
+     *         the controller, or null if the filters do not fit, in which case
+     *         nothing is allocated
+     */
+    List<Slot> allocate(int clientIf, List<ScanFilter> filters, int deliveryMode, int timeout,
+            boolean exclusive) {
+        List<Key> keys = new ArrayList<Key>(filters.size());
+        int needed = 0;
+        for (ScanFilter filter : filters) {
+            Key key = new Key(filter, deliveryMode, timeout, exclusive ? clientIf : NO_OWNER);
+            if (!mSlots.containsKey(key) && !keys.contains(key)) needed++;
+            keys.add(key);
+        }
+        if (needed > mFreeIndices.size()) return null;
+
+        List<Slot> created = new ArrayList<Slot>(needed);
+        List<Slot> clientSlots = mClientSlots.get(clientIf);
+        if (clientSlots == null) {
+            clientSlots = new ArrayList<Slot>();
+            mClientSlots.put(clientIf, clientSlots);
+        }
+        for (Key key : keys) {
+            Slot slot = mSlots.get(key);
+            if (slot == null) {
+                slot = new Slot(mFreeIndices.pop(), key);
+                mSlots.put(key, slot);
+                created.add(slot);
+            } else if (slot.refCount > 0 && !created.contains(slot)) {
+                mShared++;
+            }
+            slot.refCount++;
+            clientSlots.add(slot);
+        }
+        return created;
+    }
+
+    /**
+     * Release all slots held by a client.
+     *
+     * @return the slots that are no longer used and need to be removed from
+     *         the controller
+     */
+    List<Slot> release(int clientIf) {
+        List<Slot> released = new ArrayList<Slot>();
+        List<Slot> clientSlots = mClientSlots.get(clientIf);
+        if (clientSlots == null) return released;
+        mClientSlots.remove(clientIf);
+
+        for (Slot slot : clientSlots) {
+            if (--slot.refCount > 0) continue;
+            mSlots.remove(slot.key);
+            mFreeIndices.push(slot.index);
+            released.add(slot);
+        }
+        return released;
+    }
+
+    /**
+     * Rank how narrowly a client's filters match advertisements. Filters are
+     * OR-ed, so the least selective filter determines the rank.
+     */
+    static int getSelectivity(List<ScanFilter> filters) {
+        int selectivity = Integer.MAX_VALUE;
+        for (ScanFilter filter : filters) {
+            int score = 0;
+            if (filter.getDeviceAddress() != null) score += 8;
+            if (filter.getDeviceName() != null) score += 4;
+            if (filter.getManufacturerData() != null) score += 3;
+            if (filter.getServiceData() != null) score += 3;
+            if (filter.getServiceUuid() != null) score += 2;
+            selectivity = Math.min(selectivity, score);
+        }
+        return filters.isEmpty() ? 0 : selectivity;
+    }
+
+    void dump(StringBuilder sb) {
+        sb.append("  Hardware filter slots: used " + mSlots.size() + ", free "
+                + mFreeIndices.size() + ", shared allocations " + mShared + "\n");
+        for (Slot slot : mSlots.values()) {
+            sb.append("    index " + slot.index + ": refs " + slot.refCount
+                    + ", features 0x" + Integer.toHexString(slot.getFeatureSelection()) + "\n");
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Scan filters of a set of scan clients, compiled into flat predicates and
+ * indexed by device address, manufacturer id, service data UUID and service
+ * UUID. A raw advertisement is parsed once and only evaluated against the
+ * filters its fields select, without building a ScanRecord.
+ *
+ * A matcher is immutable once built; ScanManager publishes a new one
+ * whenever the regular scan queue changes. The match scratch state is not
+ * thread safe and must only be used from the stack callback thread.
+ *
+ * @hide
+ */
+/* package */class ScanFilterMatcher {
+    static final ScanFilterMatcher EMPTY = build(new ArrayList<ScanClient>());
+
+    /**
+     * A scan filter flattened into the fields evaluated per advertisement.
+     */
+    private static class CompiledFilter {
+        final int slot;
+
+        boolean hasAddress;
+        long address;
+
+        byte[] name;
+
+        boolean hasServiceUuid;
+        long uuidMsb;
+        long uuidLsb;
+        long uuidMaskMsb = -1;
+        long uuidMaskLsb = -1;
+
+        boolean hasServiceData;
+        long dataUuidMsb;
+        long dataUuidLsb;
+        byte[] serviceData;
+        byte[] serviceDataMask;
+
+        int manufacturerId = -1;
+        byte[] manufacturerData;
+        byte[] manufacturerDataMask;
+
+        CompiledFilter(int slot) {
+            this.slot = slot;
+        }
+
+        CompiledFilter(int slot, ScanFilter filter) {
+            this.slot = slot;
+            if (filter.getDeviceAddress() != null) {
+                hasAddress = true;
+                address = ScanDuplicateFilter.parseAddress(filter.getDeviceAddress());
+            }
+            if (filter.getDeviceName() != null) {
+                name = filter.getDeviceName().getBytes(StandardCharsets.UTF_8);
+            }
+            if (filter.getServiceUuid() != null) {
+                UUID uuid = filter.getServiceUuid().getUuid();
+                ParcelUuid mask = filter.getServiceUuidMask();
+                if (mask != null) {
+                    uuidMaskMsb = mask.getUuid().getMostSignificantBits();
+                    uuidMaskLsb = mask.getUuid().getLeastSignificantBits();
+                }
+                hasServiceUuid = true;
+                uuidMsb = uuid.getMostSignificantBits() & uuidMaskMsb;
+                uuidLsb = uuid.getLeastSignificantBits() & uuidMaskLsb;
+            }
+            if (filter.getServiceDataUuid() != null) {
+                UUID uuid = filter.getServiceDataUuid().getUuid();
+                hasServiceData = true;
+                dataUuidMsb = uuid.getMostSignificantBits();
+                dataUuidLsb = uuid.getLeastSignificantBits();
+                serviceData = filter.getServiceData();
+                serviceDataMask = filter.getServiceDataMask();
+            }
+            if (filter.getManufacturerId() >= 0) {
+                manufacturerId = filter.getManufacturerId();
+                manufacturerData = filter.getManufacturerData();
+                manufacturerDataMask = filter.getManufacturerDataMask();
+            }
+        }
+
+        boolean isExactServiceUuid() {
+            return hasServiceUuid && uuidMaskMsb == -1 && uuidMaskLsb == -1;
+        }
+    }
+
+    /**
+     * Open addressing table of 128-bit keys to filter ids.
+     */
+    private static class KeyTable {
+        private final long[] mKeyMsb;
+        private final long[] mKeyLsb;
+        private final int[][] mFilters;
+        private final int mMask;
+
+        KeyTable(Map<UUID, List<Integer>> keyed) {
+            int capacity = 4;
+            while (capacity < keyed.size() * 2) capacity <<= 1;
+            mMask = capacity - 1;
+            mKeyMsb = new long[capacity];
+            mKeyLsb = new long[capacity];
+            mFilters = new int[capacity][];
+
+            for (Map.Entry<UUID, List<Integer>> entry : keyed.entrySet()) {
+                long msb = entry.getKey().getMostSignificantBits();
+                long lsb = entry.getKey().getLeastSignificantBits();
+                int pos = hash(msb, lsb) & mMask;
+                while (mFilters[pos] != null) pos = (pos + 1) & mMask;
+                mKeyMsb[pos] = msb;
+                mKeyLsb[pos] = lsb;
+                mFilters[pos] = toArray(entry.getValue());
+            }
+        }
+
+        int[] get(long msb, long lsb) {
+            int pos = hash(msb, lsb) & mMask;
+            while (mFilters[pos] != null) {
+                if (mKeyMsb[pos] == msb && mKeyLsb[pos] == lsb) return mFilters[pos];
+                pos = (pos + 1) & mMask;
+            }
+            return null;
+        }
+
+        private static int hash(long msb, long lsb) {
+            long h = msb * 31 + lsb;
+            h ^= (h >>> 32);
+            h *= 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 29));
+        }
+    }
+
+    // All compiled clients, addressed by slot.
+    private final ScanClient[] mClients;
+    // Service UUIDs each client requires to be advertised, packed, or null.
+    private final long[][] mRequiredUuids;
+    // Slots of clients that accept every advertisement.
+    private final int[] mUnconditional;
+
+    private final CompiledFilter[] mFilters;
+    private final KeyTable mAddressKeys;
+    private final KeyTable mManufacturerKeys;
+    private final KeyTable mServiceDataKeys;
+    private final KeyTable mServiceUuidKeys;
+    // Filters without an indexable field, evaluated for every advertisement.
+    private final int[] mUnkeyed;
+
+    // Match scratch state.
+    private final int[] mSelected;
+    private final int[] mStamp;
+    private int mGeneration;
+
+    // Fields of the advertisement being matched.
+    private final AdvertisementParser mParser = new AdvertisementParser();
+    private long mAddress;
+
+    private ScanFilterMatcher(ScanClient[] clients, long[][] requiredUuids, int[] unconditional,
+            List<CompiledFilter> filters) {
+        mClients = clients;
+        mRequiredUuids = requiredUuids;
+        mUnconditional = unconditional;
+        mFilters = filters.toArray(new CompiledFilter[filters.size()]);
+
+        Map<UUID, List<Integer>> addresses = new LinkedHashMap<UUID, List<Integer>>();
+        Map<UUID, List<Integer>> manufacturers = new LinkedHashMap<UUID, List<Integer>>();
+        Map<UUID, List<Integer>> serviceData = new LinkedHashMap<UUID, List<Integer>>();
+        Map<UUID, List<Integer>> serviceUuids = new LinkedHashMap<UUID, List<Integer>>();
+        List<Integer> unkeyed = new ArrayList<Integer>();
+        // Key each filter on its most selective field.
+        for (int id = 0; id < mFilters.length; ++id) {
+            CompiledFilter filter = mFilters[id];
+            if (filter.hasAddress) {
+                addKey(addresses, new UUID(filter.address, 0), id);
+            } else if (filter.manufacturerId >= 0) {
+                addKey(manufacturers, new UUID(filter.manufacturerId, 0), id);
+            } else if (filter.hasServiceData) {
+                addKey(serviceData, new UUID(filter.dataUuidMsb, filter.dataUuidLsb), id);
+            } else if (filter.isExactServiceUuid()) {
+                addKey(serviceUuids, new UUID(filter.uuidMsb, filter.uuidLsb), id);
+            } else {
+                unkeyed.add(id);
+            }
+        }
+        mAddressKeys = new KeyTable(addresses);
+        mManufacturerKeys = new KeyTable(manufacturers);
+        mServiceDataKeys = new KeyTable(serviceData);
+        mServiceUuidKeys = new KeyTable(serviceUuids);
+        mUnkeyed = toArray(unkeyed);
+
+        mSelected = new int[clients.length];
+        mStamp = new int[clients.length];
+    }
+
+    /**
+     * Compile the filters of the given scan clients.
+     */
+    static ScanFilterMatcher build(Collection<ScanClient> clients) {
+        ScanClient[] all = clients.toArray(new ScanClient[clients.size()]);
+        long[][] requiredUuids = new long[all.length][];
+        List<Integer> unconditional = new ArrayList<Integer>();
+        List<CompiledFilter> filters = new ArrayList<CompiledFilter>();
+
+        for (int slot = 0; slot < all.length; ++slot) {
+            ScanClient client = all[slot];
+            boolean hasUuids = client.uuids != null && client.uuids.length > 0;
+            if (hasUuids) {
+                requiredUuids[slot] = packUuids(client.uuids);
+            }
+            if (client.filters != null && !client.filters.isEmpty()) {
+                for (ScanFilter filter : client.filters) {
+                    filters.add(filter == null ? new CompiledFilter(slot)
+                            : new CompiledFilter(slot, filter));
+                }
+            } else if (hasUuids) {
+                // All UUIDs must be present; keying on the first one is sufficient.
+                CompiledFilter filter = new CompiledFilter(slot);
+                filter.hasServiceUuid = true;
+                filter.uuidMsb = client.uuids[0].getMostSignificantBits();
+                filter.uuidLsb = client.uuids[0].getLeastSignificantBits();
+                filters.add(filter);
+            } else {
+                unconditional.add(slot);
+            }
+        }
+        return new ScanFilterMatcher(all, requiredUuids, toArray(unconditional), filters);
+    }
+
+    /**
+     * Number of clients in the matcher.
+     */
+    int size() {
+        return mClients.length;
+    }
+
+    /**
+     * Match an advertisement received from the given address.
+     *
+     * @return the number of matching clients, available through getMatched()
+     */
+    int match(String address, byte[] data, int offset, int length) {
+        return match(address, data, offset, length, offset, 0);
+    }
+
+    /**
+     * Match an advertisement whose advertising packet and scan response are
+     * stored in separate regions of the same buffer.
+     *
+     * @return the number of matching clients, available through getMatched()
+     */
+    int match(String address, byte[] data, int advOffset, int advLength,
+            int scanResponseOffset, int scanResponseLength) {
+        if (++mGeneration == 0) {
+            Arrays.fill(mStamp, 0);
+            mGeneration = 1;
+        }
+
+        int count = 0;
+        for (int slot : mUnconditional) {
+            mStamp[slot] = mGeneration;
+            mSelected[count++] = slot;
+        }
+        if (count == mClients.length) return count;
+
+        AdvertisementParser parser = mParser;
+        mAddress = ScanDuplicateFilter.parseAddress(address);
+        parser.parse(data, advOffset, advLength, scanResponseOffset, scanResponseLength);
+        if (mAddress >= 0) {
+            count = evaluate(mAddressKeys.get(mAddress, 0), count);
+        }
+        for (int i = 0; i < parser.getManufacturerCount(); ++i) {
+            count = evaluate(mManufacturerKeys.get(parser.getManufacturerId(i), 0), count);
+        }
+        for (int i = 0; i < parser.getServiceDataCount(); ++i) {
+            count = evaluate(mServiceDataKeys.get(parser.getServiceDataUuidMsb(i),
+                    parser.getServiceDataUuidLsb(i)), count);
+        }
+        for (int i = 0; i < parser.getUuidCount(); ++i) {
+            count = evaluate(mServiceUuidKeys.get(parser.getUuidMsb(i), parser.getUuidLsb(i)),
+                    count);
+        }
+        count = evaluate(mUnkeyed, count);
+        parser.reset();
+        return count;
+    }
+
+    /**
+     * Returns the i-th client matched by the last call to match().
+     */
+    ScanClient getMatched(int i) {
+        return mClients[mSelected[i]];
+    }
+
+    private int evaluate(int[] ids, int count) {
+        if (ids == null) return count;
+        for (int id : ids) {
+            CompiledFilter filter = mFilters[id];
+            int slot = filter.slot;
+            if (mStamp[slot] == mGeneration) continue;
+            if (!matches(filter) || !containsAll(mRequiredUuids[slot])) continue;
+            mStamp[slot] = mGeneration;
+            mSelected[count++] = slot;
+        }
+        return count;
+    }
+
+    private boolean matches(CompiledFilter filter) {
+        if (filter.hasAddress && (mAddress < 0 || filter.address != mAddress)) {
+            return false;
+        }
+        AdvertisementParser parser = mParser;
+        if (filter.name != null && !regionEquals(filter.name, parser.getNameOffset(),
+                parser.getNameLength())) {
+            return false;
+        }
+        if (filter.hasServiceUuid && !matchesServiceUuid(filter)) {
+            return false;
+        }
+        if (filter.hasServiceData) {
+            // Like ScanRecord, the last field for the UUID wins.
+            int i = parser.getServiceDataCount() - 1;
+            while (i >= 0 && (parser.getServiceDataUuidMsb(i) != filter.dataUuidMsb
+                    || parser.getServiceDataUuidLsb(i) != filter.dataUuidLsb)) {
+                --i;
+            }
+            if (i < 0 || !matchesPartialData(filter.serviceData, filter.serviceDataMask,
+                    parser.getServiceDataOffset(i), parser.getServiceDataLength(i))) {
+                return false;
+            }
+        }
+        if (filter.manufacturerId >= 0) {
+            int i = parser.getManufacturerCount() - 1;
+            while (i >= 0 && parser.getManufacturerId(i) != filter.manufacturerId) --i;
+            if (i < 0 || !matchesPartialData(filter.manufacturerData,
+                    filter.manufacturerDataMask, parser.getManufacturerOffset(i),
+                    parser.getManufacturerLength(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesServiceUuid(CompiledFilter filter) {
+        AdvertisementParser parser = mParser;
+        for (int i = 0; i < parser.getUuidCount(); ++i) {
+            if ((parser.getUuidMsb(i) & filter.uuidMaskMsb) == filter.uuidMsb
+                    && (parser.getUuidLsb(i) & filter.uuidMaskLsb) == filter.uuidLsb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesPartialData(byte[] expected, byte[] mask, int offset, int length) {
+        if (expected == null) return true;
+        if (length < expected.length) return false;
+        byte[] data = mParser.getData();
+        for (int i = 0; i < expected.length; ++i) {
+            int m = mask == null ? 0xFF : mask[i];
+            if ((data[offset + i] & m) != (expected[i] & m)) return false;
+        }
+        return true;
+    }
+
+    private boolean regionEquals(byte[] expected, int offset, int length) {
+        if (offset < 0 || length != expected.length) return false;
+        byte[] data = mParser.getData();
+        for (int i = 0; i < length; ++i) {
+            if (data[offset + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean containsAll(long[] required) {
+        if (required == null) return true;
+        for (int r = 0; r < required.length; r += 2) {
+            if (!mParser.containsUuid(required[r], required[r + 1])) return false;
+        }
+        return true;
+    }
+
+    private static long[] packUuids(UUID[] uuids) {
+        long[] packed = new long[2 * uuids.length];
+        for (int i = 0; i < uuids.length; ++i) {
+            packed[2 * i] = uuids[i].getMostSignificantBits();
+            packed[2 * i + 1] = uuids[i].getLeastSignificantBits();
+        }
+        return packed;
+    }
+
+    private static void addKey(Map<UUID, List<Integer>> keyed, UUID key, int id) {
+        List<Integer> ids = keyed.get(key);
+        if (ids == null) {
+            ids = new ArrayList<Integer>();
+            keyed.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; ++i) array[i] = list.get(i);
+        return array;
+    }
+}
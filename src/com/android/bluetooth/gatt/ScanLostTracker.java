@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.LongSparseArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks the devices found by FIRST_MATCH and MATCH_LOST scan clients.
+ *
+ * A device is found on its first sighting for a client. When the controller
+ * does not track devices itself, a device is lost once it has not been seen
+ * for the client's timeout. Deadlines are kept in a hashed timer wheel and
+ * checked lazily: a sighting only updates the last seen time, and an entry
+ * due in a bucket is moved to a later bucket if it was seen in the
+ * meantime. The number of tracked devices is bounded overall and per
+ * client; devices beyond the bound are neither reported found nor lost.
+ *
+ * @hide
+ */
+/* package */class ScanLostTracker {
+    /**
+     * Receives devices that went silent.
+     */
+    interface Callback {
+        void onLost(ScanClient client, ScanResult result);
+    }
+
+    static final int DEFAULT_CAPACITY = 1024;
+    static final int DEFAULT_CLIENT_CAPACITY = 256;
+    static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    static final long TICK_MILLIS = 250;
+    private static final int WHEEL_SIZE = 64;
+
+    private static class Entry {
+        final ScanClient client;
+        final long key;
+        long timeoutMillis;
+        ScanResult result;
+        long lastSeenMillis;
+        // Timer wheel links, only used for entries that expire in software.
+        int bucket = -1;
+        Entry prev;
+        Entry next;
+
+        Entry(ScanClient client, long key, long timeoutMillis) {
+            this.client = client;
+            this.key = key;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final int mCapacity;
+    private final int mClientCapacity;
+
+    // Entries by client and device address.
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<Entry>();
+    private final SparseIntArray mClientCounts = new SparseIntArray();
+
+    private final Entry[] mWheel = new Entry[WHEEL_SIZE];
+    private int mWheelCount;
+    // Last tick whose bucket was processed.
+    private long mTick;
+    private boolean mTickScheduled;
+
+    // Metrics.
+    private long mFound;
+    private long mLost;
+    private long mDropped;
+    private int mMaxSize;
+
+    private final Runnable mTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanLostTracker.this) {
+                mTickScheduled = false;
+            }
+            expire(SystemClock.elapsedRealtime());
+        }
+    };
+
+    ScanLostTracker(Handler handler, Callback callback) {
+        this(handler, callback, DEFAULT_CAPACITY, DEFAULT_CLIENT_CAPACITY);
+    }
+
+    ScanLostTracker(Handler handler, Callback callback, int capacity, int clientCapacity) {
+        mHandler = handler;
+        mCallback = callback;
+        mCapacity = capacity;
+        mClientCapacity = clientCapacity;
+    }
+
+    /**
+     * Record a sighting of a device by a client.
+     *
+     * @param timeoutMillis silence after which the device is lost, or 0 if
+     *        the controller reports lost devices
+     * @return true if the device was found by this sighting
+     */
+    synchronized boolean onSighting(ScanClient client, String address, ScanResult result,
+            long timeoutMillis, long nowMillis) {
+        long key = getKey(client.clientIf, address);
+        if (key < 0) return true;
+
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            entry.result = result;
+            entry.lastSeenMillis = nowMillis;
+            return false;
+        }
+
+        int clientCount = mClientCounts.get(client.clientIf);
+        if (mEntries.size() >= mCapacity || clientCount >= mClientCapacity) {
+            mDropped++;
+            return false;
+        }
+        entry = new Entry(client, key, timeoutMillis);
+        entry.result = result;
+        entry.lastSeenMillis = nowMillis;
+        mEntries.put(key, entry);
+        mClientCounts.put(client.clientIf, clientCount + 1);
+        if (mEntries.size() > mMaxSize) mMaxSize = mEntries.size();
+        mFound++;
+
+        if (timeoutMillis > 0) {
+            if (mWheelCount == 0) mTick = nowMillis / TICK_MILLIS;
+            schedule(entry);
+            if (!mTickScheduled) {
+                mTickScheduled = mHandler.postDelayed(mTickRunnable, TICK_MILLIS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget a device reported lost by the controller.
+     *
+     * @return the last result seen for the device, or null if it was not
+     *         tracked
+     */
+    synchronized ScanResult remove(int clientIf, String address) {
+        long key = getKey(clientIf, address);
+        Entry entry = key < 0 ? null : mEntries.get(key);
+        if (entry == null) return null;
+        removeEntry(entry);
+        mLost++;
+        return entry.result;
+    }
+
+    /**
+     * Stop timing out the devices of a client, the controller reports them
+     * lost from now on.
+     */
+    synchronized void trackInHardware(int clientIf) {
+        for (int i = 0; i < mEntries.size(); ++i) {
+            Entry entry = mEntries.valueAt(i);
+            if (entry.client.clientIf != clientIf) continue;
+            unlink(entry);
+            entry.timeoutMillis = 0;
+        }
+    }
+
+    /**
+     * Forget all devices of a client, without reporting them lost.
+     */
+    synchronized void removeClient(int clientIf) {
+        for (int i = mEntries.size() - 1; i >= 0; --i) {
+            Entry entry = mEntries.valueAt(i);
+            if (entry.client.clientIf == clientIf) removeEntry(entry);
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mClientCounts.clear();
+        for (int i = 0; i < WHEEL_SIZE; ++i) mWheel[i] = null;
+        mWheelCount = 0;
+        mHandler.removeCallbacks(mTickRunnable);
+        mTickScheduled = false;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Report devices that have been silent for their timeout. Called every
+     * tick while devices are tracked in software.
+     */
+    void expire(long nowMillis) {
+        List<Entry> lost = null;
+        synchronized (this) {
+            long nowTick = nowMillis / TICK_MILLIS;
+            // After a long pause every bucket is visited once.
+            long firstTick = Math.max(mTick + 1, nowTick - WHEEL_SIZE + 1);
+            for (long tick = firstTick; tick <= nowTick; ++tick) {
+                int bucket = (int) (tick % WHEEL_SIZE);
+                Entry entry = mWheel[bucket];
+                while (entry != null) {
+                    Entry next = entry.next;
+                    if (nowMillis - entry.lastSeenMillis >= entry.timeoutMillis) {
+                        removeEntry(entry);
+                        mLost++;
+                        if (lost == null) lost = new ArrayList<Entry>();
+                        lost.add(entry);
+                    } else {
+                        // Seen since it was scheduled, move it to its new deadline.
+                        unlink(entry);
+                        schedule(entry);
+                    }
+                    entry = next;
+                }
+            }
+            if (nowTick > mTick) mTick = nowTick;
+            if (mWheelCount > 0 && !mTickScheduled) {
+                mTickScheduled = mHandler.postDelayed(mTickRunnable, TICK_MILLIS);
+            }
+        }
+        if (lost == null) return;
+        for (Entry entry : lost) {
+            mCallback.onLost(entry.client, entry.result);
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Found devices: tracked " + mEntries.size() + " (max " + mMaxSize
+                + "), timed " + mWheelCount + ", found " + mFound + ", lost " + mLost
+                + ", dropped " + mDropped + "\n");
+    }
+
+    private void schedule(Entry entry) {
+        long deadlineTick = (entry.lastSeenMillis + entry.timeoutMillis + TICK_MILLIS - 1)
+                / TICK_MILLIS;
+        if (deadlineTick <= mTick) deadlineTick = mTick + 1;
+        int bucket = (int) (deadlineTick % WHEEL_SIZE);
+        entry.bucket = bucket;
+        entry.prev = null;
+        entry.next = mWheel[bucket];
+        if (entry.next != null) entry.next.prev = entry;
+        mWheel[bucket] = entry;
+        mWheelCount++;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.bucket < 0) return;
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            mWheel[entry.bucket] = entry.next;
+        }
+        if (entry.next != null) entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        entry.bucket = -1;
+        mWheelCount--;
+    }
+
+    private void removeEntry(Entry entry) {
+        unlink(entry);
+        mEntries.remove(entry.key);
+        int clientIf = entry.client.clientIf;
+        int count = mClientCounts.get(clientIf) - 1;
+        if (count > 0) {
+            mClientCounts.put(clientIf, count);
+        } else {
+            mClientCounts.delete(clientIf);
+        }
+    }
+
+    private static long getKey(int clientIf, String address) {
+        long device = ScanDuplicateFilter.parseAddress(address);
+        if (device < 0) return -1;
+        return ((long) (clientIf & 0x7FFF) << 48) | device;
+    }
+}
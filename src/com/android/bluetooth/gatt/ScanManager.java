@@ -20,6 +20,7 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -35,14 +36,14 @@ import android.util.Log;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Class that handles Bluetooth LE scan related operations.
@@ -62,14 +63,17 @@ public class ScanManager {
     private static final int MSG_START_BLE_SCAN = 0;
     private static final int MSG_STOP_BLE_SCAN = 1;
     private static final int MSG_FLUSH_BATCH_RESULTS = 2;
+    private static final int MSG_DELIVER_SOFTWARE_BATCH = 3;
+    private static final int MSG_UPDATE_SCAN_PARAMS = 4;
 
     private static final String ACTION_REFRESH_BATCHED_SCAN =
             "com.android.bluetooth.gatt.REFRESH_BATCHED_SCAN";
 
     // Timeout for each controller operation.
     private static final int OPERATION_TIME_OUT_MILLIS = 500;
+    // Maximum number of controller operations awaiting completion.
+    private static final int MAX_OPERATIONS_IN_FLIGHT = 4;
 
-    private int mLastConfiguredScanSetting = Integer.MIN_VALUE;
     // Scan parameters for batch scan.
     private BatchScanParams mBatchScanParms;
 
@@ -81,8 +85,12 @@ public class ScanManager {
 
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
+    // Compiled filters of mRegularScanClients, read from the stack callback thread.
+    private volatile ScanFilterMatcher mRegularScanMatcher = ScanFilterMatcher.EMPTY;
 
-    private CountDownLatch mLatch;
+    private ScanCommandQueue mCommandQueue;
+    private final ScanDutyCycleScheduler mScanScheduler = new ScanDutyCycleScheduler();
+    private ScanLostTracker mLostTracker;
 
     ScanManager(GattService service) {
         mRegularScanClients = new HashSet<ScanClient>();
@@ -95,11 +103,23 @@ public class ScanManager {
         HandlerThread thread = new HandlerThread("BluetoothScanManager");
         thread.start();
         mHandler = new ClientHandler(thread.getLooper());
+        mCommandQueue = new ScanCommandQueue(mHandler, MAX_OPERATIONS_IN_FLIGHT,
+                OPERATION_TIME_OUT_MILLIS);
+        mLostTracker = new ScanLostTracker(mHandler, new ScanLostTracker.Callback() {
+            @Override
+            public void onLost(ScanClient client, ScanResult result) {
+                mService.onSoftwareMatchLost(client, result);
+            }
+        });
     }
 
     void cleanup() {
+        if (mCommandQueue != null) mCommandQueue.clear();
+        if (mLostTracker != null) mLostTracker.clear();
         mRegularScanClients.clear();
+        mRegularScanMatcher = ScanFilterMatcher.EMPTY;
         mBatchClients.clear();
+        mScanScheduler.reset();
         mScanNative.cleanup();
     }
 
@@ -110,6 +130,46 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the compiled filters of the regular scan queue.
+     */
+    ScanFilterMatcher getRegularScanMatcher() {
+        return mRegularScanMatcher;
+    }
+
+    /**
+     * Record a sighting of a device by a FIRST_MATCH or MATCH_LOST client.
+     * Devices are lost in software unless the controller tracks them.
+     *
+     * @return true if the device was found by this sighting
+     */
+    boolean onFoundLostSighting(ScanClient client, String address, ScanResult result) {
+        return mLostTracker.onSighting(client, address, result, getLostTimeoutMillis(client),
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Returns the silence after which a device is lost for a client, or 0 if
+     * the controller reports lost devices. The controller only does so for
+     * clients on their own found/lost filter slots, not for clients on the
+     * ALL_PASS filter.
+     */
+    static long getLostTimeoutMillis(ScanClient client) {
+        if (client.lostInHardware) return 0;
+        return client.settings.getReportDelayMillis() > 0
+                ? client.settings.getReportDelayMillis()
+                : ScanLostTracker.DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Forget a device the controller reported lost.
+     *
+     * @return the last result seen for the device, or null if it was not found
+     */
+    ScanResult onHardwareLost(int clientIf, String address) {
+        return mLostTracker.remove(clientIf, address);
+    }
+
     /**
      * Returns batch scan queue.
      */
@@ -144,14 +204,24 @@ public class ScanManager {
         sendMessage(MSG_FLUSH_BATCH_RESULTS, client);
     }
 
-    void callbackDone(int clientIf, int status) {
+    /**
+     * Complete the pending controller operation of the given types.
+     *
+     * @param typeMask ScanCommandQueue command types the callback acknowledges
+     */
+    void callbackDone(int typeMask, int clientIf, int status) {
         logd("callback done for clientIf - " + clientIf + " status - " + status);
-        if (status == 0) {
-            mLatch.countDown();
-        }
+        mCommandQueue.onCommandDone(typeMask, clientIf, status);
         // TODO: add a callback for scan failure.
     }
 
+    void dump(StringBuilder sb) {
+        mCommandQueue.dump(sb);
+        mScanScheduler.dump(sb);
+        mLostTracker.dump(sb);
+        mScanNative.dump(sb);
+    }
+
     private void sendMessage(int what, ScanClient client) {
         Message message = new Message();
         message.what = what;
@@ -164,6 +234,21 @@ public class ScanManager {
         return adapter.isOffloadedFilteringSupported();
     }
 
+    private boolean isBatchScanSupported() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        return adapter.isOffloadedScanBatchingSupported();
+    }
+
+    // Returns the regular scan client with the given clientIf, if any.
+    private ScanClient getRegularScanClient(int clientIf) {
+        for (ScanClient client : mRegularScanClients) {
+            if (client.clientIf == clientIf) {
+                return client;
+            }
+        }
+        return null;
+    }
+
     // Handler class that handles BLE scan operations.
     private class ClientHandler extends Handler {
 
@@ -184,6 +269,12 @@ public class ScanManager {
                 case MSG_FLUSH_BATCH_RESULTS:
                     handleFlushBatchResults(client);
                     break;
+                case MSG_DELIVER_SOFTWARE_BATCH:
+                    handleDeliverSoftwareBatch(client);
+                    break;
+                case MSG_UPDATE_SCAN_PARAMS:
+                    mScanNative.configureRegularScanParams();
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "received an unkown message : " + msg.what);
@@ -208,7 +299,17 @@ public class ScanManager {
                 mBatchClients.add(client);
                 mScanNative.startBatchScan(client);
             } else {
+                if (isSoftwareBatchClient(client)) {
+                    client.batchBuffer = new ScanBatchBuffer(
+                            client.settings.getReportDelayMillis());
+                    scheduleSoftwareBatch(client);
+                }
                 mRegularScanClients.add(client);
+                mRegularScanMatcher = ScanFilterMatcher.build(mRegularScanClients);
+                if (isFirstMatchClient(client)) {
+                    // Waiting for a device to show up, find it quickly.
+                    mScanScheduler.startBurst(client.clientIf, SystemClock.elapsedRealtime());
+                }
                 mScanNative.startRegularScan(client);
                 mScanNative.configureRegularScanParams();
             }
@@ -218,6 +319,9 @@ public class ScanManager {
             Utils.enforceAdminPermission(mService);
             if (client == null) return;
             if (mRegularScanClients.contains(client)) {
+                removeMessages(MSG_DELIVER_SOFTWARE_BATCH, getRegularScanClient(client.clientIf));
+                mScanScheduler.cancelBurst(client.clientIf);
+                mLostTracker.removeClient(client.clientIf);
                 mScanNative.stopRegularScan(client);
                 mScanNative.configureRegularScanParams();
             } else {
@@ -225,19 +329,65 @@ public class ScanManager {
             }
             if (client.appDied) {
                 logd("app died, unregister client - " + client.clientIf);
-                mService.unregisterClient(client.clientIf);
+                final int clientIf = client.clientIf;
+                // Unregister once the controller is done with the client's filters.
+                mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                        ScanCommandQueue.TYPE_UNACKNOWLEDGED, clientIf, true) {
+                    @Override
+                    void issue() {
+                        mService.unregisterClient(clientIf);
+                    }
+                });
             }
         }
 
         void handleFlushBatchResults(ScanClient client) {
             Utils.enforceAdminPermission(mService);
             if (!mBatchClients.contains(client)) {
+                ScanClient regularClient = getRegularScanClient(client.clientIf);
+                if (regularClient != null && regularClient.batchBuffer != null) {
+                    removeMessages(MSG_DELIVER_SOFTWARE_BATCH, regularClient);
+                    handleDeliverSoftwareBatch(regularClient);
+                }
                 return;
             }
             mScanNative.flushBatchResults(client.clientIf);
         }
 
+        // Deliver the results batched in software for a regular scan client and re-arm the
+        // report delay timer.
+        void handleDeliverSoftwareBatch(ScanClient client) {
+            if (!mRegularScanClients.contains(client) || client.batchBuffer == null) {
+                return;
+            }
+            List<ScanResult> results = client.batchBuffer.drain();
+            if (!results.isEmpty()) {
+                mService.onSoftwareBatchScanResults(client, results);
+            }
+            scheduleSoftwareBatch(client);
+        }
+
+        private void scheduleSoftwareBatch(ScanClient client) {
+            Message message = obtainMessage(MSG_DELIVER_SOFTWARE_BATCH, client);
+            sendMessageDelayed(message, client.batchBuffer.getReportDelayMillis());
+        }
+
+        private boolean isFirstMatchClient(ScanClient client) {
+            return client.settings != null && (client.settings.getCallbackType()
+                    & ScanSettings.CALLBACK_TYPE_FIRST_MATCH) != 0;
+        }
+
         private boolean isBatchClient(ScanClient client) {
+            return isReportDelayClient(client) && isBatchScanSupported();
+        }
+
+        // Batch scan requested, but the controller cannot batch: regular scan with results
+        // batched in software.
+        private boolean isSoftwareBatchClient(ScanClient client) {
+            return isReportDelayClient(client) && !isBatchScanSupported();
+        }
+
+        private boolean isReportDelayClient(ScanClient client) {
             if (client == null || client.settings == null) {
                 return false;
             }
@@ -254,8 +404,8 @@ public class ScanManager {
             if (isFilteringSupported()) {
                 return true;
             }
-            return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES &&
-                    settings.getReportDelayMillis() == 0;
+            // Report delay is honoured in software when batching is not offloaded.
+            return settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
         }
     }
 
@@ -304,16 +454,6 @@ public class ScanManager {
 
         private static final int DISCARD_OLDEST_WHEN_BUFFER_FULL = 0;
 
-        /**
-         * Scan params corresponding to regular scan setting
-         */
-        private static final int SCAN_MODE_LOW_POWER_WINDOW_MS = 500;
-        private static final int SCAN_MODE_LOW_POWER_INTERVAL_MS = 5000;
-        private static final int SCAN_MODE_BALANCED_WINDOW_MS = 2000;
-        private static final int SCAN_MODE_BALANCED_INTERVAL_MS = 5000;
-        private static final int SCAN_MODE_LOW_LATENCY_WINDOW_MS = 5000;
-        private static final int SCAN_MODE_LOW_LATENCY_INTERVAL_MS = 5000;
-
         /**
          * Scan params corresponding to batch scan setting
          */
@@ -327,10 +467,10 @@ public class ScanManager {
         // The logic is AND for each filter field.
         private static final int LIST_LOGIC_TYPE = 0x1111111;
         private static final int FILTER_LOGIC_TYPE = 1;
-        // Filter indices that are available to user. It's sad we need to maintain filter index.
-        private final Deque<Integer> mFilterIndexStack;
-        // Map of clientIf and Filter indices used by client.
-        private final Map<Integer, Deque<Integer>> mClientFilterIndexMap;
+        // Filter indices that are available to user, shared by clients with identical filters.
+        private final ScanFilterAllocator mFilterAllocator;
+        // Clients with filters that did not fit in hardware, matched in software on ALL_PASS.
+        private final Map<Integer, ScanClient> mFallbackClients;
         // Keep track of the clients that uses ALL_PASS filters.
         private final Set<Integer> mAllPassRegularClients = new HashSet<>();
         private final Set<Integer> mAllPassBatchClients = new HashSet<>();
@@ -339,8 +479,8 @@ public class ScanManager {
         private PendingIntent mBatchScanIntervalIntent;
 
         ScanNative() {
-            mFilterIndexStack = new ArrayDeque<Integer>();
-            mClientFilterIndexMap = new HashMap<Integer, Deque<Integer>>();
+            mFilterAllocator = new ScanFilterAllocator();
+            mFallbackClients = new HashMap<Integer, ScanClient>();
 
             mAlarmManager = (AlarmManager) mService.getSystemService(Context.ALARM_SERVICE);
             Intent batchIntent = new Intent(ACTION_REFRESH_BATCHED_SCAN, null);
@@ -366,83 +506,48 @@ public class ScanManager {
             mBatchAlarmReceiverRegistered = true;
         }
 
-        private void resetCountDownLatch() {
-            mLatch = new CountDownLatch(1);
-        }
-
-        // Returns true if mLatch reaches 0, false if timeout or interrupted.
-        private boolean waitForCallback() {
-            try {
-                return mLatch.await(OPERATION_TIME_OUT_MILLIS, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                return false;
-            }
+        // Queue a scan start or stop. The stack does not acknowledge these, they are only
+        // ordered against pending filter and batch operations.
+        private void scan(final boolean start) {
+            mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                    ScanCommandQueue.TYPE_UNACKNOWLEDGED, 0, true) {
+                @Override
+                void issue() {
+                    gattClientScanNative(start);
+                }
+            });
         }
 
         void configureRegularScanParams() {
             logd("configureRegularScanParams() - queue=" + mRegularScanClients.size());
-            int curScanSetting = Integer.MIN_VALUE;
-            ScanClient client = getAggressiveClient(mRegularScanClients);
-            if (client != null) {
-                curScanSetting = client.settings.getScanMode();
-            }
-
-            logd("configureRegularScanParams() - ScanSetting Scan mode=" + curScanSetting +
-                    " mLastConfiguredScanSetting=" + mLastConfiguredScanSetting);
-
-            if (curScanSetting != Integer.MIN_VALUE) {
-                if (curScanSetting != mLastConfiguredScanSetting) {
-                    int scanWindow, scanInterval;
-                    switch (curScanSetting) {
-                        case ScanSettings.SCAN_MODE_LOW_POWER:
-                            scanWindow = SCAN_MODE_LOW_POWER_WINDOW_MS;
-                            scanInterval = SCAN_MODE_LOW_POWER_INTERVAL_MS;
-                            break;
-                        case ScanSettings.SCAN_MODE_BALANCED:
-                            scanWindow = SCAN_MODE_BALANCED_WINDOW_MS;
-                            scanInterval = SCAN_MODE_BALANCED_INTERVAL_MS;
-                            break;
-                        case ScanSettings.SCAN_MODE_LOW_LATENCY:
-                            scanWindow = SCAN_MODE_LOW_LATENCY_WINDOW_MS;
-                            scanInterval = SCAN_MODE_LOW_LATENCY_INTERVAL_MS;
-                            break;
-                        default:
-                            Log.e(TAG, "Invalid value for curScanSetting " + curScanSetting);
-                            scanWindow = SCAN_MODE_LOW_POWER_WINDOW_MS;
-                            scanInterval = SCAN_MODE_LOW_POWER_INTERVAL_MS;
-                            break;
-                    }
-                    // convert scanWindow and scanInterval from ms to LE scan units(0.625ms)
-                    scanWindow = Utils.millsToUnit(scanWindow);
-                    scanInterval = Utils.millsToUnit(scanInterval);
-                    gattClientScanNative(false);
-                    gattSetScanParametersNative(scanInterval, scanWindow);
-                    gattClientScanNative(true);
-                    mLastConfiguredScanSetting = curScanSetting;
-                }
-            } else {
-                mLastConfiguredScanSetting = curScanSetting;
-                logd("configureRegularScanParams() - queue emtpy, scan stopped");
+            long now = SystemClock.elapsedRealtime();
+            boolean restart = mScanScheduler.update(mRegularScanClients, now);
+            mHandler.removeMessages(MSG_UPDATE_SCAN_PARAMS);
+            long next = mScanScheduler.getNextUpdateMillis();
+            if (next >= 0) {
+                mHandler.sendEmptyMessageDelayed(MSG_UPDATE_SCAN_PARAMS, next - now);
+            }
+            if (!restart) {
+                return;
             }
-        }
 
-        ScanClient getAggressiveClient(Set<ScanClient> cList) {
-            ScanClient result = null;
-            int curScanSetting = Integer.MIN_VALUE;
-            for (ScanClient client : cList) {
-                // ScanClient scan settings are assumed to be monotonically increasing in value for
-                // more power hungry(higher duty cycle) operation.
-                if (client.settings.getScanMode() > curScanSetting) {
-                    result = client;
-                    curScanSetting = client.settings.getScanMode();
+            // convert scanWindow and scanInterval from ms to LE scan units(0.625ms)
+            final int interval = Utils.millsToUnit(mScanScheduler.getIntervalMillis());
+            final int window = Utils.millsToUnit(mScanScheduler.getWindowMillis());
+            logd("configureRegularScanParams() - window=" + window + " interval=" + interval);
+            scan(false);
+            mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                    ScanCommandQueue.TYPE_UNACKNOWLEDGED, 0, true) {
+                @Override
+                void issue() {
+                    gattSetScanParametersNative(interval, window);
                 }
-            }
-            return result;
+            });
+            scan(true);
         }
 
         void startRegularScan(ScanClient client) {
-            if (isFilteringSupported() && mFilterIndexStack.isEmpty() &&
-                    mClientFilterIndexMap.isEmpty()) {
+            if (isFilteringSupported() && mFilterAllocator.isEmpty()) {
                 initFilterIndexStack();
             }
             if (isFilteringSupported()) {
@@ -450,12 +555,12 @@ public class ScanManager {
             }
             // Start scan native only for the first client.
             if (mRegularScanClients.size() == 1) {
-                gattClientScanNative(true);
+                scan(true);
             }
         }
 
         void startBatchScan(ScanClient client) {
-            if (mFilterIndexStack.isEmpty() && isFilteringSupported()) {
+            if (mFilterAllocator.isEmpty() && isFilteringSupported()) {
                 initFilterIndexStack();
             }
             configureScanFilters(client);
@@ -464,37 +569,49 @@ public class ScanManager {
         }
 
         private void resetBatchScan(ScanClient client) {
-            int clientIf = client.clientIf;
+            final int clientIf = client.clientIf;
             BatchScanParams batchScanParams = getBatchScanParams();
             // Stop batch if batch scan params changed and previous params is not null.
             if (mBatchScanParms != null && (!mBatchScanParms.equals(batchScanParams))) {
                 logd("stopping BLe Batch");
-                resetCountDownLatch();
-                gattClientStopBatchScanNative(clientIf);
-                waitForCallback();
+                mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                        ScanCommandQueue.TYPE_BATCH_STOP, clientIf, true) {
+                    @Override
+                    void issue() {
+                        gattClientStopBatchScanNative(clientIf);
+                    }
+                });
                 // Clear pending results as it's illegal to config storage if there are still
                 // pending results.
                 flushBatchResults(clientIf);
             }
             // Start batch if batchScanParams changed and current params is not null.
             if (batchScanParams != null && (!batchScanParams.equals(mBatchScanParms))) {
-                int notifyThreshold = 95;
+                final int notifyThreshold = 95;
                 logd("Starting BLE batch scan");
-                int resultType = getResultType(batchScanParams);
-                int fullScanPercent = getFullScanStoragePercent(resultType);
-                resetCountDownLatch();
+                final int resultType = getResultType(batchScanParams);
+                final int fullScanPercent = getFullScanStoragePercent(resultType);
                 logd("configuring batch scan storage, appIf " + client.clientIf);
-                gattClientConfigBatchScanStorageNative(client.clientIf, fullScanPercent,
-                        100 - fullScanPercent, notifyThreshold);
-                waitForCallback();
-                resetCountDownLatch();
-                int scanInterval =
+                mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                        ScanCommandQueue.TYPE_BATCH_STORAGE_CONFIG, clientIf, true) {
+                    @Override
+                    void issue() {
+                        gattClientConfigBatchScanStorageNative(clientIf, fullScanPercent,
+                                100 - fullScanPercent, notifyThreshold);
+                    }
+                });
+                final int scanInterval =
                         Utils.millsToUnit(getBatchScanIntervalMillis(batchScanParams.scanMode));
-                int scanWindow =
+                final int scanWindow =
                         Utils.millsToUnit(getBatchScanWindowMillis(batchScanParams.scanMode));
-                gattClientStartBatchScanNative(clientIf, resultType, scanInterval,
-                        scanWindow, 0, DISCARD_OLDEST_WHEN_BUFFER_FULL);
-                waitForCallback();
+                mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                        ScanCommandQueue.TYPE_BATCH_START, clientIf, true) {
+                    @Override
+                    void issue() {
+                        gattClientStartBatchScanNative(clientIf, resultType, scanInterval,
+                                scanWindow, 0, DISCARD_OLDEST_WHEN_BUFFER_FULL);
+                    }
+                });
             }
             mBatchScanParms = batchScanParams;
             setBatchAlarm();
@@ -579,9 +696,10 @@ public class ScanManager {
             // Remove scan filters and recycle filter indices.
             removeScanFilters(client.clientIf);
             mRegularScanClients.remove(client);
+            mRegularScanMatcher = ScanFilterMatcher.build(mRegularScanClients);
             if (mRegularScanClients.isEmpty()) {
                 logd("stop scan");
-                gattClientScanNative(false);
+                scan(false);
             }
         }
 
@@ -594,20 +712,30 @@ public class ScanManager {
         void flushBatchResults(int clientIf) {
             logd("flushPendingBatchResults - clientIf = " + clientIf);
             if (mBatchScanParms.fullScanClientIf != -1) {
-                resetCountDownLatch();
-                gattClientReadScanReportsNative(mBatchScanParms.fullScanClientIf,
-                        SCAN_RESULT_TYPE_FULL);
-                waitForCallback();
+                readScanReports(mBatchScanParms.fullScanClientIf, SCAN_RESULT_TYPE_FULL);
             }
             if (mBatchScanParms.truncatedScanClientIf != -1) {
-                resetCountDownLatch();
-                gattClientReadScanReportsNative(mBatchScanParms.truncatedScanClientIf,
+                readScanReports(mBatchScanParms.truncatedScanClientIf,
                         SCAN_RESULT_TYPE_TRUNCATED);
-                waitForCallback();
             }
             setBatchAlarm();
         }
 
+        private void readScanReports(final int clientIf, final int scanType) {
+            mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                    ScanCommandQueue.TYPE_READ_REPORTS, clientIf, true) {
+                @Override
+                void issue() {
+                    gattClientReadScanReportsNative(clientIf, scanType);
+                }
+            });
+        }
+
+        void dump(StringBuilder sb) {
+            mFilterAllocator.dump(sb);
+            sb.append("  Software filtered clients: " + mFallbackClients.keySet() + "\n");
+        }
+
         void cleanup() {
             mAlarmManager.cancel(mBatchScanIntervalIntent);
             // Protect against multiple calls of cleanup.
@@ -631,49 +759,108 @@ public class ScanManager {
         // Add scan filters. The logic is:
         // If no offload filter can/needs to be set, set ALL_PASS filter.
         // Otherwise offload all filters to hardware and enable all filters.
-        private void configureScanFilters(ScanClient client) {
-            int clientIf = client.clientIf;
+        private void configureScanFilters(final ScanClient client) {
+            final int clientIf = client.clientIf;
             int deliveryMode = getDeliveryMode(client);
-            if (!shouldAddAllPassFilterToController(client, deliveryMode)) {
+            List<ScanFilterAllocator.Slot> newSlots = allocateFilters(client);
+            if (newSlots == null && hasFilters(client)) {
+                mFallbackClients.put(clientIf, client);
+            }
+            client.lostInHardware = newSlots != null
+                    && deliveryMode == DELIVERY_MODE_ON_FOUND_LOST;
+            if (!shouldAddAllPassFilterToController(client, deliveryMode, newSlots == null)) {
                 return;
             }
 
-            resetCountDownLatch();
-            gattClientScanFilterEnableNative(clientIf, true);
-            waitForCallback();
+            mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                    ScanCommandQueue.TYPE_FILTER_ENABLE, clientIf, false) {
+                @Override
+                void issue() {
+                    gattClientScanFilterEnableNative(clientIf, true);
+                }
+            });
 
-            if (shouldUseAllPassFilter(client)) {
+            if (newSlots == null) {
                 int filterIndex = (deliveryMode == DELIVERY_MODE_BATCH) ?
                         ALL_PASS_FILTER_INDEX_BATCH_SCAN : ALL_PASS_FILTER_INDEX_REGULAR_SCAN;
-                resetCountDownLatch();
                 configureFilterParamter(clientIf, client, ALL_PASS_FILTER_SELECTION, filterIndex);
-                waitForCallback();
             } else {
-                Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
-                for (ScanFilter filter : client.filters) {
-                    ScanFilterQueue queue = new ScanFilterQueue();
-                    queue.addScanFilter(filter);
-                    int featureSelection = queue.getFeatureSelection();
-                    int filterIndex = mFilterIndexStack.pop();
-                    while (!queue.isEmpty()) {
-                        resetCountDownLatch();
-                        addFilterToController(clientIf, queue.pop(), filterIndex);
-                        waitForCallback();
-                    }
-                    resetCountDownLatch();
-                    configureFilterParamter(clientIf, client, featureSelection, filterIndex);
-                    waitForCallback();
-                    clientFilterIndices.add(filterIndex);
+                programFilterSlots(client, newSlots);
+            }
+        }
+
+        // Allocate hardware slots for the client filters. Returns the slots that need to be
+        // programmed, or null if the client has to use the ALL_PASS filter.
+        private List<ScanFilterAllocator.Slot> allocateFilters(ScanClient client) {
+            if (!hasFilters(client)) {
+                return null;
+            }
+            // Found and lost events carry the client the slot was programmed for.
+            int deliveryMode = getDeliveryMode(client);
+            return mFilterAllocator.allocate(client.clientIf, client.filters, deliveryMode,
+                    getOnfoundLostTimeout(client), deliveryMode == DELIVERY_MODE_ON_FOUND_LOST);
+        }
+
+        private boolean hasFilters(ScanClient client) {
+            return client != null && client.filters != null && !client.filters.isEmpty();
+        }
+
+        private void programFilterSlots(ScanClient client, List<ScanFilterAllocator.Slot> slots) {
+            final int clientIf = client.clientIf;
+            for (ScanFilterAllocator.Slot slot : slots) {
+                final int filterIndex = slot.index;
+                for (final ScanFilterQueue.Entry entry : slot.getEntries()) {
+                    mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                            ScanCommandQueue.TYPE_FILTER_ADD, clientIf, false) {
+                        @Override
+                        void issue() {
+                            addFilterToController(clientIf, entry, filterIndex);
+                        }
+                    });
                 }
-                mClientFilterIndexMap.put(clientIf, clientFilterIndices);
+                configureFilterParamter(clientIf, client, slot.getFeatureSelection(),
+                        filterIndex);
+            }
+        }
+
+        // Move clients that fell back to ALL_PASS into freed hardware slots, most selective
+        // clients first.
+        private void promoteFallbackClients() {
+            if (mFallbackClients.isEmpty() || mFilterAllocator.getFreeCount() == 0) {
+                return;
+            }
+            List<ScanClient> candidates = new ArrayList<ScanClient>(mFallbackClients.values());
+            Collections.sort(candidates, new Comparator<ScanClient>() {
+                @Override
+                public int compare(ScanClient lhs, ScanClient rhs) {
+                    return ScanFilterAllocator.getSelectivity(rhs.filters)
+                            - ScanFilterAllocator.getSelectivity(lhs.filters);
+                }
+            });
+            for (ScanClient client : candidates) {
+                List<ScanFilterAllocator.Slot> slots = allocateFilters(client);
+                if (slots == null) continue;
+                logd("promoting filters of clientIf " + client.clientIf + " to hardware");
+                mFallbackClients.remove(client.clientIf);
+                programFilterSlots(client, slots);
+                if (getDeliveryMode(client) == DELIVERY_MODE_ON_FOUND_LOST) {
+                    // The controller reports lost devices from now on.
+                    client.lostInHardware = true;
+                    mLostTracker.trackInHardware(client.clientIf);
+                }
+                removeFilterIfExisits(mAllPassRegularClients, client.clientIf,
+                        ALL_PASS_FILTER_INDEX_REGULAR_SCAN);
+                removeFilterIfExisits(mAllPassBatchClients, client.clientIf,
+                        ALL_PASS_FILTER_INDEX_BATCH_SCAN);
             }
         }
 
         // Check whether the filter should be added to controller.
         // Note only on ALL_PASS filter should be added.
-        private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode) {
+        private boolean shouldAddAllPassFilterToController(ScanClient client, int deliveryMode,
+                boolean useAllPass) {
             // Not an ALL_PASS client, need to add filter.
-            if (!shouldUseAllPassFilter(client)) {
+            if (!useAllPass) {
                 return true;
             }
 
@@ -687,20 +874,17 @@ public class ScanManager {
         }
 
         private void removeScanFilters(int clientIf) {
-            Deque<Integer> filterIndices = mClientFilterIndexMap.remove(clientIf);
-            if (filterIndices != null) {
-                mFilterIndexStack.addAll(filterIndices);
-                for (Integer filterIndex : filterIndices) {
-                    resetCountDownLatch();
-                    gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                    waitForCallback();
-                }
+            // Only delete slots no other client shares.
+            for (ScanFilterAllocator.Slot slot : mFilterAllocator.release(clientIf)) {
+                deleteFilterParams(clientIf, slot.index);
             }
+            mFallbackClients.remove(clientIf);
             // Remove if ALL_PASS filters are used.
             removeFilterIfExisits(mAllPassRegularClients, clientIf,
                     ALL_PASS_FILTER_INDEX_REGULAR_SCAN);
             removeFilterIfExisits(mAllPassBatchClients, clientIf,
                     ALL_PASS_FILTER_INDEX_BATCH_SCAN);
+            promoteFallbackClients();
         }
 
         private void removeFilterIfExisits(Set<Integer> clients, int clientIf, int filterIndex) {
@@ -710,12 +894,20 @@ public class ScanManager {
             clients.remove(clientIf);
             // Remove ALL_PASS filter iff no app is using it.
             if (clients.isEmpty()) {
-                resetCountDownLatch();
-                gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
-                waitForCallback();
+                deleteFilterParams(clientIf, filterIndex);
             }
         }
 
+        private void deleteFilterParams(final int clientIf, final int filterIndex) {
+            mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                    ScanCommandQueue.TYPE_FILTER_PARAM_DELETE, clientIf, false) {
+                @Override
+                void issue() {
+                    gattClientScanFilterParamDeleteNative(clientIf, filterIndex);
+                }
+            });
+        }
+
         private ScanClient getBatchScanClient(int clientIf) {
             for (ScanClient client : mBatchClients) {
                 if (client.clientIf == clientIf) {
@@ -741,17 +933,6 @@ public class ScanManager {
             return -1;
         }
 
-        // Check if ALL_PASS filter should be used for the client.
-        private boolean shouldUseAllPassFilter(ScanClient client) {
-            if (client == null) {
-                return true;
-            }
-            if (client.filters == null || client.filters.isEmpty()) {
-                return true;
-            }
-            return client.filters.size() > mFilterIndexStack.size();
-        }
-
         private void addFilterToController(int clientIf, ScanFilterQueue.Entry entry,
                 int filterIndex) {
             logd("addFilterToController: " + entry.type);
@@ -804,21 +985,29 @@ public class ScanManager {
             // index 0 is reserved for ALL_PASS filter in Settings app.
             // index 1 is reserved for ALL_PASS filter for regular scan apps.
             // index 2 is reserved for ALL_PASS filter for batch scan apps.
+            List<Integer> indices = new ArrayList<Integer>();
             for (int i = 3; i < maxFiltersSupported; ++i) {
-                mFilterIndexStack.add(i);
+                indices.add(i);
             }
+            mFilterAllocator.addIndices(indices);
         }
 
         // Configure filter parameters.
-        private void configureFilterParamter(int clientIf, ScanClient client, int featureSelection,
-                int filterIndex) {
-            int deliveryMode = getDeliveryMode(client);
-            int rssiThreshold = Byte.MIN_VALUE;
-            int timeout = getOnfoundLostTimeout(client);
-            gattClientScanFilterParamAddNative(
-                    clientIf, filterIndex, featureSelection, LIST_LOGIC_TYPE,
-                    FILTER_LOGIC_TYPE, rssiThreshold, rssiThreshold, deliveryMode,
-                    timeout, timeout, ONFOUND_SIGHTINGS);
+        private void configureFilterParamter(final int clientIf, ScanClient client,
+                final int featureSelection, final int filterIndex) {
+            final int deliveryMode = getDeliveryMode(client);
+            final int rssiThreshold = Byte.MIN_VALUE;
+            final int timeout = getOnfoundLostTimeout(client);
+            mCommandQueue.enqueue(new ScanCommandQueue.Command(
+                    ScanCommandQueue.TYPE_FILTER_PARAM_ADD, clientIf, false) {
+                @Override
+                void issue() {
+                    gattClientScanFilterParamAddNative(
+                            clientIf, filterIndex, featureSelection, LIST_LOGIC_TYPE,
+                            FILTER_LOGIC_TYPE, rssiThreshold, rssiThreshold, deliveryMode,
+                            timeout, timeout, ONFOUND_SIGHTINGS);
+                }
+            });
         }
 
         // Get delivery mode based on scan settings.
@@ -834,8 +1023,11 @@ public class ScanManager {
                     || (settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST) != 0) {
                 return DELIVERY_MODE_ON_FOUND_LOST;
             }
-            return settings.getReportDelayMillis() == 0 ? DELIVERY_MODE_IMMEDIATE
-                    : DELIVERY_MODE_BATCH;
+            // Software batched clients need every result delivered to the host.
+            if (settings.getReportDelayMillis() == 0 || client.batchBuffer != null) {
+                return DELIVERY_MODE_IMMEDIATE;
+            }
+            return DELIVERY_MODE_BATCH;
         }
 
         // Get onfound and onlost timeouts in ms
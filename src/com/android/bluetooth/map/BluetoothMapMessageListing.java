@@ -15,6 +15,7 @@
 package com.android.bluetooth.map;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -89,16 +90,7 @@ public class BluetoothMapMessageListing {
         XmlSerializer xmlMsgElement = new FastXmlSerializer();
         try {
             xmlMsgElement.setOutput(sw);
-            xmlMsgElement.startDocument("UTF-8", true);
-            xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            xmlMsgElement.startTag(null, "MAP-msg-listing");
-            xmlMsgElement.attribute(null, "version", "1.0");
-            // Do the XML encoding of list
-            for (BluetoothMapMessageListingElement element : list) {
-                element.encode(xmlMsgElement, includeThreadId); // Append the list element
-            }
-            xmlMsgElement.endTag(null, "MAP-msg-listing");
-            xmlMsgElement.endDocument();
+            encode(xmlMsgElement, includeThreadId);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
@@ -109,6 +101,44 @@ public class BluetoothMapMessageListing {
         return sw.toString().getBytes("UTF-8");
     }
 
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8
+     * formatted XML directly into a stream. The elements are serialized as
+     * the stream accepts them, so only the serializer buffer is held in
+     * memory and a stream that blocks (e.g. an OBEX body stream waiting for
+     * the next request packet) paces the encoding.
+     *
+     * @param out the stream to write to, not closed by this method.
+     * @throws IOException
+     *             if writing to the stream fails or the list cannot be
+     *             encoded.
+     */
+    public void encode(OutputStream out, boolean includeThreadId) throws IOException {
+        XmlSerializer xmlMsgElement = new FastXmlSerializer();
+        try {
+            xmlMsgElement.setOutput(out, "UTF-8");
+            encode(xmlMsgElement, includeThreadId);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        } catch (IllegalStateException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void encode(XmlSerializer xmlMsgElement, boolean includeThreadId)
+            throws IOException {
+        xmlMsgElement.startDocument("UTF-8", true);
+        xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        xmlMsgElement.startTag(null, "MAP-msg-listing");
+        xmlMsgElement.attribute(null, "version", "1.0");
+        // Do the XML encoding of list
+        for (BluetoothMapMessageListingElement element : list) {
+            element.encode(xmlMsgElement, includeThreadId); // Append the list element
+        }
+        xmlMsgElement.endTag(null, "MAP-msg-listing");
+        xmlMsgElement.endDocument();
+    }
+
     public void sort() {
         Collections.sort(list);
     }
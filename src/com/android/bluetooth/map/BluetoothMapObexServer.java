@@ -30,6 +30,7 @@ import android.util.Log;
 import com.android.bluetooth.map.BluetoothMapUtils;
 import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -729,12 +730,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
      */
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams, String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int maxChunkSize, listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
         if(appParams == null){
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -760,9 +760,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
 
             if(appParams.getMaxListCount() != 0) {
                 outList = mOutContent.msgListing(folderToList, appParams);
-                // Generate the byte stream
+                // The listing is encoded while it is sent, after the headers
                 outAppParams.setMessageListingSize(outList.getCount());
-                outBytes = outList.encode(mThreadIdSupport); // Include thread ID for clients that supports it.
                 hasUnread = outList.hasUnread();
             }
             else {
@@ -801,21 +800,21 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         }
 
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(outList != null) {
+            boolean complete = false;
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                // Include thread ID for clients that supports it.
+                outList.encode(new ObexPacketOutputStream(outStream, maxChunkSize),
+                        mThreadIdSupport);
+                complete = true;
             } catch (IOException e) {
                 if(D) Log.w(TAG,e);
                 // We were probably aborted or disconnected
             } finally {
                 if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
             }
-            if(bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG,"sendMessageListingRsp: bytesWritten != outBytes.length - sending OBEX_HTTP_BAD_REQUEST");
+            if(!complete && !mIsAborted) {
+                Log.w(TAG,"sendMessageListingRsp: listing not fully written - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
         } else {
@@ -992,6 +991,37 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /**
+     * Body stream handing the OBEX output stream at most one packet per write.
+     * The OBEX stream blocks until the peer asks for the next packet, which
+     * paces the producer. Writes fail once the peer has aborted the operation.
+     */
+    private class ObexPacketOutputStream extends FilterOutputStream {
+        private final int mMaxPacketSize;
+
+        ObexPacketOutputStream(OutputStream out, int maxPacketSize) {
+            super(out);
+            mMaxPacketSize = maxPacketSize;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if(mIsAborted) throw new IOException("Operation aborted");
+            out.write(oneByte);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while(count > 0) {
+                if(mIsAborted) throw new IOException("Operation aborted");
+                int bytesToWrite = Math.min(mMaxPacketSize, count);
+                out.write(buffer, offset, bytesToWrite);
+                offset += bytesToWrite;
+                count -= bytesToWrite;
+            }
+        }
+    }
+
     private void notifyUpdateWakeLock() {
         if(mCallback != null) {
             Message msg = Message.obtain(mCallback);
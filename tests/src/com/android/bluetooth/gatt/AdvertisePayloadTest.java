@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.AdvertiseData;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link AdvertisePayload}.
+ */
+public class AdvertisePayloadTest extends AndroidTestCase {
+    private static final ParcelUuid BATTERY =
+            ParcelUuid.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+
+    @SmallTest
+    public void testEncodedFieldsParse() {
+        AdvertiseData data = new AdvertiseData.Builder()
+                .setIncludeDeviceName(true)
+                .addServiceUuid(BATTERY)
+                .addServiceData(BATTERY, new byte[] {0x64})
+                .addManufacturerData(0x004C, new byte[] {0x02, 0x15})
+                .build();
+        byte[] encoded = AdvertisePayload.from(data).getEncoded();
+
+        AdvertisementParser parser = new AdvertisementParser();
+        parser.parse(encoded, 0, encoded.length);
+        assertEquals(1, parser.getUuidCount());
+        assertEquals(BATTERY.getUuid().getMostSignificantBits(), parser.getUuidMsb(0));
+        assertEquals(1, parser.getServiceDataCount());
+        assertEquals(BATTERY.getUuid().getMostSignificantBits(),
+                parser.getServiceDataUuidMsb(0));
+        assertEquals(1, parser.getServiceDataLength(0));
+        assertEquals(0x004C, parser.getManufacturerId(0));
+        assertEquals(2, parser.getManufacturerLength(0));
+        assertEquals(0, parser.getNameLength());
+    }
+
+    @SmallTest
+    public void testEqualityFollowsEncoding() {
+        AdvertisePayload first = AdvertisePayload.from(new AdvertiseData.Builder()
+                .addManufacturerData(0x004C, new byte[] {0x01}).build());
+        AdvertisePayload same = AdvertisePayload.from(new AdvertiseData.Builder()
+                .addManufacturerData(0x004C, new byte[] {0x01}).build());
+        AdvertisePayload changed = AdvertisePayload.from(new AdvertiseData.Builder()
+                .addManufacturerData(0x004C, new byte[] {0x02}).build());
+        AdvertisePayload withTxPower = AdvertisePayload.from(new AdvertiseData.Builder()
+                .addManufacturerData(0x004C, new byte[] {0x01})
+                .setIncludeTxPowerLevel(true).build());
+
+        assertEquals(first, same);
+        assertEquals(first.hashCode(), same.hashCode());
+        assertFalse(first.equals(changed));
+        assertFalse(first.equals(withTxPower));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.AdvertiseSettings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link AdvertiseScheduler}.
+ */
+public class AdvertiseSchedulerTest extends AndroidTestCase {
+    // Turn of a low power client.
+    private static final long TURN = 1000 * AdvertiseScheduler.EVENTS_PER_TURN;
+
+    @SmallTest
+    public void testNoRotationWithinCapacity() {
+        AdvertiseScheduler scheduler = new AdvertiseScheduler();
+        assertEquals(AdvertiseScheduler.ADMITTED, scheduler.add(client(1), 2, 0));
+        assertEquals(AdvertiseScheduler.ADMITTED, scheduler.add(client(2), 2, 0));
+        assertEquals(-1, scheduler.getNextRotationMillis());
+        AdvertiseScheduler.Rotation rotation = scheduler.rotate(2, 10 * TURN);
+        assertTrue(rotation.stop.isEmpty());
+        assertTrue(rotation.start.isEmpty());
+    }
+
+    @SmallTest
+    public void testRoundRobin() {
+        AdvertiseScheduler scheduler = new AdvertiseScheduler();
+        AdvertiseClient first = client(1);
+        AdvertiseClient second = client(2);
+        assertEquals(AdvertiseScheduler.ADMITTED, scheduler.add(first, 1, 0));
+        assertEquals(AdvertiseScheduler.QUEUED, scheduler.add(second, 1, 0));
+        assertTrue(scheduler.isWaiting(second));
+        assertEquals(TURN, scheduler.getNextRotationMillis());
+
+        // Turn not over yet.
+        assertTrue(scheduler.rotate(1, TURN - 1).start.isEmpty());
+
+        AdvertiseScheduler.Rotation rotation = scheduler.rotate(1, TURN);
+        assertEquals(first, rotation.stop.get(0));
+        assertEquals(second, rotation.start.get(0));
+        assertTrue(scheduler.isResident(second));
+        assertTrue(scheduler.isWaiting(first));
+        assertEquals(2 * TURN, scheduler.getNextRotationMillis());
+
+        rotation = scheduler.rotate(1, 2 * TURN);
+        assertEquals(second, rotation.stop.get(0));
+        assertEquals(first, rotation.start.get(0));
+    }
+
+    @SmallTest
+    public void testFreedInstanceGoesToWaitingClient() {
+        AdvertiseScheduler scheduler = new AdvertiseScheduler();
+        AdvertiseClient first = client(1);
+        AdvertiseClient second = client(2);
+        scheduler.add(first, 1, 0);
+        scheduler.add(second, 1, 0);
+        scheduler.remove(first);
+
+        AdvertiseScheduler.Rotation rotation = scheduler.rotate(1, 1);
+        assertTrue(rotation.stop.isEmpty());
+        assertEquals(second, rotation.start.get(0));
+        assertEquals(-1, scheduler.getNextRotationMillis());
+    }
+
+    @SmallTest
+    public void testWaitingQueueIsBounded() {
+        AdvertiseScheduler scheduler = new AdvertiseScheduler();
+        scheduler.add(client(0), 1, 0);
+        for (int i = 1; i <= AdvertiseScheduler.MAX_WAITING_CLIENTS; ++i) {
+            assertEquals(AdvertiseScheduler.QUEUED, scheduler.add(client(i), 1, 0));
+        }
+        assertEquals(AdvertiseScheduler.REJECTED, scheduler.add(client(100), 1, 0));
+    }
+
+    @SmallTest
+    public void testTimeoutRunsOnlyWhileResident() {
+        AdvertiseScheduler scheduler = new AdvertiseScheduler();
+        AdvertiseClient timed = client(1, TURN + TURN / 2);
+        AdvertiseClient other = client(2);
+        scheduler.add(timed, 1, 0);
+        scheduler.add(other, 1, 0);
+        assertEquals(TURN + TURN / 2, scheduler.getRemainingMillis(timed, 0));
+        assertEquals(0, scheduler.getRemainingMillis(other, 0));
+
+        scheduler.rotate(1, TURN);
+        assertTrue(scheduler.isWaiting(timed));
+
+        // Half a turn is left when the client comes back.
+        scheduler.rotate(1, 2 * TURN);
+        assertTrue(scheduler.isResident(timed));
+        assertEquals(TURN / 2, scheduler.getRemainingMillis(timed, 2 * TURN));
+        assertEquals(2 * TURN + TURN / 2, scheduler.getNextRotationMillis());
+
+        AdvertiseScheduler.Rotation rotation = scheduler.rotate(1, 2 * TURN + TURN / 2);
+        assertEquals(timed, rotation.expired.get(0));
+        assertTrue(rotation.stop.isEmpty());
+        assertEquals(other, rotation.start.get(0));
+        assertFalse(scheduler.isWaiting(timed));
+        assertEquals(-1, scheduler.getNextRotationMillis());
+    }
+
+    @SmallTest
+    public void testLoneClientExpires() {
+        AdvertiseScheduler scheduler = new AdvertiseScheduler();
+        AdvertiseClient timed = client(1, TURN);
+        scheduler.add(timed, 1, 0);
+        assertEquals(TURN, scheduler.getNextRotationMillis());
+        assertTrue(scheduler.rotate(1, TURN - 1).expired.isEmpty());
+        assertEquals(timed, scheduler.rotate(1, TURN).expired.get(0));
+        assertFalse(scheduler.isResident(timed));
+    }
+
+    private static AdvertiseClient client(int clientIf, long timeoutMillis) {
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setTimeout((int) timeoutMillis).build();
+        return new AdvertiseClient(clientIf, settings, null, null);
+    }
+
+    private static AdvertiseClient client(int clientIf) {
+        return new AdvertiseClient(clientIf, null, null, null);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link AdvertisementParser}, using the AD structures of the
+ * Core Specification Supplement.
+ */
+public class AdvertisementParserTest extends AndroidTestCase {
+    private static final UUID HEART_RATE =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID BATTERY =
+            UUID.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+    private static final UUID UUID32 =
+            UUID.fromString("12345678-0000-1000-8000-00805F9B34FB");
+    private static final UUID UUID128 =
+            UUID.fromString("F000AA00-0451-4000-B000-000000000000");
+
+    @SmallTest
+    public void testServiceUuidLists() {
+        byte[] data = {
+                0x02, 0x01, 0x06, // Flags
+                0x05, 0x03, 0x0D, 0x18, 0x0F, 0x18, // 16-bit UUIDs
+                0x05, 0x05, 0x78, 0x56, 0x34, 0x12, // 32-bit UUIDs
+                0x11, 0x07, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xB0,
+                0x00, 0x40, 0x51, 0x04, 0x00, (byte) 0xAA, 0x00, (byte) 0xF0, // 128-bit UUIDs
+        };
+        AdvertisementParser parser = new AdvertisementParser();
+        parser.parse(data, 0, data.length);
+        assertEquals(4, parser.getUuidCount());
+        assertUuid(HEART_RATE, parser, 0);
+        assertUuid(BATTERY, parser, 1);
+        assertUuid(UUID32, parser, 2);
+        assertUuid(UUID128, parser, 3);
+        assertTrue(parser.containsUuid(UUID128.getMostSignificantBits(),
+                UUID128.getLeastSignificantBits()));
+    }
+
+    @SmallTest
+    public void testDataFieldsAndName() {
+        byte[] data = {
+                0x05, 0x16, 0x0F, 0x18, 0x64, 0x01, // Battery service data
+                0x05, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15, // Manufacturer data
+                0x04, 0x09, 'a', 'b', 'c', // Complete local name
+        };
+        AdvertisementParser parser = new AdvertisementParser();
+        parser.parse(data, 0, data.length);
+
+        assertEquals(1, parser.getServiceDataCount());
+        assertEquals(BATTERY.getMostSignificantBits(), parser.getServiceDataUuidMsb(0));
+        assertEquals(BATTERY.getLeastSignificantBits(), parser.getServiceDataUuidLsb(0));
+        assertEquals(4, parser.getServiceDataOffset(0));
+        assertEquals(2, parser.getServiceDataLength(0));
+
+        assertEquals(1, parser.getManufacturerCount());
+        assertEquals(0x004C, parser.getManufacturerId(0));
+        assertEquals(10, parser.getManufacturerOffset(0));
+        assertEquals(2, parser.getManufacturerLength(0));
+
+        assertEquals(14, parser.getNameOffset());
+        assertEquals(3, parser.getNameLength());
+    }
+
+    @SmallTest
+    public void testScanResponseAndMalformedFields() {
+        byte[] data = {
+                0x03, 0x03, 0x0D, 0x18, // Advertising packet
+                0x00, 0x00, // Padding
+                0x03, 0x03, 0x0F, 0x18, // Scan response
+                0x09, 0x09, 'x', // Truncated field
+        };
+        AdvertisementParser parser = new AdvertisementParser();
+        parser.parse(data, 0, 4, 6, 7);
+        assertEquals(2, parser.getUuidCount());
+        assertUuid(BATTERY, parser, 1);
+        assertEquals(-1, parser.getNameOffset());
+
+        // Parsing again replaces the previous view.
+        parser.parse(new byte[] {0x02, 0x01, 0x06}, 0, 3);
+        assertEquals(0, parser.getUuidCount());
+    }
+
+    @SmallTest
+    public void testWriteUuid() {
+        byte[] data = new byte[16];
+        AdvertisementParser.writeUuid(UUID128, data, 0);
+        AdvertisementParser parser = new AdvertisementParser();
+        byte[] field = new byte[18];
+        field[0] = 17;
+        field[1] = AdvertisementParser.TYPE_UUID128;
+        System.arraycopy(data, 0, field, 2, 16);
+        parser.parse(field, 0, field.length);
+        assertUuid(UUID128, parser, 0);
+
+        byte[] id = new byte[2];
+        AdvertisementParser.writeLittleEndian(0x004C, id, 0, 2);
+        assertTrue(Arrays.equals(new byte[] {0x4C, 0x00}, id));
+    }
+
+    private static void assertUuid(UUID expected, AdvertisementParser parser, int i) {
+        assertEquals(expected, new UUID(parser.getUuidMsb(i), parser.getUuidLsb(i)));
+    }
+}
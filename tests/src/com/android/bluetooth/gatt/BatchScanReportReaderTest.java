@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test cases for {@link BatchScanReportReader}.
+ */
+public class BatchScanReportReaderTest extends AndroidTestCase {
+    private static final String TAG = "BatchScanReportReaderTest";
+
+    // Full batch report with two records:
+    // 00:11:22:33:44:55, rssi -60, timestamp 0x07CA, flags + 16-bit UUIDs 180D/180F/180A.
+    // AA:BB:CC:DD:EE:FF, rssi -80, timestamp 1, flags, scan response with name "Sensor1".
+    private static final String FULL_REPORT =
+            "554433221100" + "00" + "7F" + "C4" + "CA07"
+            + "0B" + "0201060703" + "0D180F180A18"
+            + "00"
+            + "FFEEDDCCBBAA" + "01" + "00" + "B0" + "0100"
+            + "03" + "02011A"
+            + "09" + "080953656E736F7231";
+
+    // Truncated batch report with two records.
+    private static final String TRUNCATED_REPORT =
+            "554433221100" + "00" + "7F" + "C4" + "CA07"
+            + "FFEEDDCCBBAA" + "01" + "00" + "B0" + "0100";
+
+    // Full report whose second record claims more advertising data than is present.
+    private static final String MALFORMED_FULL_REPORT =
+            "554433221100" + "00" + "7F" + "C4" + "CA07" + "03" + "020106" + "00"
+            + "FFEEDDCCBBAA" + "01" + "00" + "B0" + "0100" + "14" + "0201";
+
+    @SmallTest
+    public void testFullReport() {
+        byte[] data = hexToBytes(FULL_REPORT);
+        BatchScanReportReader reader = new BatchScanReportReader(false, data, 2);
+
+        assertTrue(reader.next());
+        assertEquals("00:11:22:33:44:55", reader.getAddress());
+        assertEquals(-60, reader.getRssi());
+        assertEquals(0x07CA, reader.getTimestampUnits());
+        assertEquals(11, reader.getAdvertiseLength());
+        assertEquals(0, reader.getScanResponseLength());
+        assertTrue(Arrays.equals(hexToBytes("0201060703" + "0D180F180A18"),
+                reader.copyScanRecord()));
+
+        assertTrue(reader.next());
+        assertEquals("AA:BB:CC:DD:EE:FF", reader.getAddress());
+        assertEquals(1, reader.getAddressType());
+        assertEquals(-80, reader.getRssi());
+        assertEquals(1, reader.getTimestampUnits());
+        assertTrue(Arrays.equals(hexToBytes("02011A" + "080953656E736F7231"),
+                reader.copyScanRecord()));
+
+        assertFalse(reader.next());
+    }
+
+    @SmallTest
+    public void testTruncatedReport() {
+        byte[] data = hexToBytes(TRUNCATED_REPORT);
+        BatchScanReportReader reader = new BatchScanReportReader(true, data, 2);
+
+        assertTrue(reader.next());
+        assertEquals("00:11:22:33:44:55", reader.getAddress());
+        assertEquals(-60, reader.getRssi());
+        assertEquals(0, reader.copyScanRecord().length);
+
+        assertTrue(reader.next());
+        assertEquals("AA:BB:CC:DD:EE:FF", reader.getAddress());
+        assertEquals(1, reader.getTimestampUnits());
+
+        assertFalse(reader.next());
+    }
+
+    @SmallTest
+    public void testTruncatedReportHonoursRecordCount() {
+        byte[] data = hexToBytes(TRUNCATED_REPORT);
+        BatchScanReportReader reader = new BatchScanReportReader(true, data, 1);
+        assertTrue(reader.next());
+        assertFalse(reader.next());
+    }
+
+    @SmallTest
+    public void testMalformedFullReport() {
+        byte[] data = hexToBytes(MALFORMED_FULL_REPORT);
+        BatchScanReportReader reader = new BatchScanReportReader(false, data, 2);
+        assertTrue(reader.next());
+        assertEquals("00:11:22:33:44:55", reader.getAddress());
+        assertFalse(reader.next());
+    }
+
+    @SmallTest
+    public void testEmptyReport() {
+        assertFalse(new BatchScanReportReader(false, new byte[0], 0).next());
+        assertFalse(new BatchScanReportReader(true, new byte[0], 0).next());
+    }
+
+    /**
+     * Benchmark reading a full controller batch storage flush.
+     */
+    @LargeTest
+    public void testFullReportThroughput() {
+        // Distinct records, so a reader that mixes up records or fields is caught.
+        Random random = new Random(0);
+        int count = 2000;
+        String[] addresses = new String[count];
+        int[] rssis = new int[count];
+        int[] timestamps = new int[count];
+        byte[][] advertisements = new byte[count][];
+        byte[][] scanResponses = new byte[count][];
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        for (int i = 0; i < count; ++i) {
+            byte[] address = new byte[6];
+            random.nextBytes(address);
+            addresses[i] = String.format("%02X:%02X:%02X:%02X:%02X:%02X", address[5],
+                    address[4], address[3], address[2], address[1], address[0]);
+            rssis[i] = -20 - random.nextInt(80);
+            timestamps[i] = random.nextInt(0x10000);
+            advertisements[i] = randomBytes(random, 31);
+            scanResponses[i] = randomBytes(random, 31);
+
+            report.write(address, 0, address.length);
+            report.write(random.nextInt(2));
+            report.write(0x7F);
+            report.write(rssis[i]);
+            report.write(timestamps[i]);
+            report.write(timestamps[i] >> 8);
+            report.write(advertisements[i].length);
+            report.write(advertisements[i], 0, advertisements[i].length);
+            report.write(scanResponses[i].length);
+            report.write(scanResponses[i], 0, scanResponses[i].length);
+        }
+        byte[] data = report.toByteArray();
+
+        BatchScanReportReader reader = new BatchScanReportReader(false, data, count);
+        for (int i = 0; i < count; ++i) {
+            assertTrue(reader.next());
+            assertEquals(addresses[i], reader.getAddress());
+            assertEquals(rssis[i], reader.getRssi());
+            assertEquals(timestamps[i], reader.getTimestampUnits());
+            byte[] expected = new byte[advertisements[i].length + scanResponses[i].length];
+            System.arraycopy(advertisements[i], 0, expected, 0, advertisements[i].length);
+            System.arraycopy(scanResponses[i], 0, expected, advertisements[i].length,
+                    scanResponses[i].length);
+            assertTrue("record " + i, Arrays.equals(expected, reader.copyScanRecord()));
+        }
+        assertFalse(reader.next());
+
+        int iterations = 100;
+        long records = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            reader = new BatchScanReportReader(false, data, count);
+            while (reader.next()) {
+                records += reader.getRssi() != 0 ? 1 : 0;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        assertEquals((long) iterations * count, records);
+        Log.i(TAG, "full report throughput: " + (records * 1000000000L / elapsedNanos)
+                + " records/s");
+    }
+
+    private static byte[] randomBytes(Random random, int maxLength) {
+        byte[] bytes = new byte[random.nextInt(maxLength + 1)];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
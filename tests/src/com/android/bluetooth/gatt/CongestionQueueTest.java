@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link CongestionQueue}.
+ */
+public class CongestionQueueTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SRVC_UUID = UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+
+    @SmallTest
+    public void testFifoOrder() {
+        CongestionQueue queue = new CongestionQueue(4);
+        for (int round = 0; round < 3; ++round) {
+            for (int i = 0; i < 3; ++i) queue.add(write(i, 0));
+            for (int i = 0; i < 3; ++i) assertEquals(i, queue.poll().charInstId);
+            assertNull(queue.poll());
+        }
+    }
+
+    @SmallTest
+    public void testGrowsWithoutDropping() {
+        CongestionQueue queue = new CongestionQueue(2);
+        // Wrap the ring before it grows.
+        queue.add(write(0, 0));
+        assertEquals(0, queue.poll().charInstId);
+        for (int i = 1; i <= 9; ++i) queue.add(write(i, 0));
+        // Completions for the same attribute are all kept.
+        queue.add(write(1, 5));
+        assertEquals(10, queue.size());
+        for (int i = 1; i <= 9; ++i) assertEquals(i, queue.poll().charInstId);
+        CallbackInfo last = queue.poll();
+        assertEquals(1, last.charInstId);
+        assertEquals(5, last.status);
+        assertNull(queue.poll());
+    }
+
+    private static CallbackInfo write(int charInstId, int status) {
+        return new CallbackInfo(ADDRESS, status, 0, 0, SRVC_UUID, charInstId, SRVC_UUID);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link GattBatchQueue}.
+ */
+public class GattBatchQueueTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SRVC_UUID =
+            UUID.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHAR_UUID =
+            UUID.fromString("00002A19-0000-1000-8000-00805F9B34FB");
+    private static final UUID DESCR_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    @SmallTest
+    public void testOpsRunOneAtATime() {
+        GattBatchQueue queue = new GattBatchQueue();
+        List<GattBatchQueue.Op> ops = new ArrayList<GattBatchQueue.Op>();
+        ops.add(GattBatchQueue.Op.read(0, 0, SRVC_UUID, 0, CHAR_UUID, 0));
+        ops.add(GattBatchQueue.Op.write(0, 0, SRVC_UUID, 1, CHAR_UUID, 2, 0, new byte[] {1}));
+        queue.add(1, new GattBatchQueue.Batch(1, ADDRESS, ops, null));
+
+        GattBatchQueue.Op op = queue.next(1);
+        assertEquals(GattBatchQueue.OP_READ_CHARACTERISTIC, op.type);
+        assertNull(queue.next(1));
+
+        // A completion for another attribute belongs to the app.
+        assertFalse(complete(queue, GattBatchQueue.OP_READ_CHARACTERISTIC, 1, null));
+        assertTrue(complete(queue, GattBatchQueue.OP_READ_CHARACTERISTIC, 0, new byte[] {42}));
+        assertNull(queue.pollDone(1));
+
+        op = queue.next(1);
+        assertEquals(GattBatchQueue.OP_WRITE_CHARACTERISTIC, op.type);
+        assertTrue(complete(queue, GattBatchQueue.OP_WRITE_CHARACTERISTIC, 1, null));
+
+        GattBatchQueue.Batch batch = queue.pollDone(1);
+        assertEquals(2, batch.results.size());
+        assertEquals(42, batch.results.get(0).value[0]);
+        assertNull(queue.next(1));
+    }
+
+    @SmallTest
+    public void testRemoveFailsRemainingOps() {
+        GattBatchQueue queue = new GattBatchQueue();
+        List<GattBatchQueue.Op> ops = new ArrayList<GattBatchQueue.Op>();
+        ops.add(GattBatchQueue.Op.read(0, 0, SRVC_UUID, 0, CHAR_UUID, 0));
+        ops.add(GattBatchQueue.Op.read(0, 0, SRVC_UUID, 1, CHAR_UUID, 0));
+        queue.add(1, new GattBatchQueue.Batch(1, ADDRESS, ops, null));
+        queue.next(1);
+        complete(queue, GattBatchQueue.OP_READ_CHARACTERISTIC, 0, new byte[0]);
+
+        List<GattBatchQueue.Batch> removed = queue.remove(1, 133);
+        assertEquals(1, removed.size());
+        List<GattBatchQueue.Result> results = removed.get(0).results;
+        assertEquals(0, results.get(0).status);
+        assertEquals(133, results.get(1).status);
+        assertNull(queue.next(1));
+    }
+
+    @SmallTest
+    public void testSingleOpsDoNotOverlapBatches() {
+        GattBatchQueue queue = new GattBatchQueue();
+        assertTrue(queue.beginSingle(1));
+        List<GattBatchQueue.Op> ops = new ArrayList<GattBatchQueue.Op>();
+        ops.add(GattBatchQueue.Op.read(0, 0, SRVC_UUID, 0, CHAR_UUID, 0));
+        queue.add(1, new GattBatchQueue.Batch(1, ADDRESS, ops, null));
+
+        // The batch waits for the single op, whose completion is the app's.
+        assertNull(queue.next(1));
+        assertFalse(complete(queue, GattBatchQueue.OP_READ_CHARACTERISTIC, 0, new byte[0]));
+        assertTrue(queue.hasBatches(1));
+        assertNotNull(queue.next(1));
+
+        // A single op on the same attribute has to queue behind the batch.
+        assertFalse(queue.beginSingle(1));
+        assertTrue(complete(queue, GattBatchQueue.OP_READ_CHARACTERISTIC, 0, new byte[0]));
+        assertNotNull(queue.pollDone(1));
+        assertTrue(queue.beginSingle(1));
+    }
+
+    @SmallTest
+    public void testTimerExpiresStuckOp() {
+        GattBatchQueue queue = new GattBatchQueue();
+        List<GattBatchQueue.Op> ops = new ArrayList<GattBatchQueue.Op>();
+        ops.add(GattBatchQueue.Op.read(0, 0, SRVC_UUID, 0, CHAR_UUID, 0));
+        ops.add(GattBatchQueue.Op.read(0, 0, SRVC_UUID, 1, CHAR_UUID, 0));
+        queue.add(1, new GattBatchQueue.Batch(1, ADDRESS, ops, null));
+        assertEquals(0, queue.armTimer(1));
+
+        queue.next(1);
+        int token = queue.armTimer(1);
+        assertTrue(token != 0);
+        // One timer per connection.
+        assertEquals(0, queue.armTimer(1));
+
+        // The op completed in time: the timer only moves on to the next op.
+        complete(queue, GattBatchQueue.OP_READ_CHARACTERISTIC, 0, new byte[0]);
+        queue.next(1);
+        assertFalse(queue.onTimer(1, token, 133));
+        token = queue.armTimer(1);
+        assertTrue(queue.onTimer(1, token, 133));
+
+        GattBatchQueue.Batch batch = queue.pollDone(1);
+        assertEquals(0, batch.results.get(0).status);
+        assertEquals(133, batch.results.get(1).status);
+        assertEquals(0, queue.armTimer(1));
+    }
+
+    @SmallTest
+    public void testDescriptorOpsAreSerialized() {
+        GattBatchQueue queue = new GattBatchQueue();
+        List<GattBatchQueue.Op> ops = new ArrayList<GattBatchQueue.Op>();
+        ops.add(GattBatchQueue.Op.read(0, 0, SRVC_UUID, 0, CHAR_UUID, 0));
+        queue.add(1, new GattBatchQueue.Batch(1, ADDRESS, ops, null));
+        queue.next(1);
+
+        // A descriptor write has to queue behind the batch op in flight.
+        assertFalse(queue.beginSingle(1));
+        ops = new ArrayList<GattBatchQueue.Op>();
+        ops.add(GattBatchQueue.Op.writeDescriptor(0, 0, SRVC_UUID, 0, CHAR_UUID, 0,
+                DESCR_UUID, 2, 0, new byte[] {1, 0}));
+        queue.add(1, new GattBatchQueue.Batch(1, ADDRESS, ops, null));
+        assertTrue(complete(queue, GattBatchQueue.OP_READ_CHARACTERISTIC, 0, new byte[0]));
+        assertNotNull(queue.pollDone(1));
+
+        GattBatchQueue.Op op = queue.next(1);
+        assertEquals(GattBatchQueue.OP_WRITE_DESCRIPTOR, op.type);
+        // Another descriptor of the characteristic is not this op.
+        assertFalse(completeDescriptor(queue, 1));
+        assertTrue(completeDescriptor(queue, 0));
+        assertNotNull(queue.pollDone(1));
+        assertTrue(queue.beginSingle(1));
+    }
+
+    private static boolean completeDescriptor(GattBatchQueue queue, int descrInstId) {
+        return queue.onComplete(1, GattBatchQueue.OP_WRITE_DESCRIPTOR, 0, 0, 0,
+                SRVC_UUID.getLeastSignificantBits(), SRVC_UUID.getMostSignificantBits(), 0,
+                CHAR_UUID.getLeastSignificantBits(), CHAR_UUID.getMostSignificantBits(),
+                descrInstId, DESCR_UUID.getLeastSignificantBits(),
+                DESCR_UUID.getMostSignificantBits(), null);
+    }
+
+    private static boolean complete(GattBatchQueue queue, int opType, int charInstId,
+            byte[] value) {
+        return queue.onComplete(1, opType, 0, 0, 0, SRVC_UUID.getLeastSignificantBits(),
+                SRVC_UUID.getMostSignificantBits(), charInstId,
+                CHAR_UUID.getLeastSignificantBits(), CHAR_UUID.getMostSignificantBits(), value);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.Debug;
+import android.os.ParcelUuid;
+
+import java.lang.reflect.Method;
+import java.util.Random;
+
+/**
+ * Runner and fixtures for benchmarks of the gatt callback paths.
+ *
+ * Benchmarks drive the package methods that the GattService callbacks
+ * are built from with synthetic stack events, and deliver to a stub app
+ * callback instead of a binder. They run on device as part of the
+ * Bluetooth tests and do not touch JNI.
+ */
+class GattBenchmark {
+    private static final int WARMUP_ITERATIONS = 20;
+
+    /**
+     * One iteration of a benchmark.
+     */
+    interface Body {
+        /** Returns the number of operations performed. */
+        int run(int iteration);
+    }
+
+    static class Result {
+        final String name;
+        final long ops;
+        final long nanos;
+        // -1 if the runtime does not report allocations.
+        final long allocatedBytes;
+
+        Result(String name, long ops, long nanos, long allocatedBytes) {
+            this.name = name;
+            this.ops = ops;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        long getOpsPerSecond() {
+            return nanos == 0 ? 0 : ops * 1000000000L / nanos;
+        }
+
+        long getBytesPerOp() {
+            return (allocatedBytes < 0 || ops == 0) ? -1 : allocatedBytes / ops;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + getOpsPerSecond() + " ops/s, "
+                    + (allocatedBytes < 0 ? "allocations not reported"
+                            : getBytesPerOp() + " bytes/op, "
+                            + allocatedBytes * 1000000000L / Math.max(nanos, 1) / 1024
+                            + " KB/s allocated")
+                    + " (" + ops + " ops in " + nanos / 1000000 + "ms)";
+        }
+    }
+
+    /**
+     * Warm up, then run the body for at least minNanos.
+     */
+    static Result run(String name, Body body, long minNanos) {
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+            body.run(i);
+        }
+        AllocationCounter counter = new AllocationCounter();
+        long ops = 0;
+        int iteration = WARMUP_ITERATIONS;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            ops += body.run(iteration++);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < minNanos);
+        return new Result(name, ops, elapsed, counter.stop());
+    }
+
+    /**
+     * Counts the bytes allocated by the current thread, using the thread MX
+     * bean where the runtime has one and the allocation counters otherwise.
+     */
+    private static class AllocationCounter {
+        private final Object mBean;
+        private final Method mGetAllocatedBytes;
+        private final long mStart;
+
+        AllocationCounter() {
+            Object bean = null;
+            Method method = null;
+            try {
+                Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+                bean = factory.getMethod("getThreadMXBean").invoke(null);
+                method = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+            } catch (Exception e) {
+                bean = null;
+            }
+            mBean = bean;
+            mGetAllocatedBytes = method;
+            if (mBean == null) {
+                Debug.resetThreadAllocSize();
+                Debug.startAllocCounting();
+            }
+            mStart = read();
+        }
+
+        long stop() {
+            long allocated = read() - mStart;
+            if (mBean == null) Debug.stopAllocCounting();
+            return allocated;
+        }
+
+        private long read() {
+            if (mBean == null) return Debug.getThreadAllocSize();
+            try {
+                return (Long) mGetAllocatedBytes.invoke(mBean, Thread.currentThread().getId());
+            } catch (Exception e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * App callback standing in for the binder proxy. Each call folds its
+     * arguments into a checksum so that the work cannot be optimized away.
+     */
+    static class StubGattCallback {
+        long calls;
+        long checksum;
+
+        void onScanResult(String address, int rssi, byte[] data) {
+            calls++;
+            checksum += address.length() + rssi + data.length;
+        }
+
+        void onBatchScanResults(int count) {
+            calls++;
+            checksum += count;
+        }
+
+        void onNotify(String address, ParcelUuid srvcUuid, ParcelUuid charUuid, byte[] data) {
+            calls++;
+            checksum += srvcUuid.hashCode() + charUuid.hashCode() + data.length;
+        }
+
+        void onAttributeRequest(String address, int requestId, int offset, byte[] data) {
+            calls++;
+            checksum += requestId + offset + (data == null ? 0 : data.length);
+        }
+    }
+
+    /**
+     * Deterministic stack events for a population of remote devices and
+     * registered apps.
+     */
+    static class SyntheticHalEvents {
+        static final int MANUFACTURER_ID = 0x00E0;
+        static final long BATTERY_UUID_MSB = 0x0000180F00001000L;
+
+        final int apps;
+        final int devices;
+        private final String[] mAddresses;
+        private final byte[][] mAdvertisements;
+        private final byte[] mNotification = new byte[20];
+
+        SyntheticHalEvents(int apps, int devices, long seed) {
+            this.apps = apps;
+            this.devices = devices;
+            Random random = new Random(seed);
+            mAddresses = new String[devices];
+            mAdvertisements = new byte[devices][];
+            for (int d = 0; d < devices; ++d) {
+                mAddresses[d] = String.format("00:11:22:%02X:%02X:%02X", d >> 16,
+                        (d >> 8) & 0xFF, d & 0xFF);
+                mAdvertisements[d] = advertisement(random, d);
+            }
+            random.nextBytes(mNotification);
+        }
+
+        String address(int device) {
+            return mAddresses[device];
+        }
+
+        int rssi(int device, int iteration) {
+            return -50 - ((device + iteration) % 40);
+        }
+
+        /**
+         * Returns the advertisement of a device. The service data of every
+         * fourth device changes with each iteration, as for a sensor.
+         */
+        byte[] advertisement(int device, int iteration) {
+            byte[] data = mAdvertisements[device];
+            if (device % 4 == 0) data[11] = (byte) iteration;
+            return data;
+        }
+
+        /**
+         * Stack connection id of an app connection, as assigned by the stack.
+         */
+        int connId(int app, int device) {
+            return ((device + 1) << 8) | clientIf(app);
+        }
+
+        int clientIf(int app) {
+            return app + 1;
+        }
+
+        byte[] notification(int iteration) {
+            mNotification[0] = (byte) iteration;
+            return mNotification;
+        }
+
+        /**
+         * Full batch scan report holding one record per device.
+         */
+        byte[] fullBatchReport() {
+            int length = 0;
+            for (int d = 0; d < devices; ++d) {
+                length += 13 + mAdvertisements[d].length;
+            }
+            byte[] report = new byte[length];
+            int pos = 0;
+            for (int d = 0; d < devices; ++d) {
+                for (int i = 0; i < 6; ++i) {
+                    report[pos + i] = (byte) Integer.parseInt(
+                            mAddresses[d].substring(15 - 3 * i, 17 - 3 * i), 16);
+                }
+                report[pos + 8] = (byte) rssi(d, 0);
+                report[pos + 9] = (byte) d;
+                pos += 11;
+                byte[] adv = mAdvertisements[d];
+                report[pos++] = (byte) adv.length;
+                System.arraycopy(adv, 0, report, pos, adv.length);
+                pos += adv.length;
+                // No scan response.
+                report[pos++] = 0;
+            }
+            return report;
+        }
+
+        // Flags, a 16-bit service UUID, battery service data and manufacturer
+        // data whose second byte spreads devices over 16 product ids.
+        private static byte[] advertisement(Random random, int device) {
+            int uuid = 0x1800 + random.nextInt(16);
+            return new byte[] {
+                0x02, 0x01, 0x06,
+                0x03, 0x03, (byte) uuid, (byte) (uuid >> 8),
+                0x04, 0x16, 0x0F, 0x18, 0x64,
+                0x05, (byte) 0xFF, (byte) MANUFACTURER_ID, 0x00, (byte) (device % 16),
+                (byte) random.nextInt(256)
+            };
+        }
+    }
+}
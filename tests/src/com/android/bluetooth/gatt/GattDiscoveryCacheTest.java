@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Test cases for {@link GattDiscoveryCache}.
+ */
+public class GattDiscoveryCacheTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int CONN_ID = 1;
+    private static final long NOW = 1000000L;
+
+    private GattDiscoveryCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new GattDiscoveryCache(new File(getContext().getCacheDir(), "gatt_cache_test"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.invalidate(ADDRESS);
+        mCache.cleanup();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testChangedCharacteristicRediscovered() {
+        discover(0x2A19, NOW);
+
+        // The remote replaced the characteristic but kept its services. The
+        // search cannot tell, so the stale database is replayed until its
+        // use limit is reached.
+        for (int i = 0; i < GattDiscoveryCache.MAX_USES; ++i) {
+            mCache.startRecording(CONN_ID);
+            mCache.record(CONN_ID, service());
+            List<GattDiscoveryCache.Entry> cached = mCache.match(CONN_ID, ADDRESS, NOW + i);
+            assertNotNull(cached);
+            assertEquals(0x2A19, cached.get(1).uuidMsb);
+        }
+
+        mCache.startRecording(CONN_ID);
+        mCache.record(CONN_ID, service());
+        assertNull(mCache.match(CONN_ID, ADDRESS, NOW));
+        mCache.record(CONN_ID, characteristic(0x2A1A));
+        mCache.finishRecording(CONN_ID, ADDRESS, 0, NOW);
+
+        assertEquals(0x2A1A, matchService(NOW).get(1).uuidMsb);
+    }
+
+    @SmallTest
+    public void testExpiredDatabaseRediscovered() {
+        discover(0x2A19, NOW);
+        assertNotNull(matchService(NOW + GattDiscoveryCache.MAX_AGE_MILLIS - 1));
+        assertNull(matchService(NOW + GattDiscoveryCache.MAX_AGE_MILLIS));
+
+        // Invalidated, so a new search does not match until it is stored again.
+        assertNull(matchService(NOW));
+        mCache.abortRecording(CONN_ID);
+    }
+
+    private void discover(int charUuid, long nowMillis) {
+        mCache.startRecording(CONN_ID);
+        mCache.record(CONN_ID, service());
+        assertNull(mCache.match(CONN_ID, ADDRESS, nowMillis));
+        mCache.record(CONN_ID, characteristic(charUuid));
+        mCache.finishRecording(CONN_ID, ADDRESS, 0, nowMillis);
+    }
+
+    private List<GattDiscoveryCache.Entry> matchService(long nowMillis) {
+        mCache.startRecording(CONN_ID);
+        mCache.record(CONN_ID, service());
+        return mCache.match(CONN_ID, ADDRESS, nowMillis);
+    }
+
+    private static GattDiscoveryCache.Entry service() {
+        GattDiscoveryCache.Entry entry = new GattDiscoveryCache.Entry();
+        entry.type = GattDiscoveryCache.TYPE_SERVICE;
+        entry.srvcUuidMsb = 0x180F;
+        return entry;
+    }
+
+    private static GattDiscoveryCache.Entry characteristic(int uuid) {
+        GattDiscoveryCache.Entry entry = service();
+        entry.type = GattDiscoveryCache.TYPE_CHARACTERISTIC;
+        entry.uuidMsb = uuid;
+        return entry;
+    }
+}
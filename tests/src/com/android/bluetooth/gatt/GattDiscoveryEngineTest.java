@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.List;
+
+/**
+ * Test cases for {@link GattDiscoveryEngine}.
+ */
+public class GattDiscoveryEngineTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @SmallTest
+    public void testServicesBeforeDescriptors() {
+        GattDiscoveryEngine engine = new GattDiscoveryEngine(2);
+        engine.start(1, ADDRESS, 0);
+        engine.addService(1, 0, 0, 0x1800, 0, 0);
+        engine.addService(1, 0, 0, 0x180F, 0, 0);
+
+        GattDiscoveryEngine.Service first = engine.nextService(1);
+        assertEquals(0x1800, first.uuidLsb);
+        engine.addCharacteristic(1, 0, 0x2A00, 0);
+        engine.addCharacteristic(1, 0, 0x2A01, 0);
+        engine.addCharacteristic(1, 0, 0x2A02, 0);
+        // No descriptors while services remain.
+        assertTrue(engine.nextDescriptorDiscoveries(1).isEmpty());
+
+        assertEquals(0x180F, engine.nextService(1).uuidLsb);
+        assertNull(engine.nextService(1));
+        assertFalse(engine.isComplete(1));
+
+        // Descriptor chains are issued up to the window.
+        List<GattDiscoveryEngine.Characteristic> next = engine.nextDescriptorDiscoveries(1);
+        assertEquals(2, next.size());
+        assertTrue(engine.nextDescriptorDiscoveries(1).isEmpty());
+
+        // The second chain ends first.
+        GattDiscoveryEngine.Characteristic chr = next.get(1);
+        engine.descriptorsDone(1, 0, 0, 0x1800, 0, chr.instId, chr.uuidLsb, chr.uuidMsb);
+        next = engine.nextDescriptorDiscoveries(1);
+        assertEquals(1, next.size());
+        assertEquals(0x2A02, next.get(0).uuidLsb);
+
+        engine.descriptorsDone(1, 0, 0, 0x1800, 0, 0, 0x2A00, 0);
+        assertFalse(engine.isComplete(1));
+        engine.descriptorsDone(1, 0, 0, 0x1800, 0, 0, 0x2A02, 0);
+        assertTrue(engine.isComplete(1));
+    }
+
+    @SmallTest
+    public void testConnectionsAreIndependent() {
+        GattDiscoveryEngine engine = new GattDiscoveryEngine();
+        engine.start(1, ADDRESS, 0);
+        engine.start(2, "00:11:22:33:44:56", 0);
+        engine.addService(1, 0, 0, 0x1800, 0, 0);
+        engine.addService(2, 0, 0, 0x180F, 0, 0);
+
+        assertEquals(0x180F, engine.nextService(2).uuidLsb);
+        assertNull(engine.nextService(2));
+        assertTrue(engine.isComplete(2));
+        assertFalse(engine.isComplete(1));
+
+        engine.remove(1);
+        assertFalse(engine.isTracking(1));
+        assertNull(engine.nextService(1));
+    }
+
+    @SmallTest
+    public void testDumpReportsDuration() {
+        GattDiscoveryEngine engine = new GattDiscoveryEngine();
+        engine.start(1, ADDRESS, 1000);
+        engine.finish(1, ADDRESS, 0, 1250);
+        assertFalse(engine.isTracking(1));
+
+        StringBuilder sb = new StringBuilder();
+        engine.dump(sb, 2000);
+        assertTrue(sb.toString().contains(ADDRESS + " (connId 1): 250ms"));
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.bluetooth.gatt.GattBenchmark.StubGattCallback;
+import com.android.bluetooth.gatt.GattBenchmark.SyntheticHalEvents;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Benchmarks of the scan, notification and server request paths, replaying
+ * what the GattService callbacks do for {@link #APPS} apps and
+ * {@link #DEVICES} remote devices. Results are logged.
+ */
+public class GattHotPathBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "GattHotPathBenchmarkTest";
+
+    private static final int APPS = 8;
+    private static final int DEVICES = 256;
+    private static final long RUN_NANOS = 500000000L;
+
+    private static final long SCAN_INTERVAL_NANOS = 100000000L;
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHARACTERISTIC_UUID =
+            UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+    private static final UUID CLIENT_CONFIG_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    private final SyntheticHalEvents mEvents = new SyntheticHalEvents(APPS, DEVICES, 0);
+    private final GattMetrics mMetrics = new GattMetrics();
+
+    /**
+     * onScanResult: filter matching, duplicate filtering for the clients that
+     * asked for it, delivery and metrics.
+     */
+    @LargeTest
+    public void testScanResultPath() {
+        final ContextMap<StubGattCallback> apps = registerApps();
+        List<ScanClient> clients = scanClients();
+        for (int a = 0; a < APPS; a += 2) {
+            clients.get(a).duplicateFilter = new ScanDuplicateFilter.Settings(
+                    ScanDuplicateFilter.DEFAULT_RSSI_DELTA,
+                    ScanDuplicateFilter.DEFAULT_REFRESH_NANOS).newFilter();
+        }
+        final ScanFilterMatcher matcher = ScanFilterMatcher.build(clients);
+
+        GattBenchmark.Result result = GattBenchmark.run("onScanResult",
+                new GattBenchmark.Body() {
+            @Override
+            public int run(int iteration) {
+                long nowNanos = iteration * SCAN_INTERVAL_NANOS;
+                for (int d = 0; d < DEVICES; ++d) {
+                    String address = mEvents.address(d);
+                    int rssi = mEvents.rssi(d, iteration);
+                    byte[] data = mEvents.advertisement(d, iteration);
+                    int matched = matcher.match(address, data, 0, data.length);
+                    int dataHash = 0;
+                    for (int i = 0; i < matched; ++i) {
+                        ScanClient client = matcher.getMatched(i);
+                        ContextMap<StubGattCallback>.App app = apps.getById(client.clientIf);
+                        if (app == null) continue;
+                        if (dataHash == 0) dataHash = Arrays.hashCode(data);
+                        if (client.shouldForward(address, rssi, dataHash, nowNanos)) {
+                            long start = System.nanoTime();
+                            app.callback.onScanResult(address, rssi, data);
+                            mMetrics.record(GattMetrics.clientKey(app.id),
+                                    GattMetrics.NO_CONNECTION,
+                                    GattMetrics.EVENT_SCAN_RESULT, start);
+                        }
+                    }
+                }
+                return DEVICES;
+            }
+        }, RUN_NANOS);
+
+        Log.i(TAG, result.toString());
+        assertTrue(result.ops > 0);
+        assertTrue(totalCalls(apps) > 0);
+    }
+
+    /**
+     * onBatchScanReports: reading a full report and grouping matches per client.
+     */
+    @LargeTest
+    public void testBatchScanReportPath() {
+        final ContextMap<StubGattCallback> apps = registerApps();
+        final List<ScanClient> clients = scanClients();
+        final byte[] report = mEvents.fullBatchReport();
+        final int[] counts = new int[APPS + 1];
+
+        GattBenchmark.Result result = GattBenchmark.run("onBatchScanReports",
+                new GattBenchmark.Body() {
+            @Override
+            public int run(int iteration) {
+                ScanFilterMatcher matcher = ScanFilterMatcher.build(clients);
+                BatchScanReportReader reader = new BatchScanReportReader(false, report, DEVICES);
+                Arrays.fill(counts, 0);
+                int records = 0;
+                while (reader.next()) {
+                    records++;
+                    int matched = matcher.match(reader.getAddress(), report,
+                            reader.getAdvertiseOffset(), reader.getAdvertiseLength(),
+                            reader.getScanResponseOffset(), reader.getScanResponseLength());
+                    byte[] record = null;
+                    for (int i = 0; i < matched; ++i) {
+                        if (record == null) record = reader.copyScanRecord();
+                        counts[matcher.getMatched(i).clientIf]++;
+                    }
+                }
+                for (int clientIf = 1; clientIf <= APPS; ++clientIf) {
+                    apps.getById(clientIf).callback.onBatchScanResults(counts[clientIf]);
+                    mMetrics.count(GattMetrics.clientKey(clientIf), GattMetrics.NO_CONNECTION,
+                            GattMetrics.EVENT_SCAN_RESULT, counts[clientIf]);
+                }
+                return records;
+            }
+        }, RUN_NANOS);
+
+        Log.i(TAG, result.toString());
+        assertEquals(0, result.ops % DEVICES);
+        assertTrue(totalCalls(apps) > 0);
+    }
+
+    /**
+     * onNotify: connection lookup, UUID interning, delivery and metrics, with
+     * every app connected to every device.
+     */
+    @LargeTest
+    public void testNotifyPath() {
+        final ContextMap<StubGattCallback> apps = registerApps();
+        for (int a = 0; a < APPS; ++a) {
+            for (int d = 0; d < DEVICES; ++d) {
+                apps.addConnection(mEvents.clientIf(a), mEvents.connId(a, d),
+                        mEvents.address(d));
+            }
+        }
+        final ParcelUuidCache uuids = new ParcelUuidCache();
+        final long srvcMsb = SERVICE_UUID.getMostSignificantBits();
+        final long srvcLsb = SERVICE_UUID.getLeastSignificantBits();
+        final long charMsb = CHARACTERISTIC_UUID.getMostSignificantBits();
+        final long charLsb = CHARACTERISTIC_UUID.getLeastSignificantBits();
+
+        GattBenchmark.Result result = GattBenchmark.run("onNotify",
+                new GattBenchmark.Body() {
+            @Override
+            public int run(int iteration) {
+                byte[] data = mEvents.notification(iteration);
+                for (int d = 0; d < DEVICES; ++d) {
+                    int connId = mEvents.connId(iteration % APPS, d);
+                    ParcelUuid srvcUuid = uuids.get(srvcMsb, srvcLsb);
+                    ParcelUuid charUuid = uuids.get(charMsb, charLsb);
+                    String address = apps.addressByConnId(connId);
+                    ContextMap<StubGattCallback>.App app = apps.getByConnId(connId);
+                    if (app == null) continue;
+                    long start = System.nanoTime();
+                    app.callback.onNotify(address, srvcUuid, charUuid, data);
+                    mMetrics.record(GattMetrics.clientKey(app.id), connId,
+                            GattMetrics.EVENT_NOTIFY, start);
+                }
+                return DEVICES;
+            }
+        }, RUN_NANOS);
+
+        Log.i(TAG, result.toString());
+        assertTrue(totalCalls(apps) >= result.ops);
+    }
+
+    /**
+     * onAttributeRead and onAttributeWrite followed by sendResponse, for
+     * server apps each publishing a service.
+     */
+    @LargeTest
+    public void testServerReadWritePath() {
+        final ContextMap<StubGattCallback> servers = registerApps();
+        final HandleMap handles = new HandleMap();
+        for (int a = 0; a < APPS; ++a) {
+            int serverIf = mEvents.clientIf(a);
+            int serviceHandle = 0x10 * (a + 1);
+            handles.addService(serverIf, serviceHandle, SERVICE_UUID, 0, 0, false);
+            handles.addCharacteristic(serverIf, serviceHandle + 1, CHARACTERISTIC_UUID,
+                    serviceHandle);
+            handles.addDescriptor(serverIf, serviceHandle + 2, CLIENT_CONFIG_UUID,
+                    serviceHandle);
+            for (int d = 0; d < DEVICES; ++d) {
+                servers.addConnection(serverIf, mEvents.connId(a, d), mEvents.address(d));
+            }
+        }
+        final byte[] enable = new byte[] { 0x01, 0x00 };
+
+        GattBenchmark.Result result = GattBenchmark.run("onAttributeRead/Write",
+                new GattBenchmark.Body() {
+            @Override
+            public int run(int iteration) {
+                int requestId = iteration * DEVICES;
+                for (int d = 0; d < DEVICES; ++d, ++requestId) {
+                    int a = (d + iteration) % APPS;
+                    int connId = mEvents.connId(a, d);
+                    String address = mEvents.address(d);
+                    boolean write = (d & 1) != 0;
+                    int handle = 0x10 * (a + 1) + (write ? 2 : 1);
+
+                    HandleMap.Entry entry = handles.getByHandle(handle);
+                    if (write) {
+                        handles.startWrite(requestId, entry, connId, 0, false, enable);
+                    } else if (handles.startRead(requestId, entry) != null) {
+                        continue;
+                    }
+                    ContextMap<StubGattCallback>.App app = servers.getById(entry.serverIf);
+                    HandleMap.Entry serviceEntry = handles.getByHandle(entry.serviceHandle);
+                    long start = System.nanoTime();
+                    app.callback.onAttributeRequest(address, requestId, serviceEntry.instance,
+                            write ? enable : null);
+                    mMetrics.record(GattMetrics.serverKey(app.id), connId,
+                            write ? GattMetrics.EVENT_WRITE : GattMetrics.EVENT_READ, start);
+
+                    // sendResponse
+                    handles.finishRequest(requestId);
+                }
+                return DEVICES;
+            }
+        }, RUN_NANOS);
+
+        Log.i(TAG, result.toString());
+        assertTrue(totalCalls(servers) >= result.ops);
+    }
+
+    private ContextMap<StubGattCallback> registerApps() {
+        ContextMap<StubGattCallback> apps = new ContextMap<StubGattCallback>();
+        for (int a = 0; a < APPS; ++a) {
+            UUID uuid = new UUID(0, a);
+            apps.add(uuid, new StubGattCallback());
+            apps.setAppId(apps.getByUuid(uuid), mEvents.clientIf(a));
+        }
+        return apps;
+    }
+
+    // Half the apps scan unfiltered, the others for one manufacturer product.
+    private List<ScanClient> scanClients() {
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        for (int a = 0; a < APPS; ++a) {
+            List<ScanFilter> filters = null;
+            if (a % 2 == 1) {
+                filters = Arrays.asList(new ScanFilter.Builder().setManufacturerData(
+                        SyntheticHalEvents.MANUFACTURER_ID, new byte[] { (byte) a }).build());
+            }
+            clients.add(new ScanClient(mEvents.clientIf(a), false, null, filters));
+        }
+        return clients;
+    }
+
+    private static long totalCalls(ContextMap<StubGattCallback> apps) {
+        long calls = 0;
+        for (ContextMap<StubGattCallback>.App app : apps.mApps) {
+            calls += app.callback.calls;
+        }
+        return calls;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link GattMetrics}.
+ */
+public class GattMetricsTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testAppAndConnectionCounts() {
+        GattMetrics metrics = new GattMetrics();
+        int client = GattMetrics.clientKey(5);
+        int server = GattMetrics.serverKey(5);
+        metrics.record(client, 0x105, GattMetrics.EVENT_NOTIFY, System.nanoTime());
+        metrics.record(client, 0x105, GattMetrics.EVENT_NOTIFY, System.nanoTime());
+        metrics.count(client, GattMetrics.NO_CONNECTION, GattMetrics.EVENT_SCAN_RESULT, 3);
+        metrics.count(server, 0x205, GattMetrics.EVENT_WRITE, 1);
+
+        assertEquals(2, metrics.getAppCount(client, GattMetrics.EVENT_NOTIFY));
+        assertEquals(3, metrics.getAppCount(client, GattMetrics.EVENT_SCAN_RESULT));
+        assertEquals(0, metrics.getAppCount(client, GattMetrics.EVENT_WRITE));
+        assertEquals(1, metrics.getAppCount(server, GattMetrics.EVENT_WRITE));
+        assertEquals(2, metrics.getConnectionCount(0x105, GattMetrics.EVENT_NOTIFY));
+        assertEquals(0, metrics.getConnectionCount(0x205, GattMetrics.EVENT_NOTIFY));
+
+        metrics.resetConnection(0x105);
+        assertEquals(0, metrics.getConnectionCount(0x105, GattMetrics.EVENT_NOTIFY));
+        assertEquals(2, metrics.getAppCount(client, GattMetrics.EVENT_NOTIFY));
+    }
+
+    @SmallTest
+    public void testTablesOverflow() {
+        GattMetrics metrics = new GattMetrics();
+        for (int connId = 1; connId <= 100; ++connId) {
+            metrics.count(GattMetrics.clientKey(1), connId, GattMetrics.EVENT_READ, 1);
+        }
+        assertEquals(100, metrics.getAppCount(GattMetrics.clientKey(1), GattMetrics.EVENT_READ));
+
+        StringBuilder sb = new StringBuilder();
+        metrics.dumpJson(sb);
+        String json = sb.toString();
+        assertTrue(json.startsWith("{\"apps\":[{\"server\":false,\"id\":1,"));
+        assertTrue(json.contains("\"overflow\":true"));
+        assertTrue(json.endsWith("]}"));
+    }
+}
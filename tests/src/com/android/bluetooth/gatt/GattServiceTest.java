@@ -1,11 +1,20 @@
 
 package com.android.bluetooth.gatt;
 
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.IBluetoothGattServerCallback;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.bluetooth.gatt.GattService;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
 /**
  * Test cases for {@link GattService}.
  */
@@ -19,4 +28,65 @@ public class GattServiceTest extends AndroidTestCase {
         assertEquals(99700000000L, timestampNanos);
     }
 
+    @SmallTest
+    public void testAggregatedWritesAnsweredAfterApp() throws Exception {
+        final String address = "00:11:22:33:44:55";
+        final int serverIf = 1;
+        final int connId = 3;
+        final UUID uuid = UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+
+        // Responses sent to the stack: request id, status and handle.
+        final List<int[]> responses = new ArrayList<int[]>();
+        GattService service = new GattService() {
+            @Override
+            public void enforceCallingOrSelfPermission(String permission, String message) {
+            }
+
+            @Override
+            void sendServerResponse(int serverIf, int connId, int transId, int status,
+                                    int handle, int offset, byte[] value) {
+                responses.add(new int[] { transId, status, handle });
+            }
+        };
+
+        // Write requests delivered to the app.
+        final List<Object[]> writes = new ArrayList<Object[]>();
+        IBluetoothGattServerCallback callback = (IBluetoothGattServerCallback)
+                Proxy.newProxyInstance(IBluetoothGattServerCallback.class.getClassLoader(),
+                        new Class<?>[] { IBluetoothGattServerCallback.class },
+                        new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("onCharacteristicWriteRequest")) writes.add(args);
+                return null;
+            }
+        });
+        service.mServerMap.add(uuid, callback);
+        service.mServerMap.setAppId(service.mServerMap.getByUuid(uuid), serverIf);
+        service.mServerMap.addConnection(serverIf, connId, address);
+        service.mHandleMap.addService(serverIf, 0x10, uuid, 0, 0, false);
+        service.mHandleMap.addCharacteristic(serverIf, 0x11, uuid, 0x10);
+        service.mHandleMap.addCharacteristic(serverIf, 0x13, uuid, 0x10);
+        service.setPreparedWriteAggregation(serverIf, true);
+
+        service.onAttributeWrite(address, connId, 1, 0x11, 0, 2, true, true, new byte[2]);
+        service.onAttributeWrite(address, connId, 2, 0x13, 0, 2, true, true, new byte[2]);
+        assertEquals(2, responses.size());
+
+        service.onExecuteWrite(address, connId, 3, 1);
+        assertEquals(2, writes.size());
+        // needRsp is set, and the execution waits for the app.
+        assertEquals(Boolean.TRUE, writes.get(0)[5]);
+        assertEquals(2, responses.size());
+
+        service.sendResponse(serverIf, address, 3, BluetoothGatt.GATT_SUCCESS, 0, null);
+        assertEquals(2, responses.size());
+        service.sendResponse(serverIf, address, 3, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, 0,
+                null);
+        assertEquals(3, responses.size());
+        int[] execute = responses.get(2);
+        assertEquals(3, execute[0]);
+        assertEquals(BluetoothGatt.GATT_WRITE_NOT_PERMITTED, execute[1]);
+        assertEquals(0x13, execute[2]);
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.UUID;
+
+/**
+ * Test cases for {@link HandleMap}.
+ */
+public class HandleMapTest extends AndroidTestCase {
+    private static final UUID SERVICE =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHARACTERISTIC =
+            UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+    private static final UUID CLIENT_CONFIG =
+            UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    @SmallTest
+    public void testDuplicateCharacteristicResolvesToFirst() {
+        HandleMap map = new HandleMap();
+        map.addService(1, 10, SERVICE, 0, 0, false);
+        map.addCharacteristic(1, 11, CHARACTERISTIC, 10);
+        map.addCharacteristic(1, 13, CHARACTERISTIC, 10);
+        assertEquals(10, map.getServiceHandle(1, SERVICE, 0, 0));
+        assertEquals(0, map.getServiceHandle(1, SERVICE, 1, 0));
+        assertEquals(11, map.getCharacteristicHandle(10, CHARACTERISTIC, 0));
+    }
+
+    @SmallTest
+    public void testDeletedServiceIsNotFound() {
+        HandleMap map = new HandleMap();
+        map.addService(1, 10, SERVICE, 0, 0, false);
+        map.addCharacteristic(1, 11, CHARACTERISTIC, 10);
+        map.addService(1, 20, SERVICE, 0, 1, false);
+        map.deleteService(1, 10);
+        assertEquals(0, map.getServiceHandle(1, SERVICE, 0, 0));
+        assertEquals(0, map.getCharacteristicHandle(10, CHARACTERISTIC, 0));
+        assertEquals(20, map.getServiceHandle(1, SERVICE, 0, 1));
+    }
+
+    @SmallTest
+    public void testRequestsAndSubscriptions() {
+        HandleMap map = new HandleMap();
+        map.addService(1, 10, SERVICE, 0, 0, false);
+        map.addCharacteristic(1, 11, CHARACTERISTIC, 10);
+        map.addDescriptor(1, 12, CLIENT_CONFIG, 10);
+        HandleMap.Entry characteristic = map.getByHandle(11);
+        HandleMap.Entry descriptor = map.getByHandle(12);
+
+        byte[] value = new byte[] { 42 };
+        characteristic.value = value;
+        assertSame(value, map.startRead(1, characteristic));
+        assertEquals(0, map.finishRequest(1));
+
+        map.startWrite(2, descriptor, 5, 0, false, new byte[] { 0x01, 0x00 });
+        assertEquals(1, characteristic.subscribers.get(5));
+        assertEquals(12, map.finishRequest(2));
+
+        // A write drops the published value, so reads go to the app again.
+        map.startWrite(3, characteristic, 5, 0, false, new byte[] { 7 });
+        assertNull(map.startRead(4, characteristic));
+        assertEquals(11, map.finishRequest(3));
+        assertEquals(11, map.finishRequest(4));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link PreparedWriteBuffer}.
+ */
+public class PreparedWriteBufferTest extends AndroidTestCase {
+
+    @SmallTest
+    public void testAssembleLongWrite() {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer();
+        byte[] expected = new byte[200];
+        for (int i = 0; i < expected.length; ++i) expected[i] = (byte) i;
+        for (int offset = 0; offset < expected.length; offset += 18) {
+            byte[] fragment = Arrays.copyOfRange(expected, offset,
+                    Math.min(expected.length, offset + 18));
+            assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.prepare(1, 0x2A, offset, fragment));
+        }
+        buffer.prepare(1, 0x2C, 0, new byte[] {1, 0});
+
+        List<PreparedWriteBuffer.Value> values = buffer.execute(1);
+        assertEquals(2, values.size());
+        assertEquals(0x2A, values.get(0).handle);
+        assertTrue(Arrays.equals(expected, values.get(0).getValue()));
+        assertNull(buffer.execute(1));
+    }
+
+    @SmallTest
+    public void testErrorsReportedOnExecute() {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer();
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.prepare(1, 0x2A, 4, new byte[4]));
+        assertEquals(BluetoothGatt.GATT_SUCCESS,
+                buffer.prepare(1, 0x2C, 0, new byte[PreparedWriteBuffer.MAX_ATTRIBUTE_LENGTH + 1]));
+        List<PreparedWriteBuffer.Value> values = buffer.execute(1);
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, values.get(0).status);
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH, values.get(1).status);
+    }
+
+    @SmallTest
+    public void testConnectionCapacity() {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer(256);
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.prepare(1, 0x2A, 0, new byte[200]));
+        assertEquals(PreparedWriteBuffer.PREPARE_QUEUE_FULL,
+                buffer.prepare(1, 0x2C, 0, new byte[100]));
+        // Other connections have their own capacity.
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.prepare(2, 0x2C, 0, new byte[100]));
+
+        buffer.remove(1);
+        assertNull(buffer.execute(1));
+        assertEquals(1, buffer.execute(2).size());
+    }
+
+    @SmallTest
+    public void testExecutionWaitsForResponses() {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer();
+        buffer.prepare(1, 0x2A, 0, new byte[2]);
+        buffer.prepare(1, 0x2C, 0, new byte[2]);
+        buffer.awaitResponses(1, 7, buffer.execute(1));
+
+        assertNull(buffer.onResponse(1, 8, BluetoothGatt.GATT_SUCCESS));
+        PreparedWriteBuffer.Execution execution =
+                buffer.onResponse(1, 7, BluetoothGatt.GATT_SUCCESS);
+        assertFalse(execution.isComplete());
+        execution = buffer.onResponse(1, 7, BluetoothGatt.GATT_WRITE_NOT_PERMITTED);
+        assertTrue(execution.isComplete());
+        assertEquals(BluetoothGatt.GATT_WRITE_NOT_PERMITTED, execution.status);
+        assertEquals(0x2C, execution.handle);
+        assertNull(buffer.onResponse(1, 7, BluetoothGatt.GATT_SUCCESS));
+    }
+}
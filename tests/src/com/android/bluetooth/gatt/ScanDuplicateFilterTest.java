@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Test cases for {@link ScanDuplicateFilter}.
+ */
+public class ScanDuplicateFilterTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final long SECOND = 1000000000L;
+
+    @SmallTest
+    public void testSuppressesRepeats() {
+        ScanDuplicateFilter filter = new ScanDuplicateFilter(16, 5, SECOND, 10 * SECOND);
+        assertTrue(filter.shouldForward(ADDRESS, -60, 1, 0));
+        assertFalse(filter.shouldForward(ADDRESS, -62, 1, SECOND / 2));
+        // Payload changed.
+        assertTrue(filter.shouldForward(ADDRESS, -62, 2, SECOND / 2));
+        // RSSI moved past the delta.
+        assertTrue(filter.shouldForward(ADDRESS, -70, 2, SECOND / 2));
+        // Refresh interval elapsed.
+        assertFalse(filter.shouldForward(ADDRESS, -70, 2, SECOND));
+        assertTrue(filter.shouldForward(ADDRESS, -70, 2, 2 * SECOND));
+        assertEquals(2, filter.getHits());
+        assertEquals(4, filter.getMisses());
+    }
+
+    @SmallTest
+    public void testDevicesAreIndependent() {
+        ScanDuplicateFilter filter = new ScanDuplicateFilter(16, 5, SECOND, 10 * SECOND);
+        assertTrue(filter.shouldForward(ADDRESS, -60, 1, 0));
+        assertTrue(filter.shouldForward("AA:BB:CC:DD:EE:FF", -60, 1, 0));
+        assertFalse(filter.shouldForward(ADDRESS, -60, 1, 1));
+    }
+
+    @SmallTest
+    public void testBoundedCapacity() {
+        ScanDuplicateFilter filter = new ScanDuplicateFilter(8, 5, SECOND, 10 * SECOND);
+        for (int i = 0; i < 256; ++i) {
+            String address = String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF);
+            assertTrue(filter.shouldForward(address, -60, 1, i));
+        }
+        // Malformed addresses are never suppressed.
+        assertTrue(filter.shouldForward("bogus", -60, 1, 0));
+        assertTrue(filter.shouldForward("bogus", -60, 1, 0));
+    }
+
+    @SmallTest
+    public void testSettingsLongRefresh() {
+        ScanDuplicateFilter filter = new ScanDuplicateFilter.Settings(3, 30 * SECOND).newFilter();
+        assertTrue(filter.shouldForward(ADDRESS, -60, 1, 0));
+        // Still remembered past the default expiry.
+        assertFalse(filter.shouldForward(ADDRESS, -62, 1, 20 * SECOND));
+        assertTrue(filter.shouldForward(ADDRESS, -63, 1, 21 * SECOND));
+        assertTrue(filter.shouldForward(ADDRESS, -63, 1, 51 * SECOND));
+    }
+
+    @SmallTest
+    public void testParseAddress() {
+        assertEquals(0x001122334455L, ScanDuplicateFilter.parseAddress(ADDRESS));
+        assertEquals(-1, ScanDuplicateFilter.parseAddress("00-11-22-33-44-55"));
+        assertEquals(-1, ScanDuplicateFilter.parseAddress(null));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanSettings;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanDutyCycleScheduler}.
+ */
+public class ScanDutyCycleSchedulerTest extends AndroidTestCase {
+    private static final long HOLD_OFF = 10000;
+    private static final long BURST = 5000;
+
+    @SmallTest
+    public void testMostDemandingClientWins() {
+        ScanDutyCycleScheduler scheduler = new ScanDutyCycleScheduler(HOLD_OFF, BURST);
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        clients.add(client(1, ScanSettings.SCAN_MODE_LOW_POWER));
+        assertTrue(scheduler.update(clients, 0));
+        assertEquals(500, scheduler.getWindowMillis());
+
+        clients.add(client(2, ScanSettings.SCAN_MODE_BALANCED));
+        assertTrue(scheduler.update(clients, 1));
+        assertEquals(2000, scheduler.getWindowMillis());
+        assertEquals(5000, scheduler.getIntervalMillis());
+
+        // Same requirement again does not restart the scan.
+        assertFalse(scheduler.update(clients, 2));
+    }
+
+    @SmallTest
+    public void testLoweringIsHeldOff() {
+        ScanDutyCycleScheduler scheduler = new ScanDutyCycleScheduler(HOLD_OFF, BURST);
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        clients.add(client(1, ScanSettings.SCAN_MODE_LOW_POWER));
+        ScanClient balanced = client(2, ScanSettings.SCAN_MODE_BALANCED);
+        clients.add(balanced);
+        assertTrue(scheduler.update(clients, 0));
+
+        clients.remove(balanced);
+        assertFalse(scheduler.update(clients, 1000));
+        assertEquals(1000 + HOLD_OFF, scheduler.getNextUpdateMillis());
+
+        // The client comes back before the hold-off expires: no restart.
+        clients.add(balanced);
+        assertFalse(scheduler.update(clients, 2000));
+        assertEquals(-1, scheduler.getNextUpdateMillis());
+
+        clients.remove(balanced);
+        assertFalse(scheduler.update(clients, 3000));
+        assertTrue(scheduler.update(clients, 3000 + HOLD_OFF));
+        assertEquals(500, scheduler.getWindowMillis());
+    }
+
+    @SmallTest
+    public void testOpportunisticClientsAddNoDutyCycle() {
+        ScanDutyCycleScheduler scheduler = new ScanDutyCycleScheduler(HOLD_OFF, BURST);
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        clients.add(client(1, ScanSettings.SCAN_MODE_LOW_POWER - 1));
+        assertFalse(scheduler.update(clients, 0));
+        clients.add(client(2, ScanSettings.SCAN_MODE_LOW_POWER));
+        assertTrue(scheduler.update(clients, 0));
+        assertEquals(500, scheduler.getWindowMillis());
+    }
+
+    @SmallTest
+    public void testBurstEndsAtDeadline() {
+        ScanDutyCycleScheduler scheduler = new ScanDutyCycleScheduler(HOLD_OFF, BURST);
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        clients.add(client(1, ScanSettings.SCAN_MODE_LOW_POWER));
+        scheduler.startBurst(1, 0);
+        assertTrue(scheduler.update(clients, 0));
+        assertEquals(5000, scheduler.getWindowMillis());
+        assertEquals(BURST, scheduler.getNextUpdateMillis());
+
+        // No hold-off once the burst is over.
+        assertTrue(scheduler.update(clients, BURST));
+        assertEquals(500, scheduler.getWindowMillis());
+    }
+
+    private static ScanClient client(int clientIf, int scanMode) {
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(scanMode).build();
+        return new ScanClient(clientIf, false, settings, null);
+    }
+}
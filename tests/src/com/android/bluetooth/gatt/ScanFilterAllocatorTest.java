@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterAllocator}.
+ */
+public class ScanFilterAllocatorTest extends AndroidTestCase {
+    private static final List<ScanFilter> FILTERS = Arrays.asList(
+            new ScanFilter.Builder().setDeviceName("sensor").build());
+
+    @SmallTest
+    public void testIdenticalFiltersShareSlot() {
+        ScanFilterAllocator allocator = newAllocator();
+        assertEquals(1, allocator.allocate(1, FILTERS, 0, 0, false).size());
+        assertEquals(0, allocator.allocate(2, FILTERS, 0, 0, false).size());
+        assertEquals(3, allocator.getFreeCount());
+        assertTrue(allocator.release(1).isEmpty());
+        assertEquals(1, allocator.release(2).size());
+        assertEquals(4, allocator.getFreeCount());
+    }
+
+    @SmallTest
+    public void testExclusiveSlotsAreNotShared() {
+        ScanFilterAllocator allocator = newAllocator();
+        List<ScanFilterAllocator.Slot> first = allocator.allocate(1, FILTERS, 1, 0, true);
+        List<ScanFilterAllocator.Slot> second = allocator.allocate(2, FILTERS, 1, 0, true);
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+        assertTrue(first.get(0).index != second.get(0).index);
+        assertEquals(1, allocator.release(1).size());
+    }
+
+    private static ScanFilterAllocator newAllocator() {
+        ScanFilterAllocator allocator = new ScanFilterAllocator();
+        allocator.addIndices(Arrays.asList(1, 2, 3, 4));
+        return allocator;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link ScanFilterMatcher}.
+ */
+public class ScanFilterMatcherTest extends AndroidTestCase {
+    private static final String TAG = "ScanFilterMatcherTest";
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final ParcelUuid HEART_RATE =
+            ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final ParcelUuid BATTERY =
+            ParcelUuid.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+
+    // Flags, 16-bit UUIDs 0x180D 0x180F, name "HRM", service data for 0x180F,
+    // manufacturer 0x00E0 data 01 02 03.
+    private static final byte[] ADV = new byte[] {
+        0x02, 0x01, 0x06,
+        0x05, 0x03, 0x0D, 0x18, 0x0F, 0x18,
+        0x04, 0x09, 'H', 'R', 'M',
+        0x04, 0x16, 0x0F, 0x18, 0x64,
+        0x06, (byte) 0xFF, (byte) 0xE0, 0x00, 0x01, 0x02, 0x03
+    };
+
+    @SmallTest
+    public void testUnfilteredClientsAlwaysMatch() {
+        ScanFilterMatcher matcher = ScanFilterMatcher.build(
+                Arrays.asList(new ScanClient(1, false, null, null)));
+        assertEquals(1, matcher.match(ADDRESS, new byte[0], 0, 0));
+    }
+
+    @SmallTest
+    public void testFieldFilters() {
+        assertMatches(true, new ScanFilter.Builder().setDeviceAddress(ADDRESS).build());
+        assertMatches(false, new ScanFilter.Builder().setDeviceAddress("00:11:22:33:44:56")
+                .build());
+        assertMatches(true, new ScanFilter.Builder().setDeviceName("HRM").build());
+        assertMatches(false, new ScanFilter.Builder().setDeviceName("HR").build());
+        assertMatches(true, new ScanFilter.Builder().setServiceUuid(BATTERY).build());
+        assertMatches(false, new ScanFilter.Builder().setServiceUuid(
+                ParcelUuid.fromString("00001810-0000-1000-8000-00805F9B34FB")).build());
+        assertMatches(true, new ScanFilter.Builder().setServiceData(BATTERY,
+                new byte[] { 0x64 }).build());
+        assertMatches(false, new ScanFilter.Builder().setServiceData(HEART_RATE,
+                new byte[] { 0x64 }).build());
+        assertMatches(true, new ScanFilter.Builder().setManufacturerData(0xE0,
+                new byte[] { 0x01, 0x02 }).build());
+        assertMatches(false, new ScanFilter.Builder().setManufacturerData(0xE0,
+                new byte[] { 0x01, 0x02, 0x03, 0x04 }).build());
+    }
+
+    @SmallTest
+    public void testMasks() {
+        assertMatches(true, new ScanFilter.Builder().setServiceUuid(
+                ParcelUuid.fromString("00001800-0000-1000-8000-00805F9B34FB"),
+                ParcelUuid.fromString("FFFFFF00-FFFF-FFFF-FFFF-FFFFFFFFFFFF")).build());
+        assertMatches(true, new ScanFilter.Builder().setManufacturerData(0xE0,
+                new byte[] { 0x00, 0x02 }, new byte[] { 0x00, (byte) 0xFF }).build());
+        assertMatches(false, new ScanFilter.Builder().setManufacturerData(0xE0,
+                new byte[] { 0x00, 0x02 }, new byte[] { (byte) 0xFF, (byte) 0xFF }).build());
+    }
+
+    @SmallTest
+    public void testAllFieldsOfAFilterMustMatch() {
+        assertMatches(true, new ScanFilter.Builder().setDeviceName("HRM")
+                .setServiceUuid(HEART_RATE).build());
+        assertMatches(false, new ScanFilter.Builder().setDeviceAddress(ADDRESS)
+                .setDeviceName("Other").build());
+    }
+
+    @SmallTest
+    public void testClientsAreReportedOnce() {
+        List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        filters.add(new ScanFilter.Builder().setServiceUuid(HEART_RATE).build());
+        filters.add(new ScanFilter.Builder().setServiceUuid(BATTERY).build());
+        filters.add(new ScanFilter.Builder().setDeviceName("HRM").build());
+        ScanFilterMatcher matcher = ScanFilterMatcher.build(
+                Arrays.asList(new ScanClient(1, false, null, filters)));
+        assertEquals(1, matcher.match(ADDRESS, ADV, 0, ADV.length));
+    }
+
+    @SmallTest
+    public void testUuidClientsRequireAllUuids() {
+        ScanClient both = new ScanClient(1, false,
+                new UUID[] { HEART_RATE.getUuid(), BATTERY.getUuid() });
+        ScanClient missing = new ScanClient(2, false, new UUID[] { HEART_RATE.getUuid(),
+                UUID.fromString("00001810-0000-1000-8000-00805F9B34FB") });
+        ScanFilterMatcher matcher = ScanFilterMatcher.build(Arrays.asList(both, missing));
+        assertEquals(1, matcher.match(ADDRESS, ADV, 0, ADV.length));
+        assertSame(both, matcher.getMatched(0));
+    }
+
+    @SmallTest
+    public void testSplitScanResponse() {
+        // Name in the scan response, stored after a length byte.
+        byte[] record = new byte[] { 0x03, 0x02, 0x01, 0x06, 0x05, 0x04, 0x09, 'H', 'R', 'M' };
+        ScanFilterMatcher matcher = ScanFilterMatcher.build(Arrays.asList(
+                client(1, new ScanFilter.Builder().setDeviceName("HRM").build())));
+        assertEquals(1, matcher.match(ADDRESS, record, 1, 3, 5, 5));
+        assertEquals(0, matcher.match(ADDRESS, record, 1, 3, 5, 0));
+    }
+
+    @LargeTest
+    public void testMatchThroughput() {
+        Random random = new Random(0);
+        List<ScanClient> clients = new ArrayList<ScanClient>();
+        for (int i = 0; i < 32; ++i) {
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            switch (i % 4) {
+                case 0:
+                    builder.setDeviceAddress(address(random.nextInt(256)));
+                    break;
+                case 1:
+                    builder.setManufacturerData(random.nextInt(64), new byte[] { 0x01 });
+                    break;
+                case 2:
+                    builder.setServiceUuid(uuid16(0x1800 + random.nextInt(64)));
+                    break;
+                default:
+                    builder.setServiceData(uuid16(0x1800 + random.nextInt(64)),
+                            new byte[] { 0x01 });
+                    break;
+            }
+            clients.add(client(i, builder.build()));
+        }
+
+        int count = 4096;
+        String[] addresses = new String[count];
+        byte[][] stream = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            addresses[i] = address(random.nextInt(256));
+            stream[i] = syntheticAdvertisement(random);
+        }
+
+        ScanFilterMatcher matcher = ScanFilterMatcher.build(clients);
+
+        // The compiled filters must select exactly the clients ScanFilter selects.
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        for (int i = 0; i < count; ++i) {
+            ScanResult result = new ScanResult(adapter.getRemoteDevice(addresses[i]),
+                    ScanRecord.parseFromBytes(stream[i]), 0, 0);
+            Set<ScanClient> expected = new HashSet<ScanClient>();
+            for (ScanClient client : clients) {
+                for (ScanFilter filter : client.filters) {
+                    if (filter.matches(result)) {
+                        expected.add(client);
+                        break;
+                    }
+                }
+            }
+            Set<ScanClient> actual = new HashSet<ScanClient>();
+            int n = matcher.match(addresses[i], stream[i], 0, stream[i].length);
+            for (int j = 0; j < n; ++j) actual.add(matcher.getMatched(j));
+            assertEquals("advertisement " + i + " from " + addresses[i], expected, actual);
+        }
+
+        int rounds = 50;
+        long matched = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; ++round) {
+            for (int i = 0; i < count; ++i) {
+                matched += matcher.match(addresses[i], stream[i], 0, stream[i].length);
+            }
+        }
+        long compiledNanos = (System.nanoTime() - start) / (rounds * count);
+
+        // Baseline: parse a ScanRecord and run every filter of every client.
+        start = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            ScanResult result = new ScanResult(null, ScanRecord.parseFromBytes(stream[i]), 0, 0);
+            for (ScanClient client : clients) {
+                for (ScanFilter filter : client.filters) {
+                    if (filter.matches(result)) break;
+                }
+            }
+        }
+        long baselineNanos = (System.nanoTime() - start) / count;
+
+        Log.i(TAG, "compiled " + compiledNanos + "ns/adv, baseline " + baselineNanos
+                + "ns/adv, matched " + matched / rounds + " of " + count);
+        assertTrue(matched > 0);
+    }
+
+    private static void assertMatches(boolean expected, ScanFilter filter) {
+        ScanFilterMatcher matcher = ScanFilterMatcher.build(Arrays.asList(client(1, filter)));
+        assertEquals(expected ? 1 : 0, matcher.match(ADDRESS, ADV, 0, ADV.length));
+    }
+
+    private static ScanClient client(int clientIf, ScanFilter filter) {
+        return new ScanClient(clientIf, false, null, Arrays.asList(filter));
+    }
+
+    private static ParcelUuid uuid16(int uuid) {
+        return ParcelUuid.fromString(String.format("0000%04X-0000-1000-8000-00805F9B34FB", uuid));
+    }
+
+    private static String address(int device) {
+        return String.format("00:11:22:33:44:%02X", device);
+    }
+
+    // Flags, one 16-bit UUID, service data and manufacturer data with random ids.
+    private static byte[] syntheticAdvertisement(Random random) {
+        int uuid = 0x1800 + random.nextInt(64);
+        int dataUuid = 0x1800 + random.nextInt(64);
+        int manufacturer = random.nextInt(64);
+        return new byte[] {
+            0x02, 0x01, 0x06,
+            0x03, 0x03, (byte) uuid, (byte) (uuid >> 8),
+            0x04, 0x16, (byte) dataUuid, (byte) (dataUuid >> 8), 0x01,
+            0x04, (byte) 0xFF, (byte) manufacturer, 0x00, 0x01
+        };
+    }
+}
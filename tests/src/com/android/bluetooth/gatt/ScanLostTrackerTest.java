@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanLostTracker}.
+ */
+public class ScanLostTrackerTest extends AndroidTestCase {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final long TIMEOUT = 1000;
+
+    private final List<ScanClient> mLost = new ArrayList<ScanClient>();
+    private final ScanLostTracker.Callback mCallback = new ScanLostTracker.Callback() {
+        @Override
+        public void onLost(ScanClient client, ScanResult result) {
+            mLost.add(client);
+        }
+    };
+
+    @SmallTest
+    public void testFoundOnce() {
+        ScanLostTracker tracker = new ScanLostTracker(new Handler(), mCallback);
+        ScanClient client = new ScanClient(1, false);
+        assertTrue(tracker.onSighting(client, ADDRESS, null, TIMEOUT, 0));
+        assertFalse(tracker.onSighting(client, ADDRESS, null, TIMEOUT, 100));
+        // Another client finds the same device independently.
+        assertTrue(tracker.onSighting(new ScanClient(2, false), ADDRESS, null, TIMEOUT, 100));
+    }
+
+    @SmallTest
+    public void testLostAfterSilence() {
+        ScanLostTracker tracker = new ScanLostTracker(new Handler(), mCallback);
+        ScanClient client = new ScanClient(1, false);
+        tracker.onSighting(client, ADDRESS, null, TIMEOUT, 0);
+        // Seen again, so the deadline moves.
+        tracker.onSighting(client, ADDRESS, null, TIMEOUT, 800);
+        for (long now = 0; now < 1800; now += ScanLostTracker.TICK_MILLIS) {
+            tracker.expire(now);
+        }
+        assertTrue(mLost.isEmpty());
+        // Reported within a tick of the deadline.
+        tracker.expire(1800 + ScanLostTracker.TICK_MILLIS);
+        assertEquals(1, mLost.size());
+        assertEquals(0, tracker.size());
+        // Found again once it came back.
+        assertTrue(tracker.onSighting(client, ADDRESS, null, TIMEOUT, 2000));
+    }
+
+    @SmallTest
+    public void testLongPauseExpiresEverything() {
+        ScanLostTracker tracker = new ScanLostTracker(new Handler(), mCallback);
+        ScanClient client = new ScanClient(1, false);
+        tracker.onSighting(client, ADDRESS, null, TIMEOUT, 0);
+        tracker.onSighting(client, "00:11:22:33:44:56", null, 20 * TIMEOUT, 0);
+        tracker.expire(100 * TIMEOUT);
+        assertEquals(2, mLost.size());
+    }
+
+    @SmallTest
+    public void testHardwareLost() {
+        ScanLostTracker tracker = new ScanLostTracker(new Handler(), mCallback);
+        ScanClient client = new ScanClient(1, false);
+        tracker.onSighting(client, ADDRESS, null, 0, 0);
+        tracker.expire(100 * TIMEOUT);
+        assertTrue(mLost.isEmpty());
+        assertEquals(1, tracker.size());
+        tracker.remove(1, ADDRESS);
+        assertEquals(0, tracker.size());
+    }
+
+    @SmallTest
+    public void testBounded() {
+        ScanLostTracker tracker = new ScanLostTracker(new Handler(), mCallback, 8, 4);
+        ScanClient first = new ScanClient(1, false);
+        ScanClient second = new ScanClient(2, false);
+        for (int i = 0; i < 16; ++i) {
+            String address = String.format("00:11:22:33:44:%02X", i);
+            assertEquals(i < 4, tracker.onSighting(first, address, null, TIMEOUT, 0));
+            tracker.onSighting(second, address, null, TIMEOUT, 0);
+        }
+        assertEquals(8, tracker.size());
+        tracker.removeClient(1);
+        assertEquals(4, tracker.size());
+    }
+
+    @SmallTest
+    public void testFallbackClientLosesDevice() {
+        ScanLostTracker tracker = new ScanLostTracker(new Handler(), mCallback);
+        ScanSettings settings = new ScanSettings.Builder()
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_MATCH_LOST).build();
+        // Its filters did not fit in hardware, so it is on the ALL_PASS filter.
+        ScanClient client = new ScanClient(1, false, settings, null);
+        long timeout = ScanManager.getLostTimeoutMillis(client);
+        assertEquals(ScanLostTracker.DEFAULT_TIMEOUT_MILLIS, timeout);
+        tracker.onSighting(client, ADDRESS, null, timeout, 0);
+        tracker.expire(timeout + ScanLostTracker.TICK_MILLIS);
+        assertEquals(1, mLost.size());
+        assertEquals(0, tracker.size());
+    }
+
+    @SmallTest
+    public void testPromotedClientLostInHardware() {
+        ScanLostTracker tracker = new ScanLostTracker(new Handler(), mCallback);
+        ScanClient client = new ScanClient(1, false);
+        tracker.onSighting(client, ADDRESS, null, TIMEOUT, 0);
+        // Given a found/lost slot, the controller reports its devices lost.
+        client.lostInHardware = true;
+        tracker.trackInHardware(client.clientIf);
+        assertEquals(0, ScanManager.getLostTimeoutMillis(client));
+        tracker.expire(100 * TIMEOUT);
+        assertTrue(mLost.isEmpty());
+        assertEquals(1, tracker.size());
+        // The lost event of the controller removes it.
+        tracker.remove(client.clientIf, ADDRESS);
+        assertEquals(0, tracker.size());
+    }
+}
@@ -0,0 +1,43 @@
+package com.android.bluetooth.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+import com.android.bluetooth.map.BluetoothMapMessageListing;
+import com.android.bluetooth.map.BluetoothMapMessageListingElement;
+import com.android.bluetooth.map.BluetoothMapUtils.TYPE;
+
+/***
+ *
+ * Test cases for the message listing encoding.
+ *
+ */
+public class BluetoothMapMessageListingTest extends AndroidTestCase {
+
+    public BluetoothMapMessageListingTest() {
+        super();
+    }
+
+    /***
+     * Test that streaming a listing produces the same document as encoding it in memory.
+     */
+    public void testStreamedEncodingMatches() throws Exception {
+        BluetoothMapMessageListing listing = new BluetoothMapMessageListing();
+        for (int i = 0; i < 1024; i++) {
+            BluetoothMapMessageListingElement element = new BluetoothMapMessageListingElement();
+            element.setHandle(i);
+            element.setType(TYPE.SMS_GSM);
+            element.setSubject("Message æøå " + i);
+            element.setDateTime(1400000000000L + i);
+            element.setSize(100 + i);
+            element.setRead(i % 2 == 0, false);
+            listing.add(element);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        listing.encode(out, true);
+        assertTrue(Arrays.equals(listing.encode(true), out.toByteArray()));
+    }
+}